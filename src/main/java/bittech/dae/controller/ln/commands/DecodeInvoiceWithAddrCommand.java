@@ -0,0 +1,17 @@
+package bittech.dae.controller.ln.commands;
+
+import bittech.lib.commands.ln.invoices.DecodeInvoiceCommand;
+
+/**
+ * DecodeInvoiceCommand that also returns payment address (hex) needed for
+ * multi-path payments. Empty if invoice does not provide one. Used locally only.
+ */
+public class DecodeInvoiceWithAddrCommand extends DecodeInvoiceCommand {
+
+	public String paymentAddr;
+
+	public DecodeInvoiceWithAddrCommand(String invoice) {
+		super(invoice);
+	}
+
+}
@@ -0,0 +1,23 @@
+package bittech.dae.controller.ln.commands;
+
+import bittech.lib.commands.ln.channels.PayToRouteCommand;
+import bittech.lib.commands.ln.channels.Route;
+import bittech.lib.utils.Btc;
+import bittech.lib.utils.Require;
+
+/**
+ * Sends one part of multi-path payment. Last hop gets MPP record with payment
+ * address and total amount of whole payment. Used locally only.
+ */
+public class PayToRouteMppCommand extends PayToRouteCommand {
+
+	public final String paymentAddr;
+	public final Btc totalAmount;
+
+	public PayToRouteMppCommand(String paymentHash, Route route, String paymentAddr, Btc totalAmount) {
+		super(paymentHash, route);
+		this.paymentAddr = Require.notEmpty(paymentAddr, "paymentAddr");
+		this.totalAmount = Require.notNull(totalAmount, "totalAmount");
+	}
+
+}
@@ -0,0 +1,26 @@
+package bittech.dae.controller.ln.commands;
+
+import java.util.Map;
+
+import bittech.lib.commands.ln.onchain.SendOnChainResponse;
+import bittech.lib.protocol.Command;
+import bittech.lib.utils.Btc;
+
+/**
+ * Sends on-chain payments to many addresses in one transaction. Response has
+ * txId of the transaction, shared by all outputs.
+ */
+public class SendManyOnChainCommand extends Command<SendManyOnChainRequest, SendOnChainResponse> {
+
+	/**
+	 * Error of this and SendOnChainCommand contains this message only if lnd
+	 * rejected the send before broadcasting anything. Any other error (e.g.
+	 * timeout) means it is not known whether the transaction was sent
+	 */
+	public static final String REJECTED = "On-chain send rejected by lnd, nothing was broadcast";
+
+	public SendManyOnChainCommand(Map<String, Btc> addrToAmount) {
+		this.request = new SendManyOnChainRequest(addrToAmount);
+	}
+
+}
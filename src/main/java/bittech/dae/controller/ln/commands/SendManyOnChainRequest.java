@@ -0,0 +1,26 @@
+package bittech.dae.controller.ln.commands;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import bittech.lib.protocol.Request;
+import bittech.lib.utils.Btc;
+import bittech.lib.utils.Require;
+
+public class SendManyOnChainRequest implements Request {
+
+	public Map<String, Btc> addrToAmount; // one output per address
+
+	public SendManyOnChainRequest() {
+
+	}
+
+	public SendManyOnChainRequest(Map<String, Btc> addrToAmount) {
+		Require.notNull(addrToAmount, "addrToAmount");
+		if (addrToAmount.isEmpty()) {
+			throw new IllegalArgumentException("No outputs to send");
+		}
+		this.addrToAmount = new LinkedHashMap<String, Btc>(addrToAmount);
+	}
+
+}
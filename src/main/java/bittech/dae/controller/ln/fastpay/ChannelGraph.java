@@ -0,0 +1,425 @@
+package bittech.dae.controller.ln.fastpay;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import bittech.dae.controller.ln.lnd.LndCommandsExecutor;
+import bittech.lib.commands.ln.channels.DescribeGraphResponse;
+import bittech.lib.commands.ln.channels.DescribeGraphResponse.ChannelInGraph;
+import bittech.lib.commands.ln.channels.DescribeGraphResponse.NodeInGraph;
+import bittech.lib.commands.ln.channels.DescribeGraphResponse.RoutingPolicy;
+import bittech.lib.utils.logs.Log;
+import lnrpc.Rpc;
+
+/**
+ * Compact, index based representation of channels graph. Nodes are interned to
+ * int ids and directed channels (edges) are stored in CSR layout: outgoing edges
+ * of node n are at indexes edgeStart[n] .. edgeStart[n + 1] - 1 of parallel
+ * primitive arrays. Edge from node A to node B carries routing policy announced
+ * by A, so it describes the cost of forwarding from A to B.
+ *
+ * Topology is fixed after build, but edge policies can be changed in place -
+ * callers are responsible for synchronization (see GraphManager). New channels
+ * and nodes are added by building a new graph, see withAdded().
+ */
+public class ChannelGraph {
+
+	final String[] nodeIds;
+	final String[] nodeAliases;
+	private final Map<String, Integer> nodeIndex;
+
+	final int[] edgeStart;
+	final int[] edgePeer;
+	final int[] edgeTwin; // the same channel in opposite direction
+	final long[] edgeCapacitySat;
+	final long[] edgeFeeBaseMsat;
+	final long[] edgeFeeRateMilliMsat;
+	final int[] edgeTimeLockDelta;
+	final long[] edgeMinHtlcMsat;
+	final long[] edgeChannelId;
+	final BitSet edgeDisabled;
+	final BitSet edgeFromNode2; // edge goes from node2 to node1 of the channel
+
+	// short channel ids sorted, with one of two edges of each channel
+	private final long[] channelIds;
+	private final int[] channelEdges;
+
+	/**
+	 * Channel announced after graph was built. Policies are indexed by
+	 * direction, 0 is policy of node1 (the one with lower id)
+	 */
+	static final class AddedChannel {
+		final long channelId;
+		final long capacitySat;
+		final String node1Id;
+		final String node2Id;
+		final Rpc.RoutingPolicy[] policies = new Rpc.RoutingPolicy[2];
+
+		AddedChannel(long channelId, long capacitySat, String nodeId, String peerId) {
+			this.channelId = channelId;
+			this.capacitySat = capacitySat;
+			boolean first = nodeId.compareTo(peerId) < 0;
+			this.node1Id = first ? nodeId : peerId;
+			this.node2Id = first ? peerId : nodeId;
+		}
+
+		void setPolicy(String advertisingNode, Rpc.RoutingPolicy policy) {
+			policies[node1Id.equals(advertisingNode) ? 0 : 1] = policy;
+		}
+	}
+
+	private ChannelGraph(String[] nodeIds, String[] nodeAliases, Map<String, Integer> nodeIndex, int[] edgeStart,
+			int edgesCount) {
+		this.nodeIds = nodeIds;
+		this.nodeAliases = nodeAliases;
+		this.nodeIndex = nodeIndex;
+		this.edgeStart = edgeStart;
+		this.edgePeer = new int[edgesCount];
+		this.edgeTwin = new int[edgesCount];
+		this.edgeCapacitySat = new long[edgesCount];
+		this.edgeFeeBaseMsat = new long[edgesCount];
+		this.edgeFeeRateMilliMsat = new long[edgesCount];
+		this.edgeTimeLockDelta = new int[edgesCount];
+		this.edgeMinHtlcMsat = new long[edgesCount];
+		this.edgeChannelId = new long[edgesCount];
+		this.edgeDisabled = new BitSet(edgesCount);
+		this.edgeFromNode2 = new BitSet(edgesCount);
+		this.channelIds = new long[edgesCount / 2];
+		this.channelEdges = new int[edgesCount / 2];
+	}
+
+	public static ChannelGraph build(DescribeGraphResponse sourceGraph) {
+
+		int nodesCount = sourceGraph.nodes.size();
+		String[] nodeIds = new String[nodesCount];
+		String[] nodeAliases = new String[nodesCount];
+		Map<String, Integer> nodeIndex = new HashMap<String, Integer>(nodesCount * 2);
+
+		int n = 0;
+		for (NodeInGraph node : sourceGraph.nodes) {
+			if (nodeIndex.putIfAbsent(node.id, n) != null) {
+				continue;
+			}
+			nodeIds[n] = node.id;
+			nodeAliases[n] = node.alias;
+			n++;
+		}
+		if (n != nodesCount) {
+			nodeIds = Arrays.copyOf(nodeIds, n);
+			nodeAliases = Arrays.copyOf(nodeAliases, n);
+		}
+
+		// First pass: resolve endpoints and count outgoing edges per node
+		int channelsCount = sourceGraph.channels.size();
+		int[] node1 = new int[channelsCount];
+		int[] node2 = new int[channelsCount];
+		int[] degree = new int[n + 1];
+		int c = 0;
+		for (ChannelInGraph channel : sourceGraph.channels) {
+			Integer n1 = nodeIndex.get(channel.node1Id);
+			if (n1 == null) {
+				Log.build().param("nodeId", channel.node1Id).event("WARNING: No such node in graph");
+				node1[c++] = -1;
+				continue;
+			}
+			Integer n2 = nodeIndex.get(channel.node2Id);
+			if (n2 == null) {
+				Log.build().param("nodeId", channel.node2Id).event("WARNING: No such node in graph");
+				node1[c++] = -1;
+				continue;
+			}
+			node1[c] = n1;
+			node2[c] = n2;
+			degree[n1]++;
+			degree[n2]++;
+			c++;
+		}
+
+		int[] edgeStart = new int[n + 1];
+		for (int i = 0; i < n; i++) {
+			edgeStart[i + 1] = edgeStart[i] + degree[i];
+		}
+
+		ChannelGraph graph = new ChannelGraph(nodeIds, nodeAliases, nodeIndex, edgeStart, edgeStart[n]);
+
+		// Second pass: fill edges
+		int[] fill = Arrays.copyOf(edgeStart, n);
+		int channel = 0;
+		c = 0;
+		for (ChannelInGraph ch : sourceGraph.channels) {
+			int n1 = node1[c];
+			int n2 = node2[c];
+			c++;
+			if (n1 < 0) {
+				continue;
+			}
+			long channelId = LndCommandsExecutor.channelIdToLong(ch.id);
+
+			int e1 = fill[n1]++;
+			int e2 = fill[n2]++;
+			graph.setEdge(e1, n2, e2, channelId, ch.capacitySat, ch.node1_policy);
+			graph.setEdge(e2, n1, e1, channelId, ch.capacitySat, ch.node2_policy);
+			graph.edgeFromNode2.set(e2);
+
+			graph.channelIds[channel] = channelId;
+			graph.channelEdges[channel] = e1;
+			channel++;
+		}
+
+		graph.sortChannelIds();
+		return graph;
+	}
+
+	/**
+	 * Builds graph with channels and nodes of this graph plus the given ones, with
+	 * no call to lnd. Policies are copied, so this graph cannot change while
+	 * building (see GraphManager)
+	 *
+	 * @param addedNodes node id to alias
+	 */
+	ChannelGraph withAdded(Collection<AddedChannel> addedChannels, Map<String, String> addedNodes) {
+		int oldNodes = nodeIds.length;
+		Map<String, Integer> newIndex = new HashMap<String, Integer>(nodeIndex);
+		String[] newIds = Arrays.copyOf(nodeIds, oldNodes + addedNodes.size() + addedChannels.size() * 2);
+		String[] newAliases = Arrays.copyOf(nodeAliases, newIds.length);
+		int n = oldNodes;
+		for (Map.Entry<String, String> node : addedNodes.entrySet()) {
+			Integer index = newIndex.get(node.getKey());
+			if (index != null) {
+				newAliases[index] = node.getValue();
+				continue;
+			}
+			newIndex.put(node.getKey(), n);
+			newIds[n] = node.getKey();
+			newAliases[n] = node.getValue();
+			n++;
+		}
+
+		// Nodes of new channels may be not announced yet, they are added without
+		// alias
+		int channelsCount = addedChannels.size();
+		int[] node1 = new int[channelsCount];
+		int[] node2 = new int[channelsCount];
+		int c = 0;
+		for (AddedChannel ch : addedChannels) {
+			for (String id : new String[] { ch.node1Id, ch.node2Id }) {
+				if (!newIndex.containsKey(id)) {
+					newIndex.put(id, n);
+					newIds[n] = id;
+					newAliases[n] = "";
+					n++;
+				}
+			}
+			node1[c] = newIndex.get(ch.node1Id);
+			node2[c] = newIndex.get(ch.node2Id);
+			c++;
+		}
+		newIds = Arrays.copyOf(newIds, n);
+		newAliases = Arrays.copyOf(newAliases, n);
+
+		int[] degree = new int[n];
+		for (int i = 0; i < oldNodes; i++) {
+			degree[i] = edgeStart[i + 1] - edgeStart[i];
+		}
+		for (c = 0; c < channelsCount; c++) {
+			degree[node1[c]]++;
+			degree[node2[c]]++;
+		}
+		int[] newStart = new int[n + 1];
+		for (int i = 0; i < n; i++) {
+			newStart[i + 1] = newStart[i] + degree[i];
+		}
+
+		ChannelGraph graph = new ChannelGraph(newIds, newAliases, newIndex, newStart, newStart[n]);
+
+		// Old edges keep their order at the beginning of node range
+		int[] moved = new int[edgesCount()];
+		for (int i = 0; i < oldNodes; i++) {
+			for (int e = edgeStart[i]; e < edgeStart[i + 1]; e++) {
+				moved[e] = newStart[i] + e - edgeStart[i];
+			}
+		}
+		for (int e = 0; e < moved.length; e++) {
+			int m = moved[e];
+			graph.edgePeer[m] = edgePeer[e];
+			graph.edgeTwin[m] = moved[edgeTwin[e]];
+			graph.edgeCapacitySat[m] = edgeCapacitySat[e];
+			graph.edgeFeeBaseMsat[m] = edgeFeeBaseMsat[e];
+			graph.edgeFeeRateMilliMsat[m] = edgeFeeRateMilliMsat[e];
+			graph.edgeTimeLockDelta[m] = edgeTimeLockDelta[e];
+			graph.edgeMinHtlcMsat[m] = edgeMinHtlcMsat[e];
+			graph.edgeChannelId[m] = edgeChannelId[e];
+			graph.edgeDisabled.set(m, edgeDisabled.get(e));
+			graph.edgeFromNode2.set(m, edgeFromNode2.get(e));
+		}
+		for (int i = 0; i < channelEdges.length; i++) {
+			graph.channelIds[i] = channelIds[i];
+			graph.channelEdges[i] = moved[channelEdges[i]];
+		}
+
+		int[] fill = new int[n];
+		for (int i = 0; i < n; i++) {
+			fill[i] = i < oldNodes ? newStart[i] + edgeStart[i + 1] - edgeStart[i] : newStart[i];
+		}
+		int channel = channelEdges.length;
+		c = 0;
+		for (AddedChannel ch : addedChannels) {
+			int n1 = node1[c];
+			int n2 = node2[c];
+			c++;
+			int e1 = fill[n1]++;
+			int e2 = fill[n2]++;
+			graph.setEdge(e1, n2, e2, ch.channelId, ch.capacitySat, ch.policies[0]);
+			graph.setEdge(e2, n1, e1, ch.channelId, ch.capacitySat, ch.policies[1]);
+			graph.edgeFromNode2.set(e2);
+
+			graph.channelIds[channel] = ch.channelId;
+			graph.channelEdges[channel] = e1;
+			channel++;
+		}
+
+		graph.sortChannelIds();
+		return graph;
+	}
+
+	private void setEdge(int e, int peer, int twin, long channelId, long capacitySat, Rpc.RoutingPolicy policy) {
+		edgePeer[e] = peer;
+		edgeTwin[e] = twin;
+		edgeChannelId[e] = channelId;
+		edgeCapacitySat[e] = capacitySat;
+		if (policy == null) {
+			edgeDisabled.set(e);
+			return;
+		}
+		updatePolicy(e, policy.getFeeBaseMsat(), policy.getFeeRateMilliMsat(), policy.getTimeLockDelta(),
+				policy.getMinHtlc(), policy.getDisabled());
+	}
+
+	private void setEdge(int e, int peer, int twin, long channelId, long capacitySat, RoutingPolicy policy) {
+		edgePeer[e] = peer;
+		edgeTwin[e] = twin;
+		edgeChannelId[e] = channelId;
+		edgeCapacitySat[e] = capacitySat;
+		if (policy == null) {
+			edgeDisabled.set(e);
+			return;
+		}
+		edgeFeeBaseMsat[e] = policy.fee_base_msat;
+		edgeFeeRateMilliMsat[e] = policy.fee_rate_milli_msat;
+		edgeTimeLockDelta[e] = (int) policy.time_lock_delta;
+		edgeMinHtlcMsat[e] = policy.min_htlc;
+		edgeDisabled.set(e, policy.disabled);
+	}
+
+	private void sortChannelIds() {
+		long[] packed = new long[channelIds.length];
+		Integer[] order = new Integer[channelIds.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> Long.compare(channelIds[a], channelIds[b]));
+		int[] edges = new int[channelEdges.length];
+		for (int i = 0; i < order.length; i++) {
+			packed[i] = channelIds[order[i]];
+			edges[i] = channelEdges[order[i]];
+		}
+		System.arraycopy(packed, 0, channelIds, 0, packed.length);
+		System.arraycopy(edges, 0, channelEdges, 0, edges.length);
+	}
+
+	void updatePolicy(int edge, long feeBaseMsat, long feeRateMilliMsat, int timeLockDelta, long minHtlcMsat,
+			boolean disabled) {
+		edgeFeeBaseMsat[edge] = feeBaseMsat;
+		edgeFeeRateMilliMsat[edge] = feeRateMilliMsat;
+		edgeTimeLockDelta[edge] = timeLockDelta;
+		edgeMinHtlcMsat[edge] = minHtlcMsat;
+		edgeDisabled.set(edge, disabled);
+	}
+
+	void closeChannel(int edge) {
+		edgeDisabled.set(edge);
+		edgeDisabled.set(edgeTwin[edge]);
+	}
+
+	void updateAlias(int node, String alias) {
+		nodeAliases[node] = alias;
+	}
+
+	/**
+	 * @return 0 if edge goes from node1 to node2 of the channel, 1 otherwise
+	 */
+	public int edgeDirection(int edge) {
+		return edgeFromNode2.get(edge) ? 1 : 0;
+	}
+
+	/**
+	 * @return node the edge goes out of
+	 */
+	public int edgeSource(int edge) {
+		return edgePeer[edgeTwin[edge]];
+	}
+
+	/**
+	 * @return node index or -1 if there is no such node in graph
+	 */
+	public int nodeIndex(String nodeId) {
+		Integer index = nodeIndex.get(nodeId);
+		return index == null ? -1 : index;
+	}
+
+	public String nodeId(int node) {
+		return nodeIds[node];
+	}
+
+	public int nodesCount() {
+		return nodeIds.length;
+	}
+
+	public int edgesCount() {
+		return edgePeer.length;
+	}
+
+	/**
+	 * @return one of two edges of channel with given short channel id or -1 if
+	 *         not found
+	 */
+	public int findChannelEdge(long channelId) {
+		int i = Arrays.binarySearch(channelIds, channelId);
+		return i < 0 ? -1 : channelEdges[i];
+	}
+
+	/**
+	 * @return outgoing edge of given node with given short channel id or -1 if not
+	 *         found
+	 */
+	public int findEdge(int node, long channelId) {
+		int e = findChannelEdge(channelId);
+		if (e < 0) {
+			return -1;
+		}
+		if (e >= edgeStart[node] && e < edgeStart[node + 1]) {
+			return e;
+		}
+		int twin = edgeTwin[e];
+		if (twin >= edgeStart[node] && twin < edgeStart[node + 1]) {
+			return twin;
+		}
+		return -1;
+	}
+
+	/**
+	 * Fee charged by edge source node for forwarding given amount through this
+	 * edge
+	 */
+	public long feeMsat(int edge, long amountMsat) {
+		return edgeFeeBaseMsat[edge] + (amountMsat * edgeFeeRateMilliMsat[edge]) / 1000000;
+	}
+
+	public String edgeChannelIdAsString(int edge) {
+		return LndCommandsExecutor.channelIdFromLong(edgeChannelId[edge]);
+	}
+
+}
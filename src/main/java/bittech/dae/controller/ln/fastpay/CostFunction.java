@@ -0,0 +1,20 @@
+package bittech.dae.controller.ln.fastpay;
+
+/**
+ * Weight of a single edge used by PathFinder. Must not be negative.
+ */
+public interface CostFunction {
+
+	public static final long UNUSABLE = Long.MAX_VALUE;
+
+	/**
+	 * @param graph         channels graph
+	 * @param edge          edge index in graph
+	 * @param amountMsat    amount to be sent through the edge
+	 * @param feeMsat       fee charged by edge source node for forwarding
+	 * @param timeLockDelta CLTV delta added by edge source node
+	 * @return cost of using the edge or UNUSABLE if edge should not be used
+	 */
+	public long edgeCost(ChannelGraph graph, int edge, long amountMsat, long feeMsat, int timeLockDelta);
+
+}
@@ -1,10 +1,23 @@
 package bittech.dae.controller.ln.fastpay;
 
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang3.StringUtils;
 
+import bittech.dae.controller.ln.commands.DecodeInvoiceWithAddrCommand;
+import bittech.dae.controller.ln.listeners.GraphTopologyChangedEvent;
+import bittech.dae.controller.ln.lnd.ChainTip;
+import bittech.dae.controller.ln.lnd.DecodedInvoiceCache;
 import bittech.dae.controller.ln.lnd.LndCommandsExecutor;
 import bittech.lib.commands.ln.GetInfoCommand;
 import bittech.lib.commands.ln.channels.BuildRouteCommand;
@@ -13,37 +26,60 @@ import bittech.lib.commands.ln.channels.DescribeGraphCommand;
 import bittech.lib.commands.ln.channels.FindFastRouteCommand;
 import bittech.lib.commands.ln.channels.FindRouteResponse;
 import bittech.lib.commands.ln.channels.PayToRouteCommand;
-import bittech.lib.commands.ln.invoices.DecodeInvoiceCommand;
+import bittech.lib.commands.ln.invoices.DecodeInvoiceResponse;
 import bittech.lib.commands.ln.invoices.FastPayCommand;
 import bittech.lib.commands.ln.invoices.PayInvoiceResponse;
+import bittech.lib.manager.ManagerDataProvider;
+import bittech.lib.manager.commands.GetNodeDetailsResponse;
 import bittech.lib.protocol.Command;
 import bittech.lib.protocol.ErrorResponse;
 import bittech.lib.protocol.Listener;
 import bittech.lib.utils.Btc;
+import bittech.lib.utils.Config;
 import bittech.lib.utils.Require;
 import bittech.lib.utils.exceptions.StoredException;
 import bittech.lib.utils.logs.Log;
+import lnrpc.Rpc;
+import lnrpc.Rpc.GraphTopologyUpdate;
 
-public class FastPayListener implements Listener {
+public class FastPayListener implements Listener, ManagerDataProvider, GraphTopologyChangedEvent, AutoCloseable {
+
+	private static final long FULL_RESYNC_MINUTES = 30;
+	private static final long TOPOLOGY_MERGE_MINUTES = 5;
+	private static final int SINGLE_PATH_TRIES = 5; // then payment is split
+	private static final int SINGLE_PATH_ONLY_TRIES = 20; // invoice without payment_addr
 
 	private final LndCommandsExecutor executor;
+	private final ChainTip chainTip;
+	private final DecodedInvoiceCache<DecodeInvoiceWithAddrCommand> decodedInvoices;
 	private final GraphManager graphManager;
 	private final String myNodeId;
+	private final ScheduledExecutorService graphResync = Executors.newSingleThreadScheduledExecutor();
+	// Shards of multi path payments. Payment takes permits for its whole split
+	// before sending, so shards never wait in queue for a thread
+	private final int shardWorkers = Require.inRange(
+			Config.getInstance().getEntryOrDefault("fastPayShardWorkers", Integer.class, 50),
+			MultiPathPayment.MAX_SHARDS, 10000, "fastPayShardWorkers");
+	private final Semaphore shardPermits = new Semaphore(shardWorkers);
+	private final ThreadPoolExecutor shardsExecutor = shardsExecutor(shardWorkers);
+	private final PaymentEngine paymentEngine = new PaymentEngine(
+			Config.getInstance().getEntryOrDefault("fastPayWorkers", Integer.class, 200),
+			Config.getInstance().getEntryOrDefault("fastPayQueueSize", Integer.class, 1000));
+	private volatile long lastFullResync;
+
+	// Called when channel balances changed, e.g. ChannelsListener.requestRefresh
+	private final Runnable balanceChanged;
 
-	public FastPayListener(final LndCommandsExecutor executor) {
+	public FastPayListener(final LndCommandsExecutor executor, final ChainTip chainTip, final Runnable balanceChanged) {
 		try {
 			this.executor = Require.notNull(executor, "executor");
+			this.chainTip = Require.notNull(chainTip, "chainTip");
+			this.balanceChanged = Require.notNull(balanceChanged, "balanceChanged");
+			this.decodedInvoices = new DecodedInvoiceCache<DecodeInvoiceWithAddrCommand>(
+					DecodeInvoiceWithAddrCommand::new, executor::execute);
 			graphManager = new GraphManager();
 
-			{
-				DescribeGraphCommand cmd = new DescribeGraphCommand();
-				executor.execute(cmd);
-				if (cmd.getError() != null) {
-					throw new StoredException("Cannot execute DescribeGraphCommand", cmd.getError().toException());
-				}
-				graphManager.update(cmd.getResponse());
-				Log.build().param("nodes", graphManager.nodes.size()).event("Graphs loaded to manager");
-			}
+			loadGraph();
 
 			{
 				GetInfoCommand cmd = new GetInfoCommand();
@@ -57,11 +93,73 @@ public class FastPayListener implements Listener {
 			throw new StoredException("Cannot initialize FastPayListener", ex);
 		}
 
+		graphResync.scheduleWithFixedDelay(() -> {
+			try {
+				long sinceLast = System.currentTimeMillis() - lastFullResync;
+				if (sinceLast >= TimeUnit.MINUTES.toMillis(FULL_RESYNC_MINUTES)) {
+					loadGraph();
+				} else {
+					graphManager.mergeAdded();
+				}
+			} catch (Exception ex) {
+				new StoredException("Graph resync failed", ex);
+			}
+		}, TOPOLOGY_MERGE_MINUTES, TOPOLOGY_MERGE_MINUTES, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Queue only covers worker that released its permit but did not take the next
+	 * task yet
+	 */
+	private static ThreadPoolExecutor shardsExecutor(int workersCount) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(workersCount, workersCount, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(workersCount), new ThreadPoolExecutor.AbortPolicy());
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	private void loadGraph() {
+		graphManager.beginResync();
+		DescribeGraphCommand cmd = new DescribeGraphCommand();
+		executor.execute(cmd);
+		if (cmd.getError() != null) {
+			graphManager.cancelResync();
+			throw new StoredException("Cannot execute DescribeGraphCommand", cmd.getError().toException());
+		}
+		graphManager.update(cmd.getResponse());
+		lastFullResync = System.currentTimeMillis();
+		Log.build().param("nodes", graphManager.getNodesCount()).event("Graphs loaded to manager");
+	}
+
+	@Override
+	public void onGraphTopologyChanged(GraphTopologyUpdate update) {
+		graphManager.update(update);
+		for (Rpc.ClosedChannelUpdate closed : update.getClosedChansList()) {
+			chainTip.offerHeight(closed.getClosedHeight());
+		}
+	}
+
+	/**
+	 * Full graph is reloaded in background - after resubscribe only new updates
+	 * are received
+	 */
+	@Override
+	public void onGraphUpdatesMissed() {
+		graphResync.execute(() -> {
+			try {
+				loadGraph();
+			} catch (Exception ex) {
+				new StoredException("Graph resync after missed updates failed", ex);
+			}
+		});
 	}
 
+	/**
+	 * Payment runs on PaymentEngine worker. Caller waits until it settles, so
+	 * command response is sent with final result.
+	 */
 	public void pay(final String invoice, final Btc amount, final boolean feeIncluded) {
-		DecodeInvoiceCommand decodeInvoieCmd = new DecodeInvoiceCommand(invoice);
-		executor.execute(decodeInvoieCmd);
+		DecodeInvoiceWithAddrCommand decodeInvoieCmd = decodedInvoices.decode(invoice);
 		if (decodeInvoieCmd.getError() != null) {
 			throw new StoredException("DecodeInvoiceCommand failed", decodeInvoieCmd.getError().toException());
 		}
@@ -81,56 +179,86 @@ public class FastPayListener implements Listener {
 		}
 
 		Btc amountToPay = Btc.HasValue(amount) ? amount : decodeInvoieCmd.getResponse().amount;
-		
+
+		CompletableFuture<Void> result = paymentEngine.submit(decodeInvoieCmd.getResponse().payment_hash,
+				() -> execute(decodeInvoieCmd, amountToPay));
+		try {
+			result.get();
+		} catch (ExecutionException ex) {
+			throw new StoredException("Fast pay failed", ex.getCause());
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new StoredException("Fast pay interrupted", ex);
+		} finally {
+			balanceChanged.run(); // failed payment could still move some shards
+		}
+	}
+
+	private void execute(DecodeInvoiceWithAddrCommand decodeInvoieCmd, Btc amountToPay) {
 		Set<String> excludedChannels = new HashSet<String>();
-		
-		for(int i = 0; i<20; i++) {
-		
+
+		boolean multiPath = !StringUtils.isEmpty(decodeInvoieCmd.paymentAddr);
+		if (payAtOnce(decodeInvoieCmd.getResponse(), amountToPay, excludedChannels, multiPath)) {
+			return;
+		}
+
+		Log.build().param("amount", amountToPay).event("Splitting payment into multiple paths");
+		new MultiPathPayment(executor, graphManager, shardsExecutor, shardPermits, (route) -> addExpiryToRoute(route,
+				decodeInvoieCmd.getResponse().cltv_expiry), myNodeId, decodeInvoieCmd.getResponse(),
+				decodeInvoieCmd.paymentAddr, amountToPay, excludedChannels).pay();
+	}
+
+	/**
+	 * @param multiPath if payment can be split when single route fails. If not,
+	 *                  exception with the last failure is thrown instead
+	 * @return false if no single route can carry whole amount
+	 */
+	private boolean payAtOnce(DecodeInvoiceResponse decodedInvoice, Btc amountToPay, Set<String> excludedChannels,
+			boolean multiPath) {
+		int tries = multiPath ? SINGLE_PATH_TRIES : SINGLE_PATH_ONLY_TRIES;
+		ErrorResponse lastFailure = null;
+		for (int i = 0; i < tries; i++) {
+
 			bittech.lib.commands.ln.channels.Route route = graphManager.findRoute(myNodeId,
-					decodeInvoieCmd.getResponse().destination, amountToPay, excludedChannels);
-	
-			addExpiryToRoute(route, decodeInvoieCmd.getResponse().cltv_expiry);
-	
-			{
-				PayToRouteCommand cmd = new PayToRouteCommand(decodeInvoieCmd.getResponse().payment_hash, route);
-				executor.execute(cmd);
+					decodedInvoice.destination, amountToPay, excludedChannels);
+			if (route == null) {
+				break;
+			}
 
-				if (cmd.getError() != null) {
-					// unable to route payment to destination: TemporaryChannelFailure: Link 573916:1745:0 has insufficient capacity: need 101000 mSAT, has 0 mSAT
-					ErrorResponse insufRes = cmd.getError().findWithMessage("has insufficient capacity");
-					if(insufRes != null) {
-						String channelId = StringUtils.substringBetween(insufRes.message, "Link ", " has");
-						excludedChannels.add(channelId);
-						continue;
-					}
-					
-					ErrorResponse incorrectCltv = cmd.getError().findWithMessage("IncorrectCltvExpiry");
-					if(incorrectCltv != null) {
-						String channelId = StringUtils.substringBetween(incorrectCltv.message, "(lnwire.ShortChannelID) ", ",");
-						excludedChannels.add(channelId);
-						continue;
-					}
-					
-					Log.build().param("route", cmd.getRequest().route).event("Exception thrown for route");
-					throw new StoredException("PayToRouteCommand failed", cmd.getError().toException());
+			addExpiryToRoute(route, decodedInvoice.cltv_expiry);
+
+			PayToRouteCommand cmd = new PayToRouteCommand(decodedInvoice.payment_hash, route);
+			executor.execute(cmd);
+
+			if (cmd.getError() != null) {
+				String failedChannel = PaymentFailures.failedChannel(cmd.getError());
+				if (failedChannel != null) {
+					graphManager.getLiquidity().reportFailure(myNodeId, route, failedChannel);
+					excludedChannels.add(failedChannel);
+					lastFailure = cmd.getError();
+					continue;
 				}
-				
-				
-				return;
+
+				Log.build().param("route", cmd.getRequest().route).event("Exception thrown for route");
+				throw new StoredException("PayToRouteCommand failed", cmd.getError().toException());
 			}
+
+			graphManager.getLiquidity().reportSuccess(myNodeId, route);
+			return true;
 		}
-		throw new StoredException("Fast pay failed", new Exception("Couldn't find rout after 10 tries"));
+		if (multiPath) {
+			return false;
+		}
+		if (lastFailure != null) {
+			throw new StoredException("Fast pay failed. Invoice does not support multi-path payments",
+					lastFailure.toException());
+		}
+		throw new StoredException("Fast pay failed",
+				new Exception("No route found and invoice does not support multi-path payments"));
 	}
 
 	private void addExpiryToRoute(bittech.lib.commands.ln.channels.Route route, int receiverExpiry) {
-
-		GetInfoCommand getInfoCmd = new GetInfoCommand();
-		executor.execute(getInfoCmd);
-		if (getInfoCmd.getError() != null) {
-			throw new StoredException("GetInfoCommand failed", getInfoCmd.getError().toException());
-		}
-
-		GraphManager.addExpiry(route, getInfoCmd.getResponse().block_height, receiverExpiry);
+		GraphManager.addExpiry(route, chainTip.getHeight(), receiverExpiry);
 	}
 
 	@Override
@@ -183,4 +311,28 @@ public class FastPayListener implements Listener {
 
 	}
 
+	@Override
+	public void addCustomData(GetNodeDetailsResponse details) {
+		int queued = 0;
+		int inFlight = 0;
+		List<PaymentEngine.Payment> payments = paymentEngine.getPaymentsInProgress();
+		for (PaymentEngine.Payment payment : payments) {
+			if (payment.status == PaymentEngine.Status.QUEUED) {
+				queued++;
+			} else if (payment.status == PaymentEngine.Status.IN_FLIGHT) {
+				inFlight++;
+			}
+		}
+		details.summary.put("fast_pay_queued", "" + queued);
+		details.summary.put("fast_pay_in_flight", "" + inFlight);
+		details.details.put("fast_payments", payments);
+	}
+
+	@Override
+	public void close() {
+		graphResync.shutdownNow();
+		paymentEngine.close();
+		shardsExecutor.shutdownNow();
+	}
+
 }
@@ -1,299 +1,381 @@
 package bittech.dae.controller.ln.fastpay;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import bittech.dae.controller.ln.fastpay.Route.GraphChannel;
 import bittech.dae.controller.ln.fastpay.Route.GraphNode;
+import bittech.dae.controller.ln.lnd.LndCommandsExecutor;
 import bittech.lib.commands.ln.channels.DescribeGraphResponse;
-import bittech.lib.commands.ln.channels.DescribeGraphResponse.ChannelInGraph;
-import bittech.lib.commands.ln.channels.DescribeGraphResponse.NodeInGraph;
 import bittech.lib.commands.ln.channels.Hop;
 import bittech.lib.utils.Btc;
-import bittech.lib.utils.Require;
 import bittech.lib.utils.exceptions.StoredException;
 import bittech.lib.utils.logs.Log;
+import lnrpc.Rpc;
 
 public class GraphManager {
 
-	public Map<String, GraphNode> nodes = new HashMap<String, GraphNode>();
-	public Set<GraphChannel> bannedChannels = new HashSet<GraphChannel>();
+	private volatile ChannelGraph graph = null;
+	private final LiquidityModel liquidity = new LiquidityModel();
+	private volatile PathFinder pathFinder = new PathFinder(new LiquidityCostFunction(liquidity));
+	public Set<Long> bannedChannels = Collections.synchronizedSet(new HashSet<Long>());
+
+	// Route searches hold read lock, so they see policies unchanged during search
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	// Updates received while full graph is being downloaded. Replayed on new graph
+	private List<Rpc.GraphTopologyUpdate> resyncUpdates = null;
+	// Channels and nodes not known in current graph, merged by mergeAdded()
+	private final Map<Long, ChannelGraph.AddedChannel> addedChannels = new LinkedHashMap<Long, ChannelGraph.AddedChannel>();
+	private final Map<String, String> addedNodes = new LinkedHashMap<String, String>(); // id, alias
+
+	/**
+	 * Call before downloading full graph, so updates received in meantime are not
+	 * lost
+	 */
+	public void beginResync() {
+		lock.writeLock().lock();
+		try {
+			resyncUpdates = new ArrayList<Rpc.GraphTopologyUpdate>();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
 
-	public void update(DescribeGraphResponse sourceGraph) {
+	public void cancelResync() {
+		lock.writeLock().lock();
+		try {
+			resyncUpdates = null;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
 
-		for (NodeInGraph node : sourceGraph.nodes) {
+	public void update(DescribeGraphResponse sourceGraph) {
+		ChannelGraph newGraph = ChannelGraph.build(sourceGraph);
+		lock.writeLock().lock();
+		try {
+			addedChannels.clear();
+			addedNodes.clear();
+			if (resyncUpdates != null) {
+				for (Rpc.GraphTopologyUpdate update : resyncUpdates) {
+					applyUpdate(newGraph, update);
+				}
+				resyncUpdates = null;
+			}
+			graph = newGraph;
+			mergeAddedLocked();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
 
-			GraphNode graphNode = new GraphNode();
-			graphNode.id = node.id;
-			graphNode.alias = node.alias;
-			nodes.put(graphNode.id, graphNode);
+	public void update(Rpc.GraphTopologyUpdate update) {
+		lock.writeLock().lock();
+		try {
+			if (resyncUpdates != null) {
+				resyncUpdates.add(update);
+			}
+			ChannelGraph g = graph;
+			if (g != null) {
+				applyUpdate(g, update);
+			}
+		} finally {
+			lock.writeLock().unlock();
 		}
+	}
 
-		for (ChannelInGraph channel : sourceGraph.channels) {
+	/**
+	 * Builds new graph with channels and nodes announced since the last merge.
+	 * Cheaper than full DescribeGraph, called periodically so new topology is
+	 * not rebuilt on every update
+	 */
+	public void mergeAdded() {
+		lock.writeLock().lock();
+		try {
+			mergeAddedLocked();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
 
-//			System.out.println(JsonBuilder.build().toJson(channel));
+	private void mergeAddedLocked() {
+		ChannelGraph g = graph;
+		if (g == null || (addedChannels.isEmpty() && addedNodes.isEmpty())) {
+			return;
+		}
+		graph = g.withAdded(addedChannels.values(), addedNodes);
+		Log.build().param("channels", addedChannels.size()).param("nodes", addedNodes.size())
+				.event("New channels and nodes merged into graph");
+		addedChannels.clear();
+		addedNodes.clear();
+	}
 
-			GraphNode node1 = nodes.get(channel.node1Id);
-			if (node1 == null) {
-				System.out.println("WARNING: No such node: " + channel.node1Id);
+	private void applyUpdate(ChannelGraph g, Rpc.GraphTopologyUpdate update) {
+		for (Rpc.ChannelEdgeUpdate channelUpdate : update.getChannelUpdatesList()) {
+			int e = g.findChannelEdge(channelUpdate.getChanId());
+			if (e < 0) {
+				addChannel(channelUpdate);
 				continue;
 			}
-
-			GraphNode node2 = nodes.get(channel.node2Id);
-
-			if (node2 == null) {
-				System.out.println("WARNING: No such node: " + channel.node1Id);
-				continue;
+			if (!g.nodeIds[g.edgeSource(e)].equals(channelUpdate.getAdvertisingNode())) {
+				e = g.edgeTwin[e];
 			}
-
-			{
-				GraphChannel ch = new GraphChannel();
-				ch.id = channel.id;
-				ch.peerId = channel.node2Id;
-				ch.feeBaseMsat = channel.node2_policy.fee_base_msat;
-				ch.feeRateMilliMsat = channel.node2_policy.fee_rate_milli_msat;
-				ch.timeLockDelta = channel.node2_policy.time_lock_delta;
-				ch.maxToTransfer = channel.capacitySat;
-				node1.channels.add(ch);
+			Rpc.RoutingPolicy policy = channelUpdate.getRoutingPolicy();
+			g.updatePolicy(e, policy.getFeeBaseMsat(), policy.getFeeRateMilliMsat(), policy.getTimeLockDelta(),
+					policy.getMinHtlc(), policy.getDisabled());
+		}
+		for (Rpc.ClosedChannelUpdate closedUpdate : update.getClosedChansList()) {
+			int e = g.findChannelEdge(closedUpdate.getChanId());
+			if (e >= 0) {
+				g.closeChannel(e);
+			} else {
+				addedChannels.remove(closedUpdate.getChanId());
 			}
-
-			{
-				GraphChannel ch = new GraphChannel();
-				ch.id = channel.id;
-				ch.peerId = channel.node1Id;
-				ch.feeBaseMsat = channel.node1_policy.fee_base_msat;
-				ch.feeRateMilliMsat = channel.node1_policy.fee_rate_milli_msat;
-				ch.timeLockDelta = channel.node1_policy.time_lock_delta;
-				ch.maxToTransfer = channel.capacitySat;
-				node2.channels.add(ch);
+		}
+		for (Rpc.NodeUpdate nodeUpdate : update.getNodeUpdatesList()) {
+			int node = g.nodeIndex(nodeUpdate.getIdentityKey());
+			if (node < 0) {
+				addedNodes.put(nodeUpdate.getIdentityKey(), nodeUpdate.getAlias());
+				continue;
 			}
+			g.updateAlias(node, nodeUpdate.getAlias());
+		}
+	}
 
+	private void addChannel(Rpc.ChannelEdgeUpdate channelUpdate) {
+		ChannelGraph.AddedChannel channel = addedChannels.get(channelUpdate.getChanId());
+		if (channel == null) {
+			channel = new ChannelGraph.AddedChannel(channelUpdate.getChanId(), channelUpdate.getCapacity(),
+					channelUpdate.getAdvertisingNode(), channelUpdate.getConnectingNode());
+			addedChannels.put(channelUpdate.getChanId(), channel);
 		}
+		channel.setPolicy(channelUpdate.getAdvertisingNode(), channelUpdate.getRoutingPolicy());
+	}
 
-		for (GraphNode node : nodes.values()) {
-			Collections.sort(node.channels);
+	public ChannelGraph getGraph() {
+		ChannelGraph g = graph;
+		if (g == null) {
+			throw new StoredException("Channels graph not loaded yet", null);
 		}
+		return g;
 	}
-	
+
+	public void setCostFunction(CostFunction costFunction) {
+		pathFinder = new PathFinder(costFunction);
+	}
+
+	public int getNodesCount() {
+		ChannelGraph g = graph;
+		return g == null ? 0 : g.nodesCount();
+	}
+
 	public bittech.lib.commands.ln.channels.Route findRoute(String from, String to, Btc amount, Set<String> excludeChannels) {
 		Log log = Log.build().param("from", from).param("to", to).param("amount", amount).param("excludeChannels", excludeChannels);
 		log.event("Truing to find route");
-		bittech.lib.commands.ln.channels.Route route = prvFindRoute(from, to, amount, excludeChannels);
+		bittech.lib.commands.ln.channels.Route route;
+		lock.readLock().lock();
+		try {
+			route = prvFindRoute(getGraph(), from, to, amount, excludeChannels);
+		} finally {
+			lock.readLock().unlock();
+		}
 		log.param("route", route).event("Route found");
 		return route;
 	}
-	
-	private bittech.lib.commands.ln.channels.Route prvFindRoute(String from, String to, Btc amount, Set<String> excludeChannels) {
-//		Log.build().param("from", from).param("to", to).param("amount", amount).event("Loking for route");
-		Route route = null;
-		int deph = 4;
-
-		Set<String> nodes1 = new HashSet<String>();
-		route = findRoute(from, to, amount.toSatRoundFloor(), new HashSet<String>(), excludeChannels, nodes1, deph);
-
-		if (route != null) {
-			route.firstNodId = from;
-			return convertRoute(route);
-		}
-
-		Set<String> nodes2 = new HashSet<String>();
-		route = findRoute(to, from, amount.toSatRoundFloor(), new HashSet<String>(), excludeChannels, nodes2, deph);
 
-		if (route != null) {
-			route.firstNodId = from;
-			return convertRoute(route);
+	private bittech.lib.commands.ln.channels.Route prvFindRoute(ChannelGraph g, String from, String to, Btc amount, Set<String> excludeChannels) {
+		int fromIndex = nodeIndex(g, from, "from");
+		int toIndex = g.nodeIndex(to);
+		if (toIndex < 0) {
+			return null;
 		}
 
-		// not found directly. Looking for common nodes
-
-		for (String node1 : nodes1) {
-			if (nodes2.contains(node1)) {
-				Route route1 = findRoute(from, node1, amount.toSatRoundFloor(), new HashSet<String>(), excludeChannels, null, deph);
-				Route route2 = findRoute(node1, to, amount.toSatRoundFloor(), new HashSet<String>(), excludeChannels, null, deph);
-				Require.notNull(route1, "route1");
-				Require.notNull(route2, "route2");
-				for (GraphChannel ch : route2.hops) {
-					route1.hops.add(ch);
-				}
-				return convertRoute(route1);
-			}
+		int[] hops = pathFinder.findPath(g, fromIndex, toIndex, amount.toMsat(), excludedEdges(g, excludeChannels));
+		if (hops == null) {
+			return null;
 		}
 
-		return null;
+		Route route = new Route(g, hops, amount);
+		route.firstNodId = from;
+		return convertRoute(route);
 	}
 
-	public Route findRoute(String from, String to, long amountLimitSat, Set<String> usedNodes, Set<String> excludedChannels, Set<String> savedNodes,
-			int deph) {
-
-//		System.out.println(from);
-
-		if (from.equals(to)) {
-			Route route = new Route(Btc.fromSat(amountLimitSat));
-			return route; // success
-		}
-
-		if (savedNodes != null) {
-			savedNodes.add(from);
-		}
-
-//		System.out.println("deph: " + deph);
-		if (deph <= 0) {
-			return null;
+	private BitSet excludedEdges(ChannelGraph g, Set<String> excludeChannels) {
+		BitSet excluded = new BitSet(g.edgesCount());
+		if (excludeChannels != null) {
+			for (String id : excludeChannels) {
+				excludeChannel(g, excluded, LndCommandsExecutor.channelIdToLong(id));
+			}
 		}
-
-		GraphNode node = nodes.get(from);
-		
-		if(node == null) {
-			throw new StoredException("Cannot find 'from' node: " + from, null);
+		synchronized (bannedChannels) {
+			for (Long id : bannedChannels) {
+				excludeChannel(g, excluded, id);
+			}
 		}
+		return excluded;
+	}
 
-		usedNodes.add(from);
-
-		for (GraphChannel channel : node.channels) {
-			if (channel.maxToTransfer < amountLimitSat) {
-				usedNodes.remove(from);
-				return null; // failed
-			}
-			if (usedNodes.contains(channel.peerId)) {
-				continue;
-			}
-			if (bannedChannels.contains(channel)) {
-				continue;
-			}
-			if(excludedChannels.contains(channel.id)) {
-				continue;
-			}
-			if(channel.maxToTransfer > 10000000) { // TODODL Temporary for debug purpose!
-				continue;
-			}
-			Route route = findRoute(channel.peerId, to, amountLimitSat, usedNodes, excludedChannels, savedNodes, deph - 1);
-			if (route == null) {
-				continue;
-			}
-			route.add(channel);
-			return route; // success
+	private static void excludeChannel(ChannelGraph g, BitSet excluded, long channelId) {
+		int e = g.findChannelEdge(channelId);
+		if (e >= 0) {
+			excluded.set(e);
+			excluded.set(g.edgeTwin[e]);
 		}
-		usedNodes.remove(from);
-		return null; // failed
+	}
 
+	/**
+	 * Amount that can likely go through the route starting at given node
+	 */
+	public long estimateLiquidityMsat(String sourceId, bittech.lib.commands.ln.channels.Route route) {
+		return liquidity.expectedLiquidityMsat(sourceId, route);
 	}
 
-	public Route findMostCapacious(String from, String to) {
-		Set<String> usedNodes = new HashSet<String>();
-		Route route = findMostCapacious(from, to, usedNodes, 10);
-		if (route != null) {
-			route.firstNodId = from;
-		}
-		return route;
+	public LiquidityModel getLiquidity() {
+		return liquidity;
 	}
 
-	public Route findMostCapacious(String from, String to, Set<String> usedNodes, int deph) {
+	public Route findMostCapacious(String from, String to) {
 		return null;
 	}
 
+	/**
+	 * Hop fee and time lock delta are the ones charged by hop node for forwarding
+	 * to the next hop, so they come from policy of the next edge. Last hop charges
+	 * nothing.
+	 */
 	private final bittech.lib.commands.ln.channels.Route convertRoute(Route route) {
-//		Log.build().param("route", route).event("Comverting route");
+		ChannelGraph g = route.graph;
 		bittech.lib.commands.ln.channels.Route retRoute = new bittech.lib.commands.ln.channels.Route();
-		retRoute.hops = new ArrayList<Hop>(route.hops.size());
-
-		ListIterator<GraphChannel> listIterator = route.hops.listIterator(route.hops.size());
+		retRoute.hops = new ArrayList<Hop>(route.hops.length);
 
-		Btc amountToForward = new Btc(route.amount);
+		long amountToForwardMsat = route.amount.toMsat();
 
-		int index = 0;
-		Btc lastFee = new Btc("0");
-		while (listIterator.hasPrevious()) {
-			GraphChannel channel = listIterator.previous();
+		for (int i = route.hops.length - 1; i >= 0; i--) {
+			int e = route.hops[i];
 			Hop hop = new Hop();
-			hop.amountToForward = new Btc(amountToForward);
-			hop.channelCapacity = Btc.fromSat(channel.maxToTransfer); // TODO: Change
-			hop.channelId = channel.id;
+			hop.amountToForward = Btc.fromMsat(amountToForwardMsat);
+			hop.channelCapacity = Btc.fromSat(g.edgeCapacitySat[e]);
+			hop.channelId = g.edgeChannelIdAsString(e);
 			hop.expiry = 12345;
-			hop.pubKey = channel.peerId;
-			hop.timeLockDelta = channel.timeLockDelta;
-			if (index != 0) {
-				hop.fee = Btc.fromMsat(channel.feeBaseMsat + (amountToForward.toMsat() * channel.feeRateMilliMsat) / 1000000);
-				lastFee = hop.fee;
-				amountToForward = amountToForward.add(lastFee);
+			hop.pubKey = g.nodeIds[g.edgePeer[e]];
+			if (i != route.hops.length - 1) {
+				int nextEdge = route.hops[i + 1];
+				long feeMsat = g.feeMsat(nextEdge, amountToForwardMsat);
+				hop.fee = Btc.fromMsat(feeMsat);
+				hop.timeLockDelta = g.edgeTimeLockDelta[nextEdge];
+				amountToForwardMsat += feeMsat;
 			} else {
 				hop.fee = new Btc("0");
+				hop.timeLockDelta = 0;
 			}
 			retRoute.hops.add(hop);
-			index++;
 		}
-	
+
 		Collections.reverse(retRoute.hops);
 
-		if(retRoute.hops.size() > 0) {
-			retRoute.totalAmount = amountToForward; //retRoute.hops.get(0).amountToForward.add(lastFee);
+		if (retRoute.hops.size() > 0) {
+			retRoute.totalAmount = Btc.fromMsat(amountToForwardMsat);
 			retRoute.totalFees = retRoute.totalAmount.sub(route.amount);
 		} else {
 			retRoute.totalFees = new Btc("0");
 		}
-		
+
 		return retRoute;
 	}
-	
-	
+
 	public static void addExpiry(bittech.lib.commands.ln.channels.Route route, int currentBlock, int receiverExpiry) {
-//		int index = route.hops.size() - 1;
 		int currentLock = currentBlock + receiverExpiry;
-//		route.totalTimeLock = blockHight + htlcDiff * (index + 1);
-		
-		ListIterator<Hop> listIterator = route.hops.listIterator(route.hops.size());
-		
-		int i = 0;
-		while (listIterator.hasPrevious()) {
-			Hop hop = listIterator.previous();
+
+		for (int i = route.hops.size() - 1; i >= 0; i--) {
+			Hop hop = route.hops.get(i);
 			hop.expiry = currentLock;
-			if(i!=0) {
+			if (i != route.hops.size() - 1) {
 				currentLock += hop.timeLockDelta;
 			}
-			i++;
 		}
-		
+
 		route.totalTimeLock = currentLock;
 
 	}
-	
+
 	// ----------------------- build channels (may be removed in the future)
 	public bittech.lib.commands.ln.channels.Route buildRoute(String firstNode, List<String> channelIds, Btc amount) {
-		Route route = new Route(amount);
-		GraphNode gn = nodes.get(firstNode);
-		if(gn == null) {
-			throw new StoredException("Cannot find node '" + firstNode + "' in channels graph", null);
+		lock.readLock().lock();
+		try {
+			return prvBuildRoute(getGraph(), firstNode, channelIds, amount);
+		} finally {
+			lock.readLock().unlock();
 		}
-		for(String chId : channelIds) {
+	}
 
-			GraphChannel ch = findChannel(gn, chId);
-			if(ch == null) {
+	private bittech.lib.commands.ln.channels.Route prvBuildRoute(ChannelGraph g, String firstNode, List<String> channelIds, Btc amount) {
+		int node = g.nodeIndex(firstNode);
+		if (node < 0) {
+			throw new StoredException("Cannot find node '" + firstNode + "' in channels graph", null);
+		}
+		int[] hops = new int[channelIds.size()];
+		int i = 0;
+		for (String chId : channelIds) {
+			int e = g.findEdge(node, LndCommandsExecutor.channelIdToLong(chId));
+			if (e < 0) {
 				throw new StoredException("Channel '" + chId + "' not found in channels graph", null);
 			}
-			
-			route.hops.add(ch);
-			
-			gn = nodes.get(ch.peerId);
-			if(gn == null) {
-				throw new StoredException("Cannot find node '" + firstNode + "' in channels graph", null);
-			}
+			hops[i++] = e;
+			node = g.edgePeer[e];
 		}
-		
+
+		Route route = new Route(g, hops, amount);
+		route.firstNodId = firstNode;
 		return convertRoute(route);
 	}
-	
-	private GraphChannel findChannel(GraphNode gn, String id) {
-			for(GraphChannel ch : gn.channels) {
-				if(id.equals(ch.id)) {
-					return ch;
-				}
+
+	/**
+	 * Expands compact graph to objects. Expensive - use for debug only
+	 */
+	public Map<String, GraphNode> buildObjectGraph() {
+		lock.readLock().lock();
+		try {
+			return prvBuildObjectGraph(getGraph());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private Map<String, GraphNode> prvBuildObjectGraph(ChannelGraph g) {
+		Map<String, GraphNode> nodes = new HashMap<String, GraphNode>(g.nodesCount() * 2);
+		for (int n = 0; n < g.nodesCount(); n++) {
+			GraphNode graphNode = new GraphNode();
+			graphNode.id = g.nodeIds[n];
+			graphNode.alias = g.nodeAliases[n];
+			for (int e = g.edgeStart[n]; e < g.edgeStart[n + 1]; e++) {
+				GraphChannel ch = new GraphChannel();
+				ch.id = g.edgeChannelIdAsString(e);
+				ch.peerId = g.nodeIds[g.edgePeer[e]];
+				ch.feeBaseMsat = g.edgeFeeBaseMsat[e];
+				ch.feeRateMilliMsat = g.edgeFeeRateMilliMsat[e];
+				ch.timeLockDelta = g.edgeTimeLockDelta[e];
+				ch.maxToTransfer = g.edgeCapacitySat[e];
+				graphNode.channels.add(ch);
 			}
-		return null;
+			nodes.put(graphNode.id, graphNode);
+		}
+		return nodes;
+	}
+
+	private static int nodeIndex(ChannelGraph g, String nodeId, String name) {
+		int index = g.nodeIndex(nodeId);
+		if (index < 0) {
+			throw new StoredException("Cannot find '" + name + "' node: " + nodeId, null);
+		}
+		return index;
 	}
 
 }
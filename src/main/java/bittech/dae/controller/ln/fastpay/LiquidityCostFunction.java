@@ -0,0 +1,22 @@
+package bittech.dae.controller.ln.fastpay;
+
+import bittech.lib.utils.Require;
+
+/**
+ * WeightedCostFunction with success probability taken from liquidity bounds
+ * learned from previous payments
+ */
+public class LiquidityCostFunction extends WeightedCostFunction {
+
+	private final LiquidityModel liquidity;
+
+	public LiquidityCostFunction(LiquidityModel liquidity) {
+		this.liquidity = Require.notNull(liquidity, "liquidity");
+	}
+
+	@Override
+	protected double successProbability(ChannelGraph graph, int edge, long amountMsat) {
+		return liquidity.successProbability(graph, edge, amountMsat);
+	}
+
+}
@@ -0,0 +1,260 @@
+package bittech.dae.controller.ln.fastpay;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.PrintWriter;
+import java.lang.reflect.Type;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.reflect.TypeToken;
+
+import bittech.dae.controller.ln.lnd.LndCommandsExecutor;
+import bittech.lib.commands.ln.channels.Hop;
+import bittech.lib.commands.ln.channels.Route;
+import bittech.lib.utils.Config;
+import bittech.lib.utils.exceptions.StoredException;
+import bittech.lib.utils.json.JsonBuilder;
+
+/**
+ * Learned bounds of balance available for forwarding in each direction of a
+ * channel. Bounds come from payment results: success proves liquidity at least
+ * the amount sent, TemporaryChannelFailure proves less than the amount.
+ * Knowledge decays with time - lower bound goes back to 0 and upper bound to
+ * channel capacity with configured half-life.
+ */
+public class LiquidityModel {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(LiquidityModel.class);
+
+	private final static String fileName = Config.getInstance().getEntryOrDefault("liquidityFile", String.class,
+			"/root/ln/liquidity.json");
+
+	private final static boolean saveLiquidity = Config.getInstance().getEntryOrDefault("saveLiquidity",
+			Boolean.class, true);
+
+	final static long halfLifeMillis = 60000L
+			* Config.getInstance().getEntryOrDefault("liquidityHalfLifeMinutes", Long.class, 60L);
+
+	public static final class Bounds {
+		long lowerMsat;
+		long upperMsat = Long.MAX_VALUE; // MAX_VALUE - not known
+		long updatedAt;
+	}
+
+	// key is channelId * 2 + direction
+	final Map<Long, Bounds> bounds = new ConcurrentHashMap<Long, Bounds>();
+
+	public LiquidityModel() {
+		if (saveLiquidity) {
+			load();
+			new SavingThread().start();
+		}
+	}
+
+	private static long key(long channelId, int direction) {
+		return channelId * 2 + direction;
+	}
+
+	private static int direction(String sourceId, String peerId) {
+		// node1 of the channel is the one with lower public key
+		return sourceId.compareTo(peerId) < 0 ? 0 : 1;
+	}
+
+	public boolean isEmpty() {
+		return bounds.isEmpty();
+	}
+
+	/**
+	 * Probability that amount can be forwarded through edge, assuming balance
+	 * uniformly distributed between learned bounds
+	 */
+	public double successProbability(ChannelGraph graph, int edge, long amountMsat) {
+		long capacityMsat = graph.edgeCapacitySat[edge] * 1000;
+		Bounds b = bounds.isEmpty() ? null
+				: bounds.get(key(graph.edgeChannelId[edge], graph.edgeDirection(edge)));
+		long lower = 0;
+		long upper = capacityMsat;
+		if (b != null) {
+			double remains = remains(b, System.currentTimeMillis());
+			lower = decayedLower(b, remains);
+			upper = decayedUpper(b, remains, capacityMsat);
+		}
+		if (amountMsat <= lower) {
+			return 1.0;
+		}
+		if (amountMsat >= upper) {
+			return 0.0;
+		}
+		return (double) (upper - amountMsat) / (double) (upper - lower);
+	}
+
+	/**
+	 * Expected amount that can go through the route - the smallest expected
+	 * liquidity of its hops
+	 */
+	public long expectedLiquidityMsat(String sourceId, Route route) {
+		long now = System.currentTimeMillis();
+		long liquidity = Long.MAX_VALUE;
+		String from = sourceId;
+		for (Hop hop : route.hops) {
+			long capacityMsat = hop.channelCapacity.toMsat();
+			long lower = 0;
+			long upper = capacityMsat;
+			Bounds b = bounds.get(key(LndCommandsExecutor.channelIdToLong(hop.channelId), direction(from, hop.pubKey)));
+			if (b != null) {
+				double remains = remains(b, now);
+				lower = decayedLower(b, remains);
+				upper = decayedUpper(b, remains, capacityMsat);
+			}
+			liquidity = Math.min(liquidity, lower + (upper - lower) / 2);
+			from = hop.pubKey;
+		}
+		return liquidity;
+	}
+
+	/**
+	 * Every hop forwarded its amount and the liquidity moved to the other side
+	 */
+	public void reportSuccess(String sourceId, Route route) {
+		long now = System.currentTimeMillis();
+		String from = sourceId;
+		for (Hop hop : route.hops) {
+			long amountMsat = hop.amountToForward.toMsat() + hop.fee.toMsat();
+			update(from, hop, now, (b) -> {
+				long lower = Math.max(b.lowerMsat, amountMsat);
+				b.lowerMsat = lower - amountMsat;
+				if (b.upperMsat != Long.MAX_VALUE) {
+					b.upperMsat = Math.max(b.upperMsat - amountMsat, b.lowerMsat);
+				}
+			});
+			from = hop.pubKey;
+		}
+	}
+
+	/**
+	 * Hops before failed channel forwarded the amount, failed channel did not have
+	 * it
+	 */
+	public void reportFailure(String sourceId, Route route, String failedChannelId) {
+		long now = System.currentTimeMillis();
+		String from = sourceId;
+		for (Hop hop : route.hops) {
+			long amountMsat = hop.amountToForward.toMsat() + hop.fee.toMsat();
+			if (hop.channelId.equals(failedChannelId)) {
+				update(from, hop, now, (b) -> {
+					b.upperMsat = Math.min(b.upperMsat, amountMsat - 1);
+					b.lowerMsat = Math.min(b.lowerMsat, b.upperMsat);
+				});
+				return;
+			}
+			update(from, hop, now, (b) -> {
+				b.lowerMsat = Math.max(b.lowerMsat, amountMsat);
+				b.upperMsat = Math.max(b.upperMsat, b.lowerMsat);
+			});
+			from = hop.pubKey;
+		}
+	}
+
+	private interface BoundsUpdate {
+		void apply(Bounds b);
+	}
+
+	private void update(String from, Hop hop, long now, BoundsUpdate update) {
+		long capacityMsat = hop.channelCapacity.toMsat();
+		long key = key(LndCommandsExecutor.channelIdToLong(hop.channelId), direction(from, hop.pubKey));
+		bounds.compute(key, (k, old) -> {
+			Bounds b = new Bounds();
+			if (old != null) {
+				double remains = remains(old, now);
+				b.lowerMsat = decayedLower(old, remains);
+				b.upperMsat = decayedUpper(old, remains, capacityMsat);
+			} else {
+				b.upperMsat = capacityMsat;
+			}
+			update.apply(b);
+			b.updatedAt = now;
+			return b;
+		});
+	}
+
+	private static double remains(Bounds b, long now) {
+		return Math.pow(0.5, (double) Math.max(0, now - b.updatedAt) / halfLifeMillis);
+	}
+
+	private static long decayedLower(Bounds b, double remains) {
+		return (long) (b.lowerMsat * remains);
+	}
+
+	private static long decayedUpper(Bounds b, double remains, long capacityMsat) {
+		long upper = Math.min(b.upperMsat, capacityMsat);
+		return upper + (long) ((capacityMsat - upper) * (1.0 - remains));
+	}
+
+	private void prune() {
+		long now = System.currentTimeMillis();
+		Iterator<Bounds> it = bounds.values().iterator();
+		while (it.hasNext()) {
+			if (now - it.next().updatedAt > 10 * halfLifeMillis) {
+				it.remove();
+			}
+		}
+	}
+
+	private synchronized void save() throws StoredException {
+		try {
+			try (PrintWriter out = new PrintWriter(fileName)) {
+				JsonBuilder.build().toJson(bounds, out);
+			}
+		} catch (Exception ex) {
+			throw new StoredException("Cannot save liquidity bounds", ex);
+		}
+	}
+
+	private synchronized void load() {
+		try {
+			File file = new File(fileName);
+			if (file.exists()) {
+				try (FileReader reader = new FileReader(file)) {
+					Type mapType = new TypeToken<Map<Long, Bounds>>() {
+					}.getType();
+					Map<Long, Bounds> loaded = JsonBuilder.build().fromJson(reader, mapType);
+					bounds.clear();
+					if (loaded != null) {
+						bounds.putAll(loaded);
+					}
+				}
+				LOGGER.info("Loaded liquidity bounds: " + bounds.size());
+			}
+		} catch (Exception ex) {
+			new StoredException("Cannot load liquidity bounds", ex);
+		}
+	}
+
+	private class SavingThread extends Thread {
+
+		public SavingThread() {
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					Thread.sleep(60000);
+					prune();
+					save();
+				} catch (InterruptedException e) {
+					return;
+				} catch (Exception e) {
+					new StoredException("Saving liquidity bounds failed", e);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,249 @@
+package bittech.dae.controller.ln.fastpay;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import bittech.dae.controller.ln.commands.PayToRouteMppCommand;
+import bittech.dae.controller.ln.lnd.LndCommandsExecutor;
+import bittech.lib.commands.ln.channels.Hop;
+import bittech.lib.commands.ln.channels.Route;
+import bittech.lib.commands.ln.invoices.DecodeInvoiceResponse;
+import bittech.lib.protocol.ErrorResponse;
+import bittech.lib.utils.Btc;
+import bittech.lib.utils.Require;
+import bittech.lib.utils.exceptions.StoredException;
+import bittech.lib.utils.logs.Log;
+
+/**
+ * Payment split into shards sent concurrently over channel-disjoint routes.
+ * Receiver holds all shards until whole amount arrives, so every shard is sent
+ * without waiting for the others. Each shard takes a permit of shards pool for
+ * the whole split before any of them is sent - split that cannot be sent at
+ * once would leave the receiver waiting for the rest. Failed shard amount is
+ * split again, avoiding the channel that failed.
+ */
+class MultiPathPayment {
+
+	static final int MAX_SHARDS = 16;
+
+	private static final long MIN_SHARD_MSAT = 10000000; // 10k sat
+	private static final int MAX_ATTEMPTS = 40;
+	private static final long PERMITS_WAIT_SECONDS = 30;
+
+	private static class Shard {
+		Route route;
+		long amountMsat;
+		Set<String> channels = new HashSet<String>();
+		ErrorResponse error;
+	}
+
+	private final LndCommandsExecutor executor;
+	private final GraphManager graphManager;
+	private final ExecutorService shardsExecutor;
+	private final Semaphore shardPermits;
+	private final Consumer<Route> addExpiry;
+	private final String sourceId;
+	private final DecodeInvoiceResponse invoice;
+	private final String paymentAddr;
+	private final Btc totalAmount;
+	private final Set<String> excludedChannels;
+	private final Set<String> busyChannels = new HashSet<String>();
+
+	/**
+	 * @param shardPermits one permit per shard running on shardsExecutor, no more
+	 *                     than its threads
+	 */
+	MultiPathPayment(LndCommandsExecutor executor, GraphManager graphManager, ExecutorService shardsExecutor,
+			Semaphore shardPermits, Consumer<Route> addExpiry, String sourceId, DecodeInvoiceResponse invoice, String paymentAddr,
+			Btc totalAmount, Set<String> excludedChannels) {
+		this.executor = Require.notNull(executor, "executor");
+		this.graphManager = Require.notNull(graphManager, "graphManager");
+		this.shardsExecutor = Require.notNull(shardsExecutor, "shardsExecutor");
+		this.shardPermits = Require.notNull(shardPermits, "shardPermits");
+		this.addExpiry = Require.notNull(addExpiry, "addExpiry");
+		this.sourceId = Require.notEmpty(sourceId, "sourceId");
+		this.invoice = Require.notNull(invoice, "invoice");
+		this.paymentAddr = Require.notEmpty(paymentAddr, "paymentAddr");
+		this.totalAmount = Require.notNull(totalAmount, "totalAmount");
+		this.excludedChannels = Require.notNull(excludedChannels, "excludedChannels");
+	}
+
+	void pay() {
+		CompletionService<Shard> completion = new ExecutorCompletionService<Shard>(shardsExecutor);
+		long pendingMsat = totalAmount.toMsat();
+		int inFlight = 0;
+		int attempts = 0;
+		boolean settled = false;
+		boolean noPermits = false;
+		ErrorResponse fatalError = null;
+
+		while (true) {
+			// Split again after every completion - finished shards free their channels
+			if (pendingMsat > 0 && fatalError == null) {
+				List<Shard> shards = split(pendingMsat, inFlight);
+				noPermits = false;
+				if (shards != null && !acquire(shards.size(), inFlight == 0)) {
+					noPermits = true;
+					shards = null;
+				}
+				if (shards != null) {
+					for (int i = 0; i < shards.size(); i++) {
+						Shard shard = shards.get(i);
+						try {
+							completion.submit(() -> send(shard));
+						} catch (RejectedExecutionException ex) {
+							shardPermits.release(shards.size() - i);
+							throw new StoredException("Shards pool closed", ex);
+						}
+						busyChannels.addAll(shard.channels);
+						pendingMsat -= shard.amountMsat;
+						inFlight++;
+						attempts++;
+					}
+				}
+			}
+
+			if (inFlight == 0) {
+				break;
+			}
+
+			Shard done;
+			try {
+				done = completion.take().get();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new StoredException("Multi-path payment interrupted with " + inFlight + " shards in flight", ex);
+			} catch (ExecutionException ex) {
+				throw new StoredException("Waiting for payment shard failed", ex);
+			}
+			inFlight--;
+			busyChannels.removeAll(done.channels);
+
+			if (done.error == null) {
+				graphManager.getLiquidity().reportSuccess(sourceId, done.route);
+				settled = true;
+				continue;
+			}
+
+			String failedChannel = PaymentFailures.failedChannel(done.error);
+			if (failedChannel != null) {
+				graphManager.getLiquidity().reportFailure(sourceId, done.route, failedChannel);
+			}
+			if (failedChannel == null || attempts >= MAX_ATTEMPTS) {
+				Log.build().param("route", done.route).event("Payment shard failed");
+				if (fatalError == null) {
+					fatalError = done.error;
+				}
+				continue;
+			}
+			excludedChannels.add(failedChannel);
+			pendingMsat += done.amountMsat;
+		}
+
+		if (settled && pendingMsat == 0) {
+			return;
+		}
+		if (fatalError != null) {
+			throw new StoredException("Multi-path payment failed", fatalError.toException());
+		}
+		if (noPermits) {
+			throw new StoredException("Multi-path payment failed",
+					new Exception("Too many payment shards in progress"));
+		}
+		throw new StoredException("Multi-path payment failed",
+				new Exception("Cannot find routes for " + Btc.fromMsat(pendingMsat) + " of " + totalAmount));
+	}
+
+	/**
+	 * Takes permits for all shards of the split. Waits only when this payment has
+	 * nothing in flight - payment holding permits never waits for others
+	 */
+	private boolean acquire(int shards, boolean wait) {
+		if (!wait) {
+			return shardPermits.tryAcquire(shards);
+		}
+		try {
+			return shardPermits.tryAcquire(shards, PERMITS_WAIT_SECONDS, TimeUnit.SECONDS);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new StoredException("Multi-path payment interrupted", ex);
+		}
+	}
+
+	/**
+	 * @return shards covering whole amount or null if amount cannot be routed now
+	 */
+	private List<Shard> split(long amountMsat, int inFlight) {
+		Set<String> excluded = new HashSet<String>(excludedChannels);
+		excluded.addAll(busyChannels);
+
+		List<Shard> shards = new ArrayList<Shard>();
+		long left = amountMsat;
+		while (left > 0) {
+			if (shards.size() + inFlight >= MAX_SHARDS) {
+				return null;
+			}
+			Shard shard = findShard(left, excluded);
+			if (shard == null) {
+				return null;
+			}
+			excluded.addAll(shard.channels);
+			shards.add(shard);
+			left -= shard.amountMsat;
+		}
+		return shards;
+	}
+
+	private Shard findShard(long leftMsat, Set<String> excluded) {
+		long tryMsat = leftMsat;
+		while (true) {
+			Route route = graphManager.findRoute(sourceId, invoice.destination, Btc.fromMsat(tryMsat), excluded);
+			if (route != null) {
+				long liquidityMsat = graphManager.estimateLiquidityMsat(sourceId, route);
+				if (liquidityMsat < tryMsat && liquidityMsat >= MIN_SHARD_MSAT) {
+					Route smallerRoute = graphManager.findRoute(sourceId, invoice.destination, Btc.fromMsat(liquidityMsat), excluded);
+					if (smallerRoute != null) {
+						tryMsat = liquidityMsat;
+						route = smallerRoute;
+					}
+				}
+				Shard shard = new Shard();
+				shard.route = route;
+				shard.amountMsat = tryMsat;
+				for (Hop hop : route.hops) {
+					shard.channels.add(hop.channelId);
+				}
+				return shard;
+			}
+			if (tryMsat / 2 < MIN_SHARD_MSAT) {
+				return null;
+			}
+			tryMsat = tryMsat / 2;
+		}
+	}
+
+	private Shard send(Shard shard) {
+		try {
+			addExpiry.accept(shard.route);
+			PayToRouteMppCommand cmd = new PayToRouteMppCommand(invoice.payment_hash, shard.route, paymentAddr, totalAmount);
+			executor.execute(cmd);
+			shard.error = cmd.getError();
+		} catch (Exception ex) {
+			shard.error = new ErrorResponse(ex);
+		} finally {
+			shardPermits.release();
+		}
+		return shard;
+	}
+
+}
@@ -0,0 +1,94 @@
+package bittech.dae.controller.ln.fastpay;
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of node indexes with decrease-key, based on primitive arrays
+ */
+class NodeHeap {
+
+	private final int[] heap;
+	private final int[] pos; // position of node in heap or -1
+	private final long[] key;
+	private int size = 0;
+
+	public NodeHeap(int nodesCount) {
+		heap = new int[nodesCount];
+		pos = new int[nodesCount];
+		key = new long[nodesCount];
+		Arrays.fill(pos, -1);
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Inserts node or lowers its key if already in heap
+	 */
+	public void push(int node, long nodeKey) {
+		int i = pos[node];
+		if (i < 0) {
+			i = size++;
+			heap[i] = node;
+			pos[node] = i;
+		} else if (nodeKey >= key[node]) {
+			return;
+		}
+		key[node] = nodeKey;
+		siftUp(i);
+	}
+
+	public int pop() {
+		int top = heap[0];
+		pos[top] = -1;
+		size--;
+		if (size > 0) {
+			int last = heap[size];
+			heap[0] = last;
+			pos[last] = 0;
+			siftDown(0);
+		}
+		return top;
+	}
+
+	private void siftUp(int i) {
+		int node = heap[i];
+		long k = key[node];
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			int p = heap[parent];
+			if (key[p] <= k) {
+				break;
+			}
+			heap[i] = p;
+			pos[p] = i;
+			i = parent;
+		}
+		heap[i] = node;
+		pos[node] = i;
+	}
+
+	private void siftDown(int i) {
+		int node = heap[i];
+		long k = key[node];
+		int half = size >>> 1;
+		while (i < half) {
+			int child = 2 * i + 1;
+			int right = child + 1;
+			if (right < size && key[heap[right]] < key[heap[child]]) {
+				child = right;
+			}
+			int c = heap[child];
+			if (k <= key[c]) {
+				break;
+			}
+			heap[i] = c;
+			pos[c] = i;
+			i = child;
+		}
+		heap[i] = node;
+		pos[node] = i;
+	}
+
+}
@@ -0,0 +1,111 @@
+package bittech.dae.controller.ln.fastpay;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import bittech.lib.utils.Require;
+
+/**
+ * Dijkstra search over ChannelGraph. Search goes backwards from destination to
+ * source, so amount required at every node (payment + fees of the rest of the
+ * route) is known when edge leading to it is evaluated.
+ *
+ * A* is not used - there is no admissible heuristic better than zero for fee
+ * based costs (zero fee channels are allowed), so it would be Dijkstra anyway.
+ */
+public class PathFinder {
+
+	public static final int MAX_HOPS = 20;
+
+	private final CostFunction costFunction;
+	private final int maxHops;
+
+	public PathFinder(CostFunction costFunction) {
+		this(costFunction, MAX_HOPS);
+	}
+
+	public PathFinder(CostFunction costFunction, int maxHops) {
+		this.costFunction = Require.notNull(costFunction, "costFunction");
+		this.maxHops = maxHops;
+	}
+
+	/**
+	 * @param excludedEdges edges that cannot be used, may be null
+	 * @return edge indexes from source to destination or null if not found
+	 */
+	public int[] findPath(ChannelGraph g, int source, int destination, long amountMsat, BitSet excludedEdges) {
+		if (source == destination) {
+			return new int[0];
+		}
+
+		int nodesCount = g.nodesCount();
+		long[] dist = new long[nodesCount];
+		long[] amount = new long[nodesCount]; // amount that has to reach the node
+		int[] next = new int[nodesCount]; // edge from node towards destination
+		int[] hops = new int[nodesCount];
+		Arrays.fill(dist, Long.MAX_VALUE);
+
+		NodeHeap heap = new NodeHeap(nodesCount);
+		dist[destination] = 0;
+		amount[destination] = amountMsat;
+		next[destination] = -1;
+		heap.push(destination, 0);
+
+		while (!heap.isEmpty()) {
+			int node = heap.pop();
+			if (node == source) {
+				return buildPath(g, next, source, hops[source]);
+			}
+			if (hops[node] >= maxHops) {
+				continue;
+			}
+			long amountToForward = amount[node];
+
+			// Incoming edges are twins of outgoing ones
+			for (int out = g.edgeStart[node]; out < g.edgeStart[node + 1]; out++) {
+				int edge = g.edgeTwin[out];
+				int from = g.edgePeer[out];
+				if (dist[from] <= dist[node]) {
+					continue; // already settled
+				}
+				if (g.edgeDisabled.get(edge) || (excludedEdges != null && excludedEdges.get(edge))) {
+					continue;
+				}
+				if (amountToForward < g.edgeMinHtlcMsat[edge]) {
+					continue;
+				}
+
+				// Source does not charge itself
+				long feeMsat = from == source ? 0 : g.feeMsat(edge, amountToForward);
+				int timeLockDelta = from == source ? 0 : g.edgeTimeLockDelta[edge];
+
+				long cost = costFunction.edgeCost(g, edge, amountToForward, feeMsat, timeLockDelta);
+				if (cost == CostFunction.UNUSABLE) {
+					continue;
+				}
+				long newDist = dist[node] + cost;
+				if (newDist < 0 || newDist >= dist[from]) {
+					continue;
+				}
+				dist[from] = newDist;
+				amount[from] = amountToForward + feeMsat;
+				next[from] = edge;
+				hops[from] = hops[node] + 1;
+				heap.push(from, newDist);
+			}
+		}
+
+		return null;
+	}
+
+	private static int[] buildPath(ChannelGraph g, int[] next, int source, int length) {
+		int[] path = new int[length];
+		int node = source;
+		for (int i = 0; i < length; i++) {
+			path[i] = next[node];
+			node = g.edgePeer[path[i]];
+		}
+		return path;
+	}
+
+}
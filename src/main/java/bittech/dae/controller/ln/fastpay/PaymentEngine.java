@@ -0,0 +1,98 @@
+package bittech.dae.controller.ln.fastpay;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import bittech.lib.utils.Require;
+import bittech.lib.utils.exceptions.StoredException;
+import bittech.lib.utils.logs.Log;
+
+/**
+ * Runs payments on a bounded pool of workers. Only one payment per payment hash
+ * can be in progress - submitting the same hash again joins the running one.
+ */
+public class PaymentEngine implements AutoCloseable {
+
+	public enum Status {
+		QUEUED, IN_FLIGHT, SUCCEEDED, FAILED
+	}
+
+	public static final class Payment {
+		public final String paymentHash;
+		public final long createdAt = System.currentTimeMillis();
+		public volatile Status status = Status.QUEUED;
+		public volatile long finishedAt;
+		public volatile String error;
+		private final transient CompletableFuture<Void> result = new CompletableFuture<Void>(); // not in details json
+
+		private Payment(String paymentHash) {
+			this.paymentHash = paymentHash;
+		}
+	}
+
+	private final ThreadPoolExecutor workers;
+	private final Map<String, Payment> payments = new ConcurrentHashMap<String, Payment>();
+
+	public PaymentEngine(int workersCount, int queueSize) {
+		Require.inRange(workersCount, 1, 10000, "workersCount");
+		workers = new ThreadPoolExecutor(workersCount, workersCount, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize));
+		workers.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * @return future completed when payment settles or fails
+	 */
+	public CompletableFuture<Void> submit(String paymentHash, Runnable payment) {
+		Require.notEmpty(paymentHash, "paymentHash");
+		Payment created = new Payment(paymentHash);
+		Payment existing = payments.putIfAbsent(paymentHash, created);
+		if (existing != null) {
+			Log.build().param("paymentHash", paymentHash).event("Payment already in progress. Joining it");
+			return existing.result;
+		}
+
+		try {
+			workers.execute(() -> run(created, payment));
+		} catch (RejectedExecutionException ex) {
+			payments.remove(paymentHash, created);
+			created.status = Status.FAILED;
+			created.result.completeExceptionally(new StoredException("Too many payments in progress", ex));
+		}
+		return created.result;
+	}
+
+	private void run(Payment state, Runnable payment) {
+		state.status = Status.IN_FLIGHT;
+		try {
+			payment.run();
+			state.status = Status.SUCCEEDED;
+			state.finishedAt = System.currentTimeMillis();
+			state.result.complete(null);
+		} catch (Exception ex) {
+			state.status = Status.FAILED;
+			state.error = ex.getMessage();
+			state.finishedAt = System.currentTimeMillis();
+			state.result.completeExceptionally(ex);
+		} finally {
+			payments.remove(state.paymentHash, state);
+		}
+	}
+
+	public List<Payment> getPaymentsInProgress() {
+		return new ArrayList<Payment>(payments.values());
+	}
+
+	@Override
+	public void close() {
+		workers.shutdownNow();
+	}
+
+}
@@ -0,0 +1,31 @@
+package bittech.dae.controller.ln.fastpay;
+
+import org.apache.commons.lang3.StringUtils;
+
+import bittech.lib.protocol.ErrorResponse;
+
+final class PaymentFailures {
+
+	private PaymentFailures() {
+	}
+
+	/**
+	 * @return id of channel that failed the payment if failure is temporary and
+	 *         other route may work, null otherwise
+	 */
+	static String failedChannel(ErrorResponse error) {
+		// unable to route payment to destination: TemporaryChannelFailure: Link 573916:1745:0 has insufficient capacity: need 101000 mSAT, has 0 mSAT
+		ErrorResponse insufRes = error.findWithMessage("has insufficient capacity");
+		if (insufRes != null) {
+			return StringUtils.substringBetween(insufRes.message, "Link ", " has");
+		}
+
+		ErrorResponse incorrectCltv = error.findWithMessage("IncorrectCltvExpiry");
+		if (incorrectCltv != null) {
+			return StringUtils.substringBetween(incorrectCltv.message, "(lnwire.ShortChannelID) ", ",");
+		}
+
+		return null;
+	}
+
+}
@@ -7,7 +7,8 @@ import bittech.lib.utils.Btc;
 import bittech.lib.utils.Require;
 
 public class Route {
-	
+
+	// Object representation of graph. Built only on demand for debug purposes
 	static class GraphChannel implements Comparable<GraphChannel> {
 		public String id;
 		public long minToTransfer;
@@ -16,12 +17,12 @@ public class Route {
 		public long feeRateMilliMsat;
 		public int timeLockDelta;
 		public String peerId;
-		
+
 		@Override
 		public int compareTo(GraphChannel o) {
-			return -Long.compare(this.maxToTransfer,  o.maxToTransfer);
+			return -Long.compare(this.maxToTransfer, o.maxToTransfer);
 		}
-		
+
 	}
 
 	public static class GraphNode {
@@ -29,16 +30,15 @@ public class Route {
 		public String alias;
 		public List<GraphChannel> channels = new LinkedList<GraphChannel>();
 	}
-	
+
 	public String firstNodId;
-	public List<GraphChannel> hops = new LinkedList<GraphChannel>();
+	public final ChannelGraph graph;
+	public final int[] hops; // edge indexes in graph
 	public Btc amount;
-	
-	public void add(GraphChannel channel) {
-		hops.add(0, channel);
-	}
-	
-	public Route(Btc amount) {
+
+	public Route(ChannelGraph graph, int[] hops, Btc amount) {
+		this.graph = Require.notNull(graph, "graph");
+		this.hops = Require.notNull(hops, "hops");
 		this.amount = Require.notNull(amount, "amount");
 	}
 
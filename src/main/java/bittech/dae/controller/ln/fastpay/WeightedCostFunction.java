@@ -0,0 +1,48 @@
+package bittech.dae.controller.ln.fastpay;
+
+/**
+ * Default edge cost: fee + time lock risk + penalty for low probability of
+ * success. Probability is estimated assuming liquidity uniformly distributed
+ * over channel capacity, so the penalty grows fast when amount gets close to
+ * the capacity.
+ */
+public class WeightedCostFunction implements CostFunction {
+
+	// Same meaning as in lnd: cost of locking funds for one block, in billionths
+	private final long riskFactorBillionths;
+	// Virtual cost of single payment attempt
+	private final long attemptCostMsat;
+	private final long hopCostMsat;
+
+	public WeightedCostFunction() {
+		this(15, 100000, 1000);
+	}
+
+	public WeightedCostFunction(long riskFactorBillionths, long attemptCostMsat, long hopCostMsat) {
+		this.riskFactorBillionths = riskFactorBillionths;
+		this.attemptCostMsat = attemptCostMsat;
+		this.hopCostMsat = hopCostMsat;
+	}
+
+	@Override
+	public long edgeCost(ChannelGraph graph, int edge, long amountMsat, long feeMsat, int timeLockDelta) {
+		double probability = successProbability(graph, edge, amountMsat);
+		if (probability <= 0) {
+			return UNUSABLE;
+		}
+
+		long timeLockPenalty = amountMsat / 1000 * timeLockDelta * riskFactorBillionths / 1000000;
+		long probabilityPenalty = (long) (attemptCostMsat / probability) - attemptCostMsat;
+
+		return feeMsat + timeLockPenalty + hopCostMsat + probabilityPenalty;
+	}
+
+	protected double successProbability(ChannelGraph graph, int edge, long amountMsat) {
+		long capacityMsat = graph.edgeCapacitySat[edge] * 1000;
+		if (amountMsat >= capacityMsat) {
+			return 0;
+		}
+		return 1.0 - (double) amountMsat / (double) capacityMsat;
+	}
+
+}
@@ -1,8 +1,8 @@
 package bittech.dae.controller.ln.listeners;
 
-import bittech.lib.commands.ln.channels.ChannelChangedRequest;
+import bittech.dae.controller.ln.listeners.ChannelsDiff.ChannelChange;
 
 public interface ChannelChangedEvent {
 
-	public void onChange(ChannelChangedRequest channelChanged);
+	public void onChange(ChannelChange change);
 }
@@ -0,0 +1,130 @@
+package bittech.dae.controller.ln.listeners;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import bittech.lib.commands.ln.channels.ChannelChangedRequest;
+import bittech.lib.commands.ln.channels.ListChannelsResponse.ActiveChannel;
+import bittech.lib.utils.Btc;
+import bittech.lib.utils.Require;
+
+/**
+ * Last known state of local channels keyed by channel point. Each update is
+ * compared with it field by field and produces list of changes. Channels of
+ * the first update are reported as MODIFIED, so restart does not look like
+ * every channel was just opened.
+ */
+public class ChannelsDiff {
+
+	public static final String STATE_NORMAL = "CHANNELD_NORMAL";
+	public static final String STATE_INACTIVE = "INACTIVE"; // peer offline, cannot route now
+	public static final String STATE_CLOSED = "CLOSED";
+
+	public enum ChangeType {
+		ADDED, MODIFIED, REMOVED
+	}
+
+	public static final class ChannelChange {
+		public final ChangeType type;
+		public final String channelPoint;
+		public final ActiveChannel channel; // last known state for REMOVED
+		public final List<String> changedFields;
+
+		private ChannelChange(ChangeType type, ActiveChannel channel, List<String> changedFields) {
+			this.type = type;
+			this.channelPoint = channel.channel_point;
+			this.channel = channel;
+			this.changedFields = Collections.unmodifiableList(changedFields);
+		}
+
+		public ChannelChangedRequest toRequest() {
+			ChannelChangedRequest request = new ChannelChangedRequest();
+			request.fundingTxId = channelPoint.split(":")[0];
+			request.peerId = channel.remote_node_pub;
+			request.peerAlias = null;
+			if (type == ChangeType.REMOVED) {
+				request.state = STATE_CLOSED;
+			} else {
+				request.state = Boolean.TRUE.equals(channel.active) ? STATE_NORMAL : STATE_INACTIVE;
+			}
+			request.shortChannelId = channel.id;
+			request.capacity = channel.capacity;
+			request.myAmount = channel.local_balance;
+			request.peerAmount = channel.remote_balance;
+			return request;
+		}
+	}
+
+	private final Map<String, ActiveChannel> channels = new HashMap<String, ActiveChannel>();
+	private boolean seeded = false;
+
+	public synchronized List<ChannelChange> update(List<ActiveChannel> current) {
+		Require.notNull(current, "current");
+		List<ChannelChange> changes = new ArrayList<ChannelChange>();
+		Map<String, ActiveChannel> seen = new HashMap<String, ActiveChannel>(current.size() * 2);
+
+		for (ActiveChannel channel : current) {
+			seen.put(channel.channel_point, channel);
+			ActiveChannel old = channels.put(channel.channel_point, channel);
+			if (old == null) {
+				ChangeType type = seeded ? ChangeType.ADDED : ChangeType.MODIFIED;
+				changes.add(new ChannelChange(type, channel, Collections.<String>emptyList()));
+			} else {
+				List<String> fields = changedFields(old, channel);
+				if (!fields.isEmpty()) {
+					changes.add(new ChannelChange(ChangeType.MODIFIED, channel, fields));
+				}
+			}
+		}
+
+		Iterator<ActiveChannel> it = channels.values().iterator();
+		while (it.hasNext()) {
+			ActiveChannel channel = it.next();
+			if (!seen.containsKey(channel.channel_point)) {
+				it.remove();
+				changes.add(new ChannelChange(ChangeType.REMOVED, channel, Collections.<String>emptyList()));
+			}
+		}
+		seeded = true;
+		return changes;
+	}
+
+	private static List<String> changedFields(ActiveChannel a, ActiveChannel b) {
+		List<String> fields = new ArrayList<String>(2);
+		check(fields, "active", a.active, b.active);
+		check(fields, "id", a.id, b.id);
+		check(fields, "remote_node_pub", a.remote_node_pub, b.remote_node_pub);
+		check(fields, "capacity", a.capacity, b.capacity);
+		check(fields, "local_balance", a.local_balance, b.local_balance);
+		check(fields, "remote_balance", a.remote_balance, b.remote_balance);
+		check(fields, "unsettled_balance", a.unsettled_balance, b.unsettled_balance);
+		check(fields, "commit_fee", a.commit_fee, b.commit_fee);
+		check(fields, "commit_weight", a.commit_weight, b.commit_weight);
+		check(fields, "fee_per_kw", a.fee_per_kw, b.fee_per_kw);
+		check(fields, "csv_delay", a.csv_delay, b.csv_delay);
+		check(fields, "initiator", a.initiator, b.initiator);
+		check(fields, "isPrivate", a.isPrivate, b.isPrivate);
+		check(fields, "num_updates", a.num_updates, b.num_updates);
+		check(fields, "total_satoshis_sent", a.total_satoshis_sent, b.total_satoshis_sent);
+		check(fields, "total_satoshis_received", a.total_satoshis_received, b.total_satoshis_received);
+		return fields;
+	}
+
+	private static void check(List<String> fields, String name, Object a, Object b) {
+		if (!Objects.equals(a, b)) {
+			fields.add(name);
+		}
+	}
+
+	private static void check(List<String> fields, String name, Btc a, Btc b) {
+		if (a == null || b == null ? a != b : a.toMsat() != b.toMsat()) {
+			fields.add(name);
+		}
+	}
+
+}
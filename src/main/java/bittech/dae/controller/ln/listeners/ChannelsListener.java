@@ -1,7 +1,15 @@
 package bittech.dae.controller.ln.listeners;
 
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bittech.dae.controller.ln.listeners.ChannelsDiff.ChannelChange;
 import bittech.dae.controller.ln.lnd.LndCommandsExecutor;
-import bittech.lib.commands.ln.channels.ChannelChangedRequest;
+import bittech.lib.commands.ln.channels.ChannelChangedCommand;
 import bittech.lib.commands.ln.channels.CloseChannelCommand;
 import bittech.lib.commands.ln.channels.DescribeGraphCommand;
 import bittech.lib.commands.ln.channels.FindRouteCommand;
@@ -20,9 +28,9 @@ import bittech.lib.protocol.Node;
 import bittech.lib.protocol.common.NoDataResponse;
 import bittech.lib.protocol.helpers.CommandBroadcaster;
 import bittech.lib.utils.Btc;
+import bittech.lib.utils.Config;
 import bittech.lib.utils.Notificator;
 import bittech.lib.utils.Require;
-import bittech.lib.utils.Utils;
 import bittech.lib.utils.exceptions.StoredException;
 import bittech.lib.utils.logs.Log;
 import io.grpc.ManagedChannel;
@@ -34,23 +42,104 @@ import lnrpc.Rpc.GraphTopologyUpdate;
 public class ChannelsListener implements Listener, ManagerDataProvider, AutoCloseable, ChannelChangedEvent {
 
 	private final Notificator<ChannelChangedEvent> changeNotifier = new Notificator<ChannelChangedEvent>();
+	private final Notificator<GraphTopologyChangedEvent> graphNotifier = new Notificator<GraphTopologyChangedEvent>();
 	private final CommandBroadcaster channelChangedBroadcaster;
 
 	private final ManagedChannel channel;
 	private final LndCommandsExecutor executor;
 
+	private final static long debounceMillis = Config.getInstance().getEntryOrDefault("channelsRefreshDebounceMillis",
+			Long.class, 500L);
+
+	// Payments and settled invoices request refresh, anything else that changes
+	// balances without channel events is reconciled periodically
+	private final static long reconcileSeconds = Config.getInstance().getEntryOrDefault("channelsReconcileSeconds",
+			Long.class, 60L);
+
+	private final static long RESUBSCRIBE_SECONDS = 10;
+	private final static long MAX_GRAPH_RESUBSCRIBE_SECONDS = 300;
+
+	private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor();
+	private final AtomicBoolean refreshScheduled = new AtomicBoolean(false);
+	// Graph stream failures since last update received, for resubscribe backoff
+	private final AtomicInteger graphFailures = new AtomicInteger(0);
+
 	private ListChannelsResponse lastResponse = null;
+	private final ChannelsDiff channelsDiff = new ChannelsDiff();
 
 	public ChannelsListener(Node node, ManagedChannel channel, LndCommandsExecutor executor) {
 		this.channel = Require.notNull(channel, "channel");
 		this.executor = Require.notNull(executor, "executor");
 		this.channelChangedBroadcaster = new CommandBroadcaster(node, "channelChangedBroadcaster.json");
 		changeNotifier.register(this);
+		subscribeChannelEvents();
 		subcribeChannels();
 	}
 
 	public void start() {
 		grabChannelsData();
+		refresher.scheduleWithFixedDelay(() -> requestRefresh(), reconcileSeconds, reconcileSeconds,
+				TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Schedules refresh of local channels. Requests coming within debounce time
+	 * are coalesced into one ListChannels call
+	 */
+	public void requestRefresh() {
+		if (refreshScheduled.compareAndSet(false, true)) {
+			try {
+				refresher.schedule(() -> {
+					refreshScheduled.set(false);
+					try {
+						grabChannelsData();
+					} catch (Exception ex) {
+						new StoredException("Grab channels data failed", ex);
+					}
+				}, debounceMillis, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException ex) {
+				refreshScheduled.set(false); // closed
+			}
+		}
+	}
+
+	private void subscribeChannelEvents() {
+
+		LightningGrpc.LightningStub stub = LightningGrpc.newStub(channel);
+
+		Rpc.ChannelEventSubscription request = Rpc.ChannelEventSubscription.newBuilder().build();
+		stub.subscribeChannelEvents(request, new StreamObserver<Rpc.ChannelEventUpdate>() {
+
+			@Override
+			public void onNext(Rpc.ChannelEventUpdate update) {
+				Log.build().param("type", update.getType()).event("Channel event");
+				requestRefresh();
+			}
+
+			@Override
+			public void onError(Throwable t) {
+				new StoredException("Subscribe channel events thrown error", t);
+				resubscribeChannelEvents();
+			}
+
+			@Override
+			public void onCompleted() {
+				resubscribeChannelEvents();
+			}
+
+		});
+
+	}
+
+	private void resubscribeChannelEvents() {
+		try {
+			refresher.schedule(() -> {
+				subscribeChannelEvents();
+				requestRefresh(); // events could be missed
+			}, RESUBSCRIBE_SECONDS, TimeUnit.SECONDS);
+		} catch (RejectedExecutionException ex) {
+			// closed
+		}
 	}
 
 	private void subcribeChannels() {
@@ -62,38 +151,66 @@ public class ChannelsListener implements Listener, ManagerDataProvider, AutoClos
 
 			@Override
 			public void onNext(GraphTopologyUpdate value) {
+				graphFailures.set(0);
 				try {
-					grabChannelsData();
+					graphNotifier.notifyThem((m) -> m.onGraphTopologyChanged(value));
 				} catch (Exception ex) {
-					new StoredException("Grab channels data failed", ex);
+					new StoredException("Graph topology update failed", ex);
 				}
 			}
 
 			@Override
 			public void onError(Throwable t) {
-				new StoredException("Sunbscibe transaction thrown error", t);
+				new StoredException("Subscribe channel graph thrown error", t);
+				resubscribeChannels();
 			}
 
 			@Override
 			public void onCompleted() {
-				// Everything is OK
+				resubscribeChannels();
 			}
 
 		});
 
 	}
 
+	private void resubscribeChannels() {
+		int failures = graphFailures.getAndIncrement();
+		long delay = Math.min(MAX_GRAPH_RESUBSCRIBE_SECONDS, RESUBSCRIBE_SECONDS << Math.min(failures, 5));
+		try {
+			refresher.schedule(() -> {
+				subcribeChannels();
+				try {
+					graphNotifier.notifyThem((m) -> m.onGraphUpdatesMissed());
+				} catch (Exception ex) {
+					new StoredException("Graph resync after missed updates failed", ex);
+				}
+			}, delay, TimeUnit.SECONDS);
+		} catch (RejectedExecutionException ex) {
+			// closed
+		}
+	}
+
 	public void registerObserver(ChannelChangedEvent observer) {
 		changeNotifier.register(observer);
 	}
 
+	public void registerGraphObserver(GraphTopologyChangedEvent observer) {
+		graphNotifier.register(observer);
+	}
+
 	public synchronized void grabChannelsData() {
 		ListChannelsCommand cmd = new ListChannelsCommand();
 		executor.execute(cmd);
-		if ((lastResponse == null) || Utils.deepEquals(lastResponse, cmd.getResponse()) == false) {
-			lastResponse = cmd.getResponse();
-			Log.build().event("Some channels changed");
-			changeNotifier.notifyThem((m) -> m.onChange(null)); // TODO: Build channel change
+		if (cmd.getError() != null) {
+			new StoredException("Executing ListChannelsCommand failed", cmd.getError().toException());
+			return;
+		}
+		lastResponse = cmd.getResponse();
+		for (ChannelChange change : channelsDiff.update(lastResponse.channels)) {
+			Log.build().param("type", change.type).param("channelPoint", change.channelPoint)
+					.param("changedFields", change.changedFields).event("Channel changed");
+			changeNotifier.notifyThem((m) -> m.onChange(change));
 		}
 	}
 
@@ -118,6 +235,10 @@ public class ChannelsListener implements Listener, ManagerDataProvider, AutoClos
 			cmd.response = new NoDataResponse();
 		} else {
 			executor.execute(command);
+			if (command instanceof OpenChannelCommand || command instanceof CloseChannelCommand
+					|| command instanceof PayToRouteCommand) {
+				requestRefresh();
+			}
 		}
 	}
 
@@ -128,7 +249,7 @@ public class ChannelsListener implements Listener, ManagerDataProvider, AutoClos
 
 	@Override
 	public void close() {
-
+		refresher.shutdownNow();
 	}
 
 	@Override
@@ -160,9 +281,9 @@ public class ChannelsListener implements Listener, ManagerDataProvider, AutoClos
 	}
 
 	@Override
-	public void onChange(ChannelChangedRequest channelChanged) {
-//		ChannelChangedCommand cmd = new ChannelChangedCommand(channelChanged);
-//		channelChangedBroadcaster.broadcast(cmd); //TODO: Broadcast
+	public void onChange(ChannelChange change) {
+		ChannelChangedCommand cmd = new ChannelChangedCommand(change.toRequest());
+		channelChangedBroadcaster.broadcast(cmd);
 	}
 
 }
@@ -0,0 +1,14 @@
+package bittech.dae.controller.ln.listeners;
+
+import lnrpc.Rpc.GraphTopologyUpdate;
+
+public interface GraphTopologyChangedEvent {
+
+	public void onGraphTopologyChanged(GraphTopologyUpdate update);
+
+	/**
+	 * Graph stream was broken, updates sent in the meantime are lost
+	 */
+	public void onGraphUpdatesMissed();
+
+}
@@ -38,11 +38,15 @@ public class InvoicesListener implements Listener {
 
 	private final Map<Long, String> invoicesLabels = new HashMap<Long, String>();
 
-	public InvoicesListener(Node node, ManagedChannel channel) {
+	// Called when channel balances changed, e.g. ChannelsListener.requestRefresh
+	private final Runnable balanceChanged;
+
+	public InvoicesListener(Node node, ManagedChannel channel, Runnable balanceChanged) {
 		this.commandPaymentRecaivedBroadcaster = new CommandBroadcaster(Require.notNull(node, "node"),
 				"paymentsRegisteredServices.json");
 		this.channel = Require.notNull(channel, "channel");
 		this.executor = new LndCommandsExecutor(channel);
+		this.balanceChanged = Require.notNull(balanceChanged, "balanceChanged");
 
 		subscribeInvoice();
 	}
@@ -65,6 +69,7 @@ public class InvoicesListener implements Listener {
 					return; // Not paid. Probably added invoice.
 				}
 				log.event("onNext 3");
+				balanceChanged.run();
 				PaymentReceivedRequest req = new PaymentReceivedRequest();
 				req.label = invoicesLabels.get(invoice.getAddIndex());
 				req.index = invoice.getAddIndex();
@@ -129,6 +134,9 @@ public class InvoicesListener implements Listener {
 
 		} else {
 			executor.execute(command);
+			if (command instanceof PayInvoiceCommand) {
+				balanceChanged.run();
+			}
 		}
 	}
 
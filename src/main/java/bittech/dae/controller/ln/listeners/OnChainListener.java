@@ -1,13 +1,16 @@
 package bittech.dae.controller.ln.listeners;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import bittech.dae.controller.ln.commands.SendManyOnChainCommand;
+import bittech.dae.controller.ln.lnd.ChainTip;
 import bittech.dae.controller.ln.lnd.LndCommandsExecutor;
+import bittech.dae.controller.ln.lnd.OutpointIndex;
 import bittech.lib.commands.ln.onchain.FundsReceivedCommand;
 import bittech.lib.commands.ln.onchain.ListChainTxnsCommand;
 import bittech.lib.commands.ln.onchain.ListUnspentCommand;
@@ -25,6 +28,7 @@ import bittech.lib.protocol.Node;
 import bittech.lib.protocol.common.NoDataResponse;
 import bittech.lib.protocol.helpers.CommandBroadcaster;
 import bittech.lib.utils.Btc;
+import bittech.lib.utils.Config;
 import bittech.lib.utils.Notificator;
 import bittech.lib.utils.Require;
 import bittech.lib.utils.Utils;
@@ -44,20 +48,35 @@ public class OnChainListener implements Listener, ManagerDataProvider, OnChainFu
 
 	private final ManagedChannel channel;
 	private final LndCommandsExecutor executor;
+	private final ChainTip chainTip;
 
 	private WalletBalanceResponse lastResponse = null;
 
+	private final static long reconcileSeconds = Config.getInstance().getEntryOrDefault("onchainReconcileSeconds",
+			Long.class, 300L);
+
+	private final static String utxoIndexFile = Config.getInstance().getEntryOrDefault("utxoIndexFile", String.class,
+			"/root/ln/utxo-index.bin");
+
+	private final static long RESUBSCRIBE_SECONDS = 10;
+
 	AtomicBoolean isWorking = new AtomicBoolean(true);
 	final ExecutorService exNewFunds = Executors.newSingleThreadExecutor();
+	private final Semaphore fundsChanged = new Semaphore(0);
+	private final OutpointIndex seenUtxo = new OutpointIndex(utxoIndexFile);
+	private boolean seeded = seenUtxo.existed();
+	private volatile boolean subscribed = false;
+	private volatile long lastSubscribeAt = 0;
 
 //	private Map<String, Btc> addrAmounts = new HashMap<String, Btc>();
 
-	public OnChainListener(Node node, ManagedChannel channel, LndCommandsExecutor executor) {
+	public OnChainListener(Node node, ManagedChannel channel, LndCommandsExecutor executor, ChainTip chainTip) {
 //		this.onchainAmountsChangedBroadcaster = new CommandBroadcaster(node, "onchainAmountsChangedBroadcaster.json");
 		this.onchainTransactionReceivedBroadcaster = new CommandBroadcaster(node,
 				"onchainTransactionReceivedBroadcaster.json");
 		this.channel = Require.notNull(channel, "channel");
 		this.executor = Require.notNull(executor, "executor");
+		this.chainTip = Require.notNull(chainTip, "chainTip");
 		subcribeTransactions();
 		onchainTransactionReceivedNotifier.register(this);
 	}
@@ -69,39 +88,55 @@ public class OnChainListener implements Listener, ManagerDataProvider, OnChainFu
 
 	private void waitForNewFunds() {
 		exNewFunds.submit(() -> {
-			Map<String, Utxo> oldUtxo = new HashMap<String, Utxo>();
 			Log.build().event("Start waitForNewFunds");
+			fundsChanged.release(); // initial reconciliation
 			while (isWorking.get()) {
 				try {
-					Thread.sleep(10000);
-					
-					ListUnspentCommand cmd = new ListUnspentCommand();
-					executor.execute(cmd);
-					if (cmd.getError() != null) {
-						throw new StoredException("Executing ListUnspentCommand failed", cmd.getError().toException());
-					}
-					for (Utxo utxo : cmd.getResponse().list) {
-						String id = utxo.txId + ":" + utxo.txIndex;
-						Utxo oldU = oldUtxo.get(id);
-						if (oldU == null) {
-							oldUtxo.put(id, utxo);
-							Log.build().param("utxo", utxo).event("Notifying receivers"); 
-							onchainTransactionReceivedNotifier
-									.notifyThem((m) -> m.onchainFundsReceived(utxo.address, utxo.amount));
-						}
+					// Woken up by transactions stream. Polling is only a fallback
+					long timeout = subscribed ? reconcileSeconds : RESUBSCRIBE_SECONDS;
+					fundsChanged.tryAcquire(timeout, TimeUnit.SECONDS);
+					fundsChanged.drainPermits();
+
+					if (!subscribed && System.currentTimeMillis() - lastSubscribeAt > RESUBSCRIBE_SECONDS * 1000) {
+						subcribeTransactions();
 					}
+
+					reconcileUtxo();
 				} catch (InterruptedException ex) {
-					throw new StoredException("Waiting for new Funds thread interrupted", ex);
+					Log.build().event("Waiting for new Funds thread interrupted");
+					return null;
 				} catch (Exception ex) {
-					throw new StoredException("Exception in waiting for new Funds thread", ex);
+					new StoredException("Exception in waiting for new Funds thread", ex);
 				}
 			}
 			return null;
 		});
 	}
 
+	private void reconcileUtxo() {
+		ListUnspentCommand cmd = new ListUnspentCommand();
+		executor.execute(cmd);
+		if (cmd.getError() != null) {
+			throw new StoredException("Executing ListUnspentCommand failed", cmd.getError().toException());
+		}
+		List<Utxo> newUtxo = seenUtxo.update(cmd.getResponse().list);
+		if (!seeded) {
+			// No index yet - outputs that are already in wallet are not announced
+			seeded = true;
+			Log.build().param("count", newUtxo.size()).event("Outpoint index seeded");
+			return;
+		}
+		for (Utxo utxo : newUtxo) {
+			Log.build().param("utxo", utxo).event("Notifying receivers");
+			onchainTransactionReceivedNotifier.notifyThem((m) -> m.onchainFundsReceived(utxo.address, utxo.amount));
+		}
+	}
+
 	private void subcribeTransactions() {
 
+		lastSubscribeAt = System.currentTimeMillis();
+		subscribed = true;
+
 		LightningGrpc.LightningStub blockingStub = LightningGrpc.newStub(channel);
 
 		Rpc.GetTransactionsRequest request = Rpc.GetTransactionsRequest.newBuilder().build();
@@ -111,8 +146,10 @@ public class OnChainListener implements Listener, ManagerDataProvider, OnChainFu
 			public void onNext(Transaction tx) {
 				try {
 					Log.build().param("transaction", tx).event("New transaction returned");
-//					onchainTransactionReceivedNotifier.notifyThem((m) -> m.onchainFundsReceived("addr", new Btc()));
-
+					if (tx.getBlockHeight() > 0) {
+						chainTip.offerHeight(tx.getBlockHeight());
+					}
+					fundsChanged.release();
 				} catch (Exception ex) {
 					new StoredException("Grab wallet balance failed", ex);
 				}
@@ -121,11 +158,13 @@ public class OnChainListener implements Listener, ManagerDataProvider, OnChainFu
 			@Override
 			public void onError(Throwable t) {
 				new StoredException("Subscibed transaction thrown error", t);
+				subscribed = false;
+				fundsChanged.release(); // transactions could be missed
 			}
 
 			@Override
 			public void onCompleted() {
-				// Everything is OK
+				subscribed = false;
 			}
 
 		});
@@ -185,7 +224,8 @@ public class OnChainListener implements Listener, ManagerDataProvider, OnChainFu
 	@Override
 	public Class<?>[] getListeningCommands() {
 		return new Class<?>[] { WalletBalanceCommand.class, NewAddressCommand.class, SendOnChainCommand.class,
-				ListChainTxnsCommand.class, RegisterFundsReceivedCommand.class, ListUnspentCommand.class };
+				SendManyOnChainCommand.class, ListChainTxnsCommand.class, RegisterFundsReceivedCommand.class,
+				ListUnspentCommand.class };
 	}
 
 	@Override
@@ -218,7 +258,7 @@ public class OnChainListener implements Listener, ManagerDataProvider, OnChainFu
 	public void close() {
 		try {
 			isWorking.set(false);
-			exNewFunds.shutdown();
+			exNewFunds.shutdownNow();
 			exNewFunds.awaitTermination(15, TimeUnit.SECONDS);
 		} catch (Exception ex) {
 			throw new StoredException("Exception during closing OnChainListener", ex);
@@ -1,7 +1,9 @@
 package bittech.dae.controller.ln.listeners;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import bittech.dae.controller.ln.lnd.LndCommandsExecutor;
 import bittech.lib.commands.ln.channels.ListChannelsCommand;
@@ -80,26 +82,33 @@ public class PeersListener implements Listener {
 
 	private void executeListPeersCommand(ListPeersWithChannelsCommand cmd) {
 		ListPeersCommand listPeersCmd = new ListPeersCommand();
-		executor.execute(listPeersCmd);
+		ListChannelsCommand listChannelsCmd = new ListChannelsCommand();
+		ListPendingChannelsCommand listPendingChannelsCmd = new ListPendingChannelsCommand();
+		executor.executeAll(listPeersCmd, listChannelsCmd, listPendingChannelsCmd);
+
 		if (listPeersCmd.getError() != null) {
 			throw new StoredException("Executeing ListPeersWithChannelsCommand failed",
 					new Exception("Executing ListPeersCommand failed", listPeersCmd.getError().toException()));
 		}
-
-		ListChannelsCommand listChannelsCmd = new ListChannelsCommand();
-		executor.execute(listChannelsCmd);
 		if (listChannelsCmd.getError() != null) {
 			throw new StoredException("Executeing ListPeersWithChannelsCommand failed",
 					new Exception("Executing ListChannelsCommand failed", listChannelsCmd.getError().toException()));
 		}
-
-		ListPendingChannelsCommand listPendingChannelsCmd = new ListPendingChannelsCommand();
-		executor.execute(listPendingChannelsCmd);
 		if (listPendingChannelsCmd.getError() != null) {
 			throw new StoredException("Executeing ListPeersWithChannelsCommand failed", new Exception(
 					"Executing ListPendingChannelsCommand failed", listPendingChannelsCmd.getError().toException()));
 		}
 
+		Map<String, List<PendingOpenChannel>> pendingOpen = groupByPeer(
+				listPendingChannelsCmd.getResponse().pending_open_channels);
+		Map<String, List<ActiveChannel>> opened = groupByPeer(listChannelsCmd.getResponse().channels);
+		Map<String, List<ClosedChannel>> pendingClosing = groupByPeer(
+				listPendingChannelsCmd.getResponse().pending_closing_channels);
+		Map<String, List<ForceClosedChannel>> pendingForceClosing = groupByPeer(
+				listPendingChannelsCmd.getResponse().pending_force_closing_channels);
+		Map<String, List<WaitingCloseChannel>> waitingClose = groupByPeer(
+				listPendingChannelsCmd.getResponse().waiting_close_channels);
+
 		cmd.response = new ListPeersWithChannelsResponse();
 		cmd.response.peers = new ArrayList<Peer>(listPeersCmd.getResponse().peers.size());
 		for (ListPeersResponse.Peer origPeer : listPeersCmd.getResponse().peers) {
@@ -113,33 +122,43 @@ public class PeersListener implements Listener {
 			peer.inbound = origPeer.inbound;
 			peer.pingTime = origPeer.pingTime;
 
-			peer.pending_open_channels = new ArrayList<PendingOpenChannel>();
-			copy(peer.id, listPendingChannelsCmd.getResponse().pending_open_channels, peer.pending_open_channels);
-
-			peer.openedChannels = new ArrayList<ActiveChannel>();
-			copy(peer.id, listChannelsCmd.getResponse().channels, peer.openedChannels);
-			peer.pending_closing_channels = new ArrayList<ClosedChannel>();
-			copy(peer.id, listPendingChannelsCmd.getResponse().pending_closing_channels, peer.pending_closing_channels);
-			peer.pending_force_closing_channels = new ArrayList<ForceClosedChannel>();
-			copy(peer.id, listPendingChannelsCmd.getResponse().pending_force_closing_channels,
-					peer.pending_force_closing_channels);
-			peer.waiting_close_channels = new ArrayList<WaitingCloseChannel>();
-			copy(peer.id, listPendingChannelsCmd.getResponse().waiting_close_channels, peer.waiting_close_channels);
+			peer.pending_open_channels = channelsOf(peer.id, pendingOpen);
+			peer.openedChannels = channelsOf(peer.id, opened);
+			peer.pending_closing_channels = channelsOf(peer.id, pendingClosing);
+			peer.pending_force_closing_channels = channelsOf(peer.id, pendingForceClosing);
+			peer.waiting_close_channels = channelsOf(peer.id, waitingClose);
 
 			cmd.response.peers.add(peer);
 		}
 
 	}
 
-	private <T extends Channel> void copy(String nodId, List<T> listFrom, List<T> listTo) {
-		if (listFrom == listTo) {
-			throw new StoredException("Cannot copy lists. ListFrom and listTo are the same object!", null);
+	/**
+	 * Single pass over channels. Order of channels of each peer is kept
+	 */
+	private static <T extends Channel> Map<String, List<T>> groupByPeer(List<T> channels) {
+		Map<String, List<T>> byPeer = new HashMap<String, List<T>>();
+		if (channels == null) {
+			return byPeer;
 		}
-		for (T ch : listFrom) {
-			if (nodId.equals(ch.remote_node_pub)) {
-				listTo.add(ch);
+		for (T ch : channels) {
+			if (ch.remote_node_pub == null) {
+				continue;
 			}
+			List<T> list = byPeer.get(ch.remote_node_pub);
+			if (list == null) {
+				list = new ArrayList<T>(1);
+				byPeer.put(ch.remote_node_pub, list);
+			}
+			list.add(ch);
 		}
+		return byPeer;
+	}
+
+	private static <T extends Channel> List<T> channelsOf(String nodeId, Map<String, List<T>> byPeer) {
+		List<T> list = byPeer.get(nodeId);
+		// Each peer gets its own list, as before
+		return list == null ? new ArrayList<T>() : new ArrayList<T>(list);
 	}
 
 	@Override
@@ -0,0 +1,166 @@
+package bittech.dae.controller.ln.lnd;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import bittech.lib.commands.ln.GetInfoCommand;
+import bittech.lib.utils.Config;
+import bittech.lib.utils.Require;
+import bittech.lib.utils.exceptions.StoredException;
+
+/**
+ * Cached chain tip (block height and best header timestamp). Height is pushed
+ * by anything that sees new blocks (transactions stream, graph updates).
+ * Snapshot older than max age is still returned and refreshed with GetInfo in
+ * background. Snapshot older than a few max ages (e.g. after idle period) is
+ * refreshed synchronously, waiting for lnd at most syncWaitMillis, and the very
+ * first read always waits. If refresh fails, the last height is kept.
+ */
+public class ChainTip {
+
+	private final static long maxAgeMillis = 1000L
+			* Config.getInstance().getEntryOrDefault("chainTipMaxAgeSeconds", Long.class, 10L);
+
+	private final static long syncWaitMillis = Config.getInstance().getEntryOrDefault("chainTipSyncWaitMillis",
+			Long.class, 2000L);
+
+	private static final int STALE_MAX_AGES = 6;
+
+	public static final class Snapshot {
+		public final int height;
+		public final long headerTimestamp;
+		public final long fetchedAt;
+
+		private Snapshot(int height, long headerTimestamp, long fetchedAt) {
+			this.height = height;
+			this.headerTimestamp = headerTimestamp;
+			this.fetchedAt = fetchedAt;
+		}
+	}
+
+	private final Consumer<GetInfoCommand> getInfoExecutor;
+	private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>();
+	private final AtomicReference<CompletableFuture<Void>> refreshing = new AtomicReference<CompletableFuture<Void>>();
+
+	private final ExecutorService refresher = Executors.newSingleThreadExecutor((r) -> {
+		Thread t = new Thread(r, "chain-tip-refresher");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * @param getInfoExecutor executes GetInfoCommand, e.g. LndCommandsExecutor or
+	 *                        Connection to controller
+	 */
+	public ChainTip(Consumer<GetInfoCommand> getInfoExecutor) {
+		this.getInfoExecutor = Require.notNull(getInfoExecutor, "getInfoExecutor");
+	}
+
+	public int getHeight() {
+		return getSnapshot().height;
+	}
+
+	public Snapshot getSnapshot() {
+		Snapshot s = snapshot.get();
+		if (s == null) {
+			return fetchFirst();
+		}
+		long age = System.currentTimeMillis() - s.fetchedAt;
+		if (age <= maxAgeMillis) {
+			return s;
+		}
+		CompletableFuture<Void> refresh = refresh();
+		if (age > STALE_MAX_AGES * maxAgeMillis) {
+			try {
+				refresh.get(syncWaitMillis, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException | ExecutionException ex) {
+				// failure is logged by refresher, the last height is used
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			return snapshot.get();
+		}
+		return s;
+	}
+
+	/**
+	 * New block seen. Lower or equal heights are ignored
+	 */
+	public void offerHeight(int height) {
+		while (true) {
+			Snapshot s = snapshot.get();
+			if (s == null || height <= s.height) {
+				return;
+			}
+			if (snapshot.compareAndSet(s, new Snapshot(height, s.headerTimestamp, System.currentTimeMillis()))) {
+				return;
+			}
+		}
+	}
+
+	private synchronized Snapshot fetchFirst() {
+		Snapshot s = snapshot.get();
+		if (s != null) {
+			return s; // fetched by other thread in the meantime
+		}
+		fetch();
+		return snapshot.get();
+	}
+
+	/**
+	 * Starts background refresh unless one is running already
+	 *
+	 * @return future of the running refresh
+	 */
+	private CompletableFuture<Void> refresh() {
+		CompletableFuture<Void> refresh = new CompletableFuture<Void>();
+		if (!refreshing.compareAndSet(null, refresh)) {
+			CompletableFuture<Void> running = refreshing.get();
+			return running != null ? running : CompletableFuture.completedFuture(null);
+		}
+		try {
+			refresher.execute(() -> {
+				try {
+					fetch();
+					refresh.complete(null);
+				} catch (Exception ex) {
+					new StoredException("Cannot refresh chain tip. Keeping height " + snapshot.get().height, ex);
+					refresh.completeExceptionally(ex);
+				} finally {
+					refreshing.compareAndSet(refresh, null);
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			refreshing.compareAndSet(refresh, null);
+			refresh.completeExceptionally(ex);
+		}
+		return refresh;
+	}
+
+	private void fetch() {
+		GetInfoCommand cmd = new GetInfoCommand();
+		getInfoExecutor.accept(cmd);
+		if (cmd.getError() != null) {
+			throw new StoredException("GetInfoCommand failed", cmd.getError().toException());
+		}
+		long now = System.currentTimeMillis();
+		while (true) {
+			Snapshot s = snapshot.get();
+			int height = cmd.getResponse().block_height;
+			if (s != null && s.height > height) {
+				height = s.height; // pushed height was ahead of lnd response
+			}
+			if (snapshot.compareAndSet(s, new Snapshot(height, cmd.getResponse().best_header_timestamp, now))) {
+				return;
+			}
+		}
+	}
+
+}
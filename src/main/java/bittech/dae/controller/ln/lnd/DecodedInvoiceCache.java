@@ -0,0 +1,91 @@
+package bittech.dae.controller.ln.lnd;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import bittech.lib.commands.ln.invoices.DecodeInvoiceCommand;
+import bittech.lib.commands.ln.invoices.DecodeInvoiceResponse;
+import bittech.lib.utils.Config;
+import bittech.lib.utils.Require;
+
+/**
+ * Bounded LRU cache of successfully executed decode commands, keyed by payment
+ * request. Entry lives until the invoice itself expires. Cached commands are
+ * shared between callers and must not be modified.
+ */
+public class DecodedInvoiceCache<T extends DecodeInvoiceCommand> {
+
+	private final static int maxSize = Config.getInstance().getEntryOrDefault("invoiceCacheSize", Integer.class,
+			10000);
+
+	private static final long DEFAULT_EXPIRY_SECONDS = 3600;
+
+	private static final class Entry<T> {
+		final T command;
+		final long expiresAt;
+
+		Entry(T command, long expiresAt) {
+			this.command = command;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private final Function<String, T> commandFactory;
+	private final Consumer<T> executor;
+
+	private final Map<String, Entry<T>> entries = new LinkedHashMap<String, Entry<T>>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry<T>> eldest) {
+			return size() > maxSize;
+		}
+	};
+
+	/**
+	 * @param commandFactory creates decode command for payment request
+	 * @param executor       executes the command, e.g. LndCommandsExecutor or
+	 *                       Connection to controller
+	 */
+	public DecodedInvoiceCache(Function<String, T> commandFactory, Consumer<T> executor) {
+		this.commandFactory = Require.notNull(commandFactory, "commandFactory");
+		this.executor = Require.notNull(executor, "executor");
+	}
+
+	/**
+	 * @return executed command. Check getError() as for not cached one
+	 */
+	public T decode(String paymentRequest) {
+		Require.notEmpty(paymentRequest, "paymentRequest");
+		long now = System.currentTimeMillis();
+		synchronized (entries) {
+			Entry<T> entry = entries.get(paymentRequest);
+			if (entry != null) {
+				if (entry.expiresAt > now) {
+					return entry.command;
+				}
+				entries.remove(paymentRequest);
+			}
+		}
+
+		T cmd = commandFactory.apply(paymentRequest);
+		executor.accept(cmd);
+		if (cmd.getError() == null) {
+			long expiresAt = expiresAt(cmd.getResponse());
+			if (expiresAt > now) {
+				synchronized (entries) {
+					entries.put(paymentRequest, new Entry<T>(cmd, expiresAt));
+				}
+			}
+		}
+		return cmd;
+	}
+
+	private static long expiresAt(DecodeInvoiceResponse response) {
+		long expiry = response.expiry > 0 ? response.expiry : DEFAULT_EXPIRY_SECONDS;
+		return (response.timestamp + expiry) * 1000;
+	}
+
+}
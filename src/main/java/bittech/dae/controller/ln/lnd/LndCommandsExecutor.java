@@ -1,12 +1,26 @@
 package bittech.dae.controller.ln.lnd;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.lang3.StringUtils;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.ByteString;
+
+import bittech.dae.controller.ln.commands.DecodeInvoiceWithAddrCommand;
+import bittech.dae.controller.ln.commands.PayToRouteMppCommand;
+import bittech.dae.controller.ln.commands.SendManyOnChainCommand;
 import bittech.lib.commands.ln.GetInfoCommand;
 import bittech.lib.commands.ln.GetInfoResponse;
 import bittech.lib.commands.ln.channels.CloseChannelCommand;
@@ -63,12 +77,15 @@ import bittech.lib.protocol.Command;
 import bittech.lib.protocol.ErrorResponse;
 import bittech.lib.protocol.common.NoDataResponse;
 import bittech.lib.utils.Btc;
+import bittech.lib.utils.Config;
 import bittech.lib.utils.FormattedTime;
 import bittech.lib.utils.FormattedTime.Precision;
 import bittech.lib.utils.Require;
 import bittech.lib.utils.exceptions.StoredException;
 import bittech.lib.utils.logs.Log;
 import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
 import lnrpc.LightningGrpc;
 import lnrpc.Rpc;
 import lnrpc.Rpc.AddressType;
@@ -80,15 +97,64 @@ import lnrpc.Rpc.Transaction;
 
 public class LndCommandsExecutor {
 
+	private final static long deadlineSeconds = Config.getInstance().getEntryOrDefault("lndRpcDeadlineSeconds",
+			Long.class, 60L);
+
+	// Payments, channel opening and closing and graph download can take much longer
+	private final static long longDeadlineSeconds = Config.getInstance()
+			.getEntryOrDefault("lndRpcLongDeadlineSeconds", Long.class, 600L);
+
 	private final ManagedChannel channel;
+	private final LightningGrpc.LightningFutureStub futureStub;
+	private final LightningGrpc.LightningStub asyncStub;
 
 	public LndCommandsExecutor(final ManagedChannel channel) {
 		this.channel = Require.notNull(channel, "channel");
+		this.futureStub = LightningGrpc.newFutureStub(channel);
+		this.asyncStub = LightningGrpc.newStub(channel);
 	}
 
+	/**
+	 * Executes command and waits for the result. Errors are stored in command
+	 */
 	public void execute(Command<?, ?> command) {
 		try {
-			LightningGrpc.LightningBlockingStub blockingStub = LightningGrpc.newBlockingStub(channel);
+			executeAsync(command).get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			fail(command, ex);
+		} catch (ExecutionException ex) {
+			fail(command, ex.getCause());
+		}
+	}
+
+	/**
+	 * Executes independent commands in parallel and waits for all of them
+	 */
+	public void executeAll(Command<?, ?>... commands) {
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[commands.length];
+		for (int i = 0; i < commands.length; i++) {
+			futures[i] = executeAsync(commands[i]);
+		}
+		try {
+			CompletableFuture.allOf(futures).get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new StoredException("Interrupted while waiting for lnd", ex);
+		} catch (ExecutionException ex) {
+			throw new StoredException("Executing commands failed", ex.getCause());
+		}
+	}
+
+	/**
+	 * Sends command to lnd without blocking the caller. Returned future completes
+	 * when command response or error is set - it never completes exceptionally.
+	 * Cancelling the future cancels the rpc.
+	 */
+	public CompletableFuture<Void> executeAsync(Command<?, ?> command) {
+		try {
+			long deadline = deadlineFor(command);
+			LightningGrpc.LightningFutureStub stub = futureStub.withDeadlineAfter(deadline, TimeUnit.SECONDS);
 
 			// !!! Commented out, because no blockingStub.unlockWallet method :/ !!!
 //			if (command instanceof UnlockWalletCommand) { 
@@ -101,66 +167,70 @@ public class LndCommandsExecutor {
 
 				GetInfoCommand cmd = (GetInfoCommand) command;
 				Rpc.GetInfoRequest request = Rpc.GetInfoRequest.newBuilder().build();
-				Rpc.GetInfoResponse response = blockingStub.getInfo(request);
-
-				cmd.response = new GetInfoResponse();
-				cmd.response.alias = response.getAlias();
-				cmd.response.best_header_timestamp = response.getBestHeaderTimestamp();
-				cmd.response.block_hash = response.getBlockHash();
-				cmd.response.block_height = response.getBlockHeight();
-				cmd.response.chains = new ArrayList<String>(response.getChainsCount());
-				for (Chain chain : response.getChainsList()) {
-					cmd.response.chains.add(chain.getChain());
-				}
-				cmd.response.identity_pubkey = response.getIdentityPubkey();
-				cmd.response.num_active_channels = response.getNumActiveChannels();
-				cmd.response.num_inactive_channels = response.getNumInactiveChannels();
-				cmd.response.num_peers = response.getNumPeers();
-				cmd.response.num_pending_channels = response.getNumPendingChannels();
-				cmd.response.synced_to_chain = response.getSyncedToChain();
-				cmd.response.uris = response.getUrisList();
-				cmd.response.version = response.getVersion();
+				return call(cmd, stub.getInfo(request), (response) -> {
+
+					cmd.response = new GetInfoResponse();
+					cmd.response.alias = response.getAlias();
+					cmd.response.best_header_timestamp = response.getBestHeaderTimestamp();
+					cmd.response.block_hash = response.getBlockHash();
+					cmd.response.block_height = response.getBlockHeight();
+					cmd.response.chains = new ArrayList<String>(response.getChainsCount());
+					for (Chain chain : response.getChainsList()) {
+						cmd.response.chains.add(chain.getChain());
+					}
+					cmd.response.identity_pubkey = response.getIdentityPubkey();
+					cmd.response.num_active_channels = response.getNumActiveChannels();
+					cmd.response.num_inactive_channels = response.getNumInactiveChannels();
+					cmd.response.num_peers = response.getNumPeers();
+					cmd.response.num_pending_channels = response.getNumPendingChannels();
+					cmd.response.synced_to_chain = response.getSyncedToChain();
+					cmd.response.uris = response.getUrisList();
+					cmd.response.version = response.getVersion();
+				});
 
 			} else if (command instanceof NewAddressCommand) {
 
 				NewAddressCommand cmd = (NewAddressCommand) command;
 				Rpc.NewAddressRequest request = Rpc.NewAddressRequest.newBuilder()
 						.setType(AddressType.WITNESS_PUBKEY_HASH).build();
-				Rpc.NewAddressResponse response = blockingStub.newAddress(request);
-				cmd.response = new NewAddressResponse();
-				cmd.response.address = response.getAddress();
+				return call(cmd, stub.newAddress(request), (response) -> {
+					cmd.response = new NewAddressResponse();
+					cmd.response.address = response.getAddress();
+				});
 
 			} else if (command instanceof WalletBalanceCommand) {
 
 				WalletBalanceCommand cmd = (WalletBalanceCommand) command;
 				Rpc.WalletBalanceRequest request = Rpc.WalletBalanceRequest.newBuilder().build();
-				Rpc.WalletBalanceResponse response = blockingStub.walletBalance(request);
+				return call(cmd, stub.walletBalance(request), (response) -> {
 
-				cmd.response = new WalletBalanceResponse();
-				cmd.response.confirmed_balance = Btc.fromSat(response.getConfirmedBalance());
-				cmd.response.total_balance = Btc.fromSat(response.getTotalBalance());
-				cmd.response.unconfirmed_balance = Btc.fromSat(response.getUnconfirmedBalance());
+					cmd.response = new WalletBalanceResponse();
+					cmd.response.confirmed_balance = Btc.fromSat(response.getConfirmedBalance());
+					cmd.response.total_balance = Btc.fromSat(response.getTotalBalance());
+					cmd.response.unconfirmed_balance = Btc.fromSat(response.getUnconfirmedBalance());
+				});
 
 			} else if (command instanceof ListChainTxnsCommand) {
 
 				ListChainTxnsCommand cmd = (ListChainTxnsCommand) command;
 				Rpc.GetTransactionsRequest request = Rpc.GetTransactionsRequest.newBuilder().build();
-				Rpc.TransactionDetails response = blockingStub.getTransactions(request);
-
-				cmd.response = new ListChainTxnsResponse();
-				for (Transaction tx : response.getTransactionsList()) {
-					ListChainTxnsResponse.OnchainTransaction otx = new ListChainTxnsResponse.OnchainTransaction();
-					otx.amount = Btc.fromSat(tx.getAmount());
-					otx.block_hash = tx.getBlockHash();
-					otx.block_height = tx.getBlockHeight();
-					otx.dest_addresses = tx.getDestAddressesList();
-					otx.num_confirmations = tx.getNumConfirmations();
-					otx.time_stamp = tx.getTimeStamp();
-					otx.total_fees = Btc.fromMsat(tx.getTotalFees());
-					otx.tx_hash = tx.getTxHash();
-
-					cmd.response.transactions.add(otx);
-				}
+				return call(cmd, stub.getTransactions(request), (response) -> {
+
+					cmd.response = new ListChainTxnsResponse();
+					for (Transaction tx : response.getTransactionsList()) {
+						ListChainTxnsResponse.OnchainTransaction otx = new ListChainTxnsResponse.OnchainTransaction();
+						otx.amount = Btc.fromSat(tx.getAmount());
+						otx.block_hash = tx.getBlockHash();
+						otx.block_height = tx.getBlockHeight();
+						otx.dest_addresses = tx.getDestAddressesList();
+						otx.num_confirmations = tx.getNumConfirmations();
+						otx.time_stamp = tx.getTimeStamp();
+						otx.total_fees = Btc.fromMsat(tx.getTotalFees());
+						otx.tx_hash = tx.getTxHash();
+
+						cmd.response.transactions.add(otx);
+					}
+				});
 
 			} else if (command instanceof ConnectPeerCommand) {
 
@@ -171,9 +241,10 @@ public class LndCommandsExecutor {
 				}
 				LightningAddress addr = LightningAddress.newBuilder().setPubkey(splited[0]).setHost(splited[1]).build();
 				Rpc.ConnectPeerRequest request = Rpc.ConnectPeerRequest.newBuilder().setAddr(addr).build();
-				/* Rpc.ConnectPeerResponse response = */blockingStub.connectPeer(request);
+				return call(cmd, stub.connectPeer(request), (response) -> {
 
-				cmd.response = new NoDataResponse();
+					cmd.response = new NoDataResponse();
+				});
 
 			} else if (command instanceof OpenChannelCommand) {
 
@@ -182,18 +253,19 @@ public class LndCommandsExecutor {
 						.setNodePubkeyString(cmd.getRequest().nodeId)
 						.setLocalFundingAmount(cmd.getRequest().capacity.toSatRoundFloor())
 						.setPushSat(cmd.getRequest().pushAmount.toSatRoundFloor()).build();
-				Rpc.ChannelPoint response = blockingStub.openChannelSync(request);
-
-				Log.build().param("response", response).event("Channel opened");
-				cmd.response = new OpenChannelResponse();
-				byte[] bb = new byte[response.getFundingTxidBytes().size()];
-				int i = response.getFundingTxidBytes().size() - 1;
-				for (byte b : response.getFundingTxidBytes().toByteArray()) {
-					bb[i] = b;
-					i--;
-				}
-				cmd.response.txId = Hex.encodeHexString(bb);
-				cmd.response.outputIndex = response.getOutputIndex();
+				return call(cmd, stub.openChannelSync(request), (response) -> {
+
+					Log.build().param("response", response).event("Channel opened");
+					cmd.response = new OpenChannelResponse();
+					byte[] bb = new byte[response.getFundingTxidBytes().size()];
+					int i = response.getFundingTxidBytes().size() - 1;
+					for (byte b : response.getFundingTxidBytes().toByteArray()) {
+						bb[i] = b;
+						i--;
+					}
+					cmd.response.txId = Hex.encodeHexString(bb);
+					cmd.response.outputIndex = response.getOutputIndex();
+				});
 
 			} else if (command instanceof AddInvoiceCommand) {
 
@@ -208,11 +280,12 @@ public class LndCommandsExecutor {
 					builder.setMemo(cmd.getRequest().memo);
 				}
 
-				Rpc.AddInvoiceResponse response = blockingStub.addInvoice(builder.build());
+				return call(cmd, stub.addInvoice(builder.build()), (response) -> {
 
-				cmd.response = new AddInvoiceResponse();
-				cmd.response.payment_request = response.getPaymentRequest();
-				cmd.response.add_index = response.getAddIndex();
+					cmd.response = new AddInvoiceResponse();
+					cmd.response.payment_request = response.getPaymentRequest();
+					cmd.response.add_index = response.getAddIndex();
+				});
 
 			} else if (command instanceof SendOnChainCommand) {
 
@@ -225,10 +298,27 @@ public class LndCommandsExecutor {
 
 				builder.setAddr(cmd.getRequest().addr);
 
-				Rpc.SendCoinsResponse response = blockingStub.sendCoins(builder.build());
+				return call(cmd, stub.sendCoins(builder.build()), (response) -> {
 
-				cmd.response = new SendOnChainResponse();
-				cmd.response.txId = response.getTxid();
+					cmd.response = new SendOnChainResponse();
+					cmd.response.txId = response.getTxid();
+				});
+
+			} else if (command instanceof SendManyOnChainCommand) {
+
+				SendManyOnChainCommand cmd = (SendManyOnChainCommand) command;
+				Map<String, Long> addrToAmount = new HashMap<String, Long>();
+				for (Map.Entry<String, Btc> output : cmd.getRequest().addrToAmount.entrySet()) {
+					addrToAmount.put(output.getKey(), output.getValue().toSatRoundFloor());
+				}
+				Rpc.SendManyRequest request = Rpc.SendManyRequest.newBuilder().putAllAddrToAmount(addrToAmount)
+						.build();
+
+				return call(cmd, stub.sendMany(request), (response) -> {
+
+					cmd.response = new SendOnChainResponse();
+					cmd.response.txId = response.getTxid();
+				});
 
 			} else if (command instanceof ListUnspentCommand) {
 
@@ -237,74 +327,81 @@ public class LndCommandsExecutor {
 				builder.setMinConfs(0);
 				builder.setMaxConfs(Integer.MAX_VALUE);
 
-				Rpc.ListUnspentResponse response = blockingStub.listUnspent(builder.build());
+				return call(cmd, stub.listUnspent(builder.build()), (response) -> {
 
-				cmd.response = new ListUnspentResponse();
+					cmd.response = new ListUnspentResponse();
 
-				cmd.response.list = new ArrayList<Utxo>(response.getUtxosCount());
+					cmd.response.list = new ArrayList<Utxo>(response.getUtxosCount());
 
-				for (Rpc.Utxo rpcUtxo : response.getUtxosList()) {
-					Utxo utxo = new Utxo();
-					utxo.address = rpcUtxo.getAddress();
-					utxo.txId = rpcUtxo.getOutpoint().getTxidStr();
-					utxo.txIndex = rpcUtxo.getOutpoint().getOutputIndex();
-					utxo.amount = Btc.fromSat(rpcUtxo.getAmountSat());
-					utxo.confirmations = rpcUtxo.getConfirmations();
-					utxo.scriptPubkey = rpcUtxo.getPkScript();
-					cmd.response.list.add(utxo);
-				}
+					for (Rpc.Utxo rpcUtxo : response.getUtxosList()) {
+						Utxo utxo = new Utxo();
+						utxo.address = rpcUtxo.getAddress();
+						utxo.txId = rpcUtxo.getOutpoint().getTxidStr();
+						utxo.txIndex = rpcUtxo.getOutpoint().getOutputIndex();
+						utxo.amount = Btc.fromSat(rpcUtxo.getAmountSat());
+						utxo.confirmations = rpcUtxo.getConfirmations();
+						utxo.scriptPubkey = rpcUtxo.getPkScript();
+						cmd.response.list.add(utxo);
+					}
+				});
 
 			} else if (command instanceof ListChannelsCommand) {
 
 				ListChannelsCommand cmd = (ListChannelsCommand) command;
 				Rpc.ListChannelsRequest.Builder builder = Rpc.ListChannelsRequest.newBuilder();
 
-				Rpc.ListChannelsResponse response = blockingStub.listChannels(builder.build());
-
-				cmd.response = new ListChannelsResponse();
-				cmd.response.channels = new ArrayList<ActiveChannel>(response.getChannelsCount());
-
-				for (lnrpc.Rpc.Channel lndChannel : response.getChannelsList()) {
-					ActiveChannel channel = new ActiveChannel();
-					channel.remote_node_pub = lndChannel.getRemotePubkey();
-					channel.active = lndChannel.getActive();
-					channel.capacity = Btc.fromSat(lndChannel.getCapacity());
-					channel.id = channelIdFromLong(lndChannel.getChanId());
-					channel.channel_point = lndChannel.getChannelPoint();
-					channel.commit_fee = Btc.fromSat(lndChannel.getCommitFee());
-					channel.commit_weight = lndChannel.getCommitWeight();
-					channel.csv_delay = lndChannel.getCsvDelay();
-					channel.fee_per_kw = Btc.fromSat(lndChannel.getFeePerKw());
-					channel.initiator = lndChannel.getInitiator();
-					channel.isPrivate = lndChannel.getPrivate();
-					channel.local_balance = Btc.fromSat(lndChannel.getLocalBalance());
-					channel.num_updates = lndChannel.getNumUpdates();
-					channel.pending_htlcs = null; // Todo: change
-					channel.remote_balance = Btc.fromSat(lndChannel.getRemoteBalance());
-					channel.total_satoshis_received = Btc.fromSat(lndChannel.getTotalSatoshisReceived());
-					channel.total_satoshis_sent = Btc.fromSat(lndChannel.getTotalSatoshisSent());
-					channel.unsettled_balance = Btc.fromSat(lndChannel.getUnsettledBalance());
-
-					cmd.response.channels.add(channel);
-				}
+				return call(cmd, stub.listChannels(builder.build()), (response) -> {
+
+					cmd.response = new ListChannelsResponse();
+					cmd.response.channels = new ArrayList<ActiveChannel>(response.getChannelsCount());
+
+					for (lnrpc.Rpc.Channel lndChannel : response.getChannelsList()) {
+						ActiveChannel channel = new ActiveChannel();
+						channel.remote_node_pub = lndChannel.getRemotePubkey();
+						channel.active = lndChannel.getActive();
+						channel.capacity = Btc.fromSat(lndChannel.getCapacity());
+						channel.id = channelIdFromLong(lndChannel.getChanId());
+						channel.channel_point = lndChannel.getChannelPoint();
+						channel.commit_fee = Btc.fromSat(lndChannel.getCommitFee());
+						channel.commit_weight = lndChannel.getCommitWeight();
+						channel.csv_delay = lndChannel.getCsvDelay();
+						channel.fee_per_kw = Btc.fromSat(lndChannel.getFeePerKw());
+						channel.initiator = lndChannel.getInitiator();
+						channel.isPrivate = lndChannel.getPrivate();
+						channel.local_balance = Btc.fromSat(lndChannel.getLocalBalance());
+						channel.num_updates = lndChannel.getNumUpdates();
+						channel.pending_htlcs = null; // Todo: change
+						channel.remote_balance = Btc.fromSat(lndChannel.getRemoteBalance());
+						channel.total_satoshis_received = Btc.fromSat(lndChannel.getTotalSatoshisReceived());
+						channel.total_satoshis_sent = Btc.fromSat(lndChannel.getTotalSatoshisSent());
+						channel.unsettled_balance = Btc.fromSat(lndChannel.getUnsettledBalance());
+
+						cmd.response.channels.add(channel);
+					}
+				});
 			} else if (command instanceof DecodeInvoiceCommand) {
 				DecodeInvoiceCommand cmd = (DecodeInvoiceCommand) command;
 
 				Rpc.PayReqString.Builder builder = Rpc.PayReqString.newBuilder()
 						.setPayReq(cmd.getRequest().paymentRequest);
-				Rpc.PayReq response = blockingStub.decodePayReq(builder.build());
-
-				cmd.response = new DecodeInvoiceResponse();
-				cmd.response.amount = response.getNumSatoshis() > 0 ? Btc.fromSat(response.getNumSatoshis()) : null;
-				cmd.response.cltv_expiry = (int)response.getCltvExpiry();
-				cmd.response.description = response.getDescription();
-				cmd.response.description_hash = response.getDescriptionHash();
-				cmd.response.destination = response.getDestination();
-				cmd.response.expiry = response.getExpiry();
-				cmd.response.fallback_addr = response.getFallbackAddr();
-				cmd.response.payment_hash = response.getPaymentHash();
-				cmd.response.route_hints = copyRouteHints(response.getRouteHintsList());
-				cmd.response.timestamp = response.getTimestamp();
+				return call(cmd, stub.decodePayReq(builder.build()), (response) -> {
+
+					cmd.response = new DecodeInvoiceResponse();
+					cmd.response.amount = response.getNumSatoshis() > 0 ? Btc.fromSat(response.getNumSatoshis()) : null;
+					cmd.response.cltv_expiry = (int)response.getCltvExpiry();
+					cmd.response.description = response.getDescription();
+					cmd.response.description_hash = response.getDescriptionHash();
+					cmd.response.destination = response.getDestination();
+					cmd.response.expiry = response.getExpiry();
+					cmd.response.fallback_addr = response.getFallbackAddr();
+					cmd.response.payment_hash = response.getPaymentHash();
+					cmd.response.route_hints = copyRouteHints(response.getRouteHintsList());
+					cmd.response.timestamp = response.getTimestamp();
+
+					if (cmd instanceof DecodeInvoiceWithAddrCommand) {
+						((DecodeInvoiceWithAddrCommand) cmd).paymentAddr = Hex.encodeHexString(response.getPaymentAddr().toByteArray());
+					}
+				});
 
 			} else if (command instanceof PayInvoiceCommand) {
 				PayInvoiceCommand cmd = (PayInvoiceCommand) command;
@@ -321,31 +418,32 @@ public class LndCommandsExecutor {
 					builder.setAmt(cmd.getRequest().amount.toSatRoundFloor());
 				}
 
-				Rpc.SendResponse response = blockingStub.sendPaymentSync(builder.build());
-				if (response.getPaymentError() != null && !response.getPaymentError().isEmpty()) {
-					cmd.error = new ErrorResponse(
-							new Exception("Payment failed. Reason from LND: " + response.getPaymentError()));
-				} else {
-					cmd.response = new PayInvoiceResponse();
-					cmd.response.paymentPreimage = Base64
-							.encodeBase64String(response.getPaymentPreimage().toByteArray());
-					cmd.response.route = new Route();
-					cmd.response.route.totalTimeLock = response.getPaymentRoute().getTotalTimeLock();
-					cmd.response.route.totalAmount = Btc.fromMsat(response.getPaymentRoute().getTotalAmtMsat());
-					cmd.response.route.totalFees = Btc.fromMsat(response.getPaymentRoute().getTotalFeesMsat());
-					cmd.response.route.hops = new ArrayList<Hop>(response.getPaymentRoute().getHopsCount());
-					for (lnrpc.Rpc.Hop rcpHop : response.getPaymentRoute().getHopsList()) {
-						Hop hop = new Hop();
-						hop.amountToForward = Btc.fromMsat(rcpHop.getAmtToForwardMsat());
-						hop.channelCapacity = Btc.fromSat(rcpHop.getChanCapacity());
-						hop.channelId = channelIdFromLong(rcpHop.getChanId());
-						hop.expiry = rcpHop.getExpiry();
-						hop.fee = Btc.fromMsat(rcpHop.getFeeMsat());
-						hop.pubKey = rcpHop.getPubKey();
-						cmd.response.route.hops.add(hop);
-					}
+				return call(cmd, stub.sendPaymentSync(builder.build()), (response) -> {
+					if (response.getPaymentError() != null && !response.getPaymentError().isEmpty()) {
+						cmd.error = new ErrorResponse(
+								new Exception("Payment failed. Reason from LND: " + response.getPaymentError()));
+					} else {
+						cmd.response = new PayInvoiceResponse();
+						cmd.response.paymentPreimage = Base64
+								.encodeBase64String(response.getPaymentPreimage().toByteArray());
+						cmd.response.route = new Route();
+						cmd.response.route.totalTimeLock = response.getPaymentRoute().getTotalTimeLock();
+						cmd.response.route.totalAmount = Btc.fromMsat(response.getPaymentRoute().getTotalAmtMsat());
+						cmd.response.route.totalFees = Btc.fromMsat(response.getPaymentRoute().getTotalFeesMsat());
+						cmd.response.route.hops = new ArrayList<Hop>(response.getPaymentRoute().getHopsCount());
+						for (lnrpc.Rpc.Hop rcpHop : response.getPaymentRoute().getHopsList()) {
+							Hop hop = new Hop();
+							hop.amountToForward = Btc.fromMsat(rcpHop.getAmtToForwardMsat());
+							hop.channelCapacity = Btc.fromSat(rcpHop.getChanCapacity());
+							hop.channelId = channelIdFromLong(rcpHop.getChanId());
+							hop.expiry = rcpHop.getExpiry();
+							hop.fee = Btc.fromMsat(rcpHop.getFeeMsat());
+							hop.pubKey = rcpHop.getPubKey();
+							cmd.response.route.hops.add(hop);
+						}
 
-				}
+					}
+				});
 			} else if (command instanceof CloseChannelCommand) {
 				CloseChannelCommand cmd = (CloseChannelCommand) command;
 				Rpc.CloseChannelRequest.Builder builder = Rpc.CloseChannelRequest.newBuilder();
@@ -359,164 +457,190 @@ public class LndCommandsExecutor {
 						.setOutputIndex(Integer.parseInt(point[1])));
 				builder.setForce(cmd.getRequest().force);
 
-				blockingStub.closeChannel(builder.build());
-
-				cmd.response = new NoDataResponse();
+				// Server streaming call - done when lnd confirms that closing is pending
+				CompletableFuture<Void> done = new CompletableFuture<Void>();
+				asyncStub.withDeadlineAfter(deadline, TimeUnit.SECONDS).closeChannel(builder.build(),
+						new StreamObserver<Rpc.CloseStatusUpdate>() {
+							@Override
+							public void onNext(Rpc.CloseStatusUpdate update) {
+								onCompleted();
+							}
+
+							@Override
+							public void onError(Throwable t) {
+								if (!done.isDone()) {
+									fail(cmd, t);
+									done.complete(null);
+								}
+							}
+
+							@Override
+							public void onCompleted() {
+								if (!done.isDone()) {
+									cmd.response = new NoDataResponse();
+									done.complete(null);
+								}
+							}
+						});
+				return done;
 
 			} else if (command instanceof ListPeersCommand) {
 				ListPeersCommand cmd = (ListPeersCommand) command;
 				Rpc.ListPeersRequest.Builder builder = Rpc.ListPeersRequest.newBuilder();
 
-				Rpc.ListPeersResponse response = blockingStub.listPeers(builder.build());
-
-				cmd.response = new ListPeersResponse();
-
-				cmd.response.peers = new ArrayList<Peer>(response.getPeersCount());
-				for (Rpc.Peer rpcPeer : response.getPeersList()) {
-					ListPeersResponse.Peer peer = new ListPeersResponse.Peer();
-					peer.id = rpcPeer.getPubKey();
-					peer.address = rpcPeer.getAddress();
-					peer.bytesReceived = rpcPeer.getBytesRecv();
-					peer.bytesSent = rpcPeer.getBytesSent();
-					peer.inbound = rpcPeer.getInbound();
-					peer.pingTime = rpcPeer.getPingTime();
-					peer.receivedAmount = Btc.fromSat(rpcPeer.getSatRecv());
-					peer.sentAmount = Btc.fromSat(rpcPeer.getSatSent());
-					cmd.response.peers.add(peer);
-				}
+				return call(cmd, stub.listPeers(builder.build()), (response) -> {
+
+					cmd.response = new ListPeersResponse();
+
+					cmd.response.peers = new ArrayList<Peer>(response.getPeersCount());
+					for (Rpc.Peer rpcPeer : response.getPeersList()) {
+						ListPeersResponse.Peer peer = new ListPeersResponse.Peer();
+						peer.id = rpcPeer.getPubKey();
+						peer.address = rpcPeer.getAddress();
+						peer.bytesReceived = rpcPeer.getBytesRecv();
+						peer.bytesSent = rpcPeer.getBytesSent();
+						peer.inbound = rpcPeer.getInbound();
+						peer.pingTime = rpcPeer.getPingTime();
+						peer.receivedAmount = Btc.fromSat(rpcPeer.getSatRecv());
+						peer.sentAmount = Btc.fromSat(rpcPeer.getSatSent());
+						cmd.response.peers.add(peer);
+					}
+				});
 
 			} else if (command instanceof ListPendingChannelsCommand) {
 				ListPendingChannelsCommand cmd = (ListPendingChannelsCommand) command;
 				Rpc.PendingChannelsRequest.Builder builder = Rpc.PendingChannelsRequest.newBuilder();
 
-				Rpc.PendingChannelsResponse response = blockingStub.pendingChannels(builder.build());
-
-				cmd.response = new ListPendingChannelsResponse();
-
-				cmd.response.total_limbo_balance = Btc.fromSat(response.getTotalLimboBalance());
-
-				cmd.response.pending_open_channels = new ArrayList<PendingOpenChannel>(
-						response.getPendingOpenChannelsCount());
-				for (Rpc.PendingChannelsResponse.PendingOpenChannel rpcChannel : response
-						.getPendingOpenChannelsList()) {
-					PendingOpenChannel channel = new PendingOpenChannel();
-					channel.remote_node_pub = rpcChannel.getChannel().getRemoteNodePub();
-					channel.capacity = Btc.fromSat(rpcChannel.getChannel().getCapacity());
-					channel.channel_point = rpcChannel.getChannel().getChannelPoint();
-					channel.local_balance = Btc.fromSat(rpcChannel.getChannel().getLocalBalance());
-					channel.remote_balance = Btc.fromSat(rpcChannel.getChannel().getRemoteBalance());
-					channel.commit_fee = Btc.fromSat(rpcChannel.getCommitFee());
-					channel.commit_weight = rpcChannel.getCommitWeight();
-					channel.confirmation_height = rpcChannel.getConfirmationHeight();
-					channel.fee_per_kw = Btc.fromSat(rpcChannel.getFeePerKw());
-					cmd.response.pending_open_channels.add(channel);
-				}
+				return call(cmd, stub.pendingChannels(builder.build()), (response) -> {
+
+					cmd.response = new ListPendingChannelsResponse();
+
+					cmd.response.total_limbo_balance = Btc.fromSat(response.getTotalLimboBalance());
+
+					cmd.response.pending_open_channels = new ArrayList<PendingOpenChannel>(
+							response.getPendingOpenChannelsCount());
+					for (Rpc.PendingChannelsResponse.PendingOpenChannel rpcChannel : response
+							.getPendingOpenChannelsList()) {
+						PendingOpenChannel channel = new PendingOpenChannel();
+						channel.remote_node_pub = rpcChannel.getChannel().getRemoteNodePub();
+						channel.capacity = Btc.fromSat(rpcChannel.getChannel().getCapacity());
+						channel.channel_point = rpcChannel.getChannel().getChannelPoint();
+						channel.local_balance = Btc.fromSat(rpcChannel.getChannel().getLocalBalance());
+						channel.remote_balance = Btc.fromSat(rpcChannel.getChannel().getRemoteBalance());
+						channel.commit_fee = Btc.fromSat(rpcChannel.getCommitFee());
+						channel.commit_weight = rpcChannel.getCommitWeight();
+						channel.confirmation_height = rpcChannel.getConfirmationHeight();
+						channel.fee_per_kw = Btc.fromSat(rpcChannel.getFeePerKw());
+						cmd.response.pending_open_channels.add(channel);
+					}
 
-				cmd.response.pending_closing_channels = new ArrayList<ClosedChannel>(
-						response.getPendingClosingChannelsCount());
-				for (Rpc.PendingChannelsResponse.ClosedChannel rpcChannel : response.getPendingClosingChannelsList()) {
-					ClosedChannel channel = new ClosedChannel();
-					channel.remote_node_pub = rpcChannel.getChannel().getRemoteNodePub();
-					channel.capacity = Btc.fromSat(rpcChannel.getChannel().getCapacity());
-					channel.channel_point = rpcChannel.getChannel().getChannelPoint();
-					channel.local_balance = Btc.fromSat(rpcChannel.getChannel().getLocalBalance());
-					channel.remote_balance = Btc.fromSat(rpcChannel.getChannel().getRemoteBalance());
-					channel.closing_txid = rpcChannel.getClosingTxid();
-					cmd.response.pending_closing_channels.add(channel);
-				}
+					cmd.response.pending_closing_channels = new ArrayList<ClosedChannel>(
+							response.getPendingClosingChannelsCount());
+					for (Rpc.PendingChannelsResponse.ClosedChannel rpcChannel : response.getPendingClosingChannelsList()) {
+						ClosedChannel channel = new ClosedChannel();
+						channel.remote_node_pub = rpcChannel.getChannel().getRemoteNodePub();
+						channel.capacity = Btc.fromSat(rpcChannel.getChannel().getCapacity());
+						channel.channel_point = rpcChannel.getChannel().getChannelPoint();
+						channel.local_balance = Btc.fromSat(rpcChannel.getChannel().getLocalBalance());
+						channel.remote_balance = Btc.fromSat(rpcChannel.getChannel().getRemoteBalance());
+						channel.closing_txid = rpcChannel.getClosingTxid();
+						cmd.response.pending_closing_channels.add(channel);
+					}
 
-				cmd.response.pending_force_closing_channels = new ArrayList<ForceClosedChannel>(
-						response.getPendingForceClosingChannelsCount());
-				for (Rpc.PendingChannelsResponse.ForceClosedChannel rpcChannel : response
-						.getPendingForceClosingChannelsList()) {
-					ForceClosedChannel channel = new ForceClosedChannel();
-					channel.remote_node_pub = rpcChannel.getChannel().getRemoteNodePub();
-					channel.capacity = Btc.fromSat(rpcChannel.getChannel().getCapacity());
-					channel.channel_point = rpcChannel.getChannel().getChannelPoint();
-					channel.local_balance = Btc.fromSat(rpcChannel.getChannel().getLocalBalance());
-					channel.remote_balance = Btc.fromSat(rpcChannel.getChannel().getRemoteBalance());
-					channel.closing_txid = rpcChannel.getClosingTxid();
-					channel.limbo_balance = Btc.fromSat(rpcChannel.getLimboBalance());
-					channel.maturity_height = rpcChannel.getMaturityHeight();
-					channel.pending_htlcs = new ArrayList<PendingHTLC>(rpcChannel.getPendingHtlcsCount());
-					for (Rpc.PendingHTLC rpcHtlc : rpcChannel.getPendingHtlcsList()) {
-						PendingHTLC htlc = new PendingHTLC();
-						htlc.amount = Btc.fromSat(rpcHtlc.getAmount());
-						htlc.blocks_til_maturity = rpcHtlc.getBlocksTilMaturity();
-						htlc.incoming = rpcHtlc.getIncoming();
-						htlc.maturity_height = rpcHtlc.getMaturityHeight();
-						htlc.outpoint = rpcHtlc.getOutpoint();
-						htlc.stage = rpcHtlc.getStage();
+					cmd.response.pending_force_closing_channels = new ArrayList<ForceClosedChannel>(
+							response.getPendingForceClosingChannelsCount());
+					for (Rpc.PendingChannelsResponse.ForceClosedChannel rpcChannel : response
+							.getPendingForceClosingChannelsList()) {
+						ForceClosedChannel channel = new ForceClosedChannel();
+						channel.remote_node_pub = rpcChannel.getChannel().getRemoteNodePub();
+						channel.capacity = Btc.fromSat(rpcChannel.getChannel().getCapacity());
+						channel.channel_point = rpcChannel.getChannel().getChannelPoint();
+						channel.local_balance = Btc.fromSat(rpcChannel.getChannel().getLocalBalance());
+						channel.remote_balance = Btc.fromSat(rpcChannel.getChannel().getRemoteBalance());
+						channel.closing_txid = rpcChannel.getClosingTxid();
+						channel.limbo_balance = Btc.fromSat(rpcChannel.getLimboBalance());
+						channel.maturity_height = rpcChannel.getMaturityHeight();
+						channel.pending_htlcs = new ArrayList<PendingHTLC>(rpcChannel.getPendingHtlcsCount());
+						for (Rpc.PendingHTLC rpcHtlc : rpcChannel.getPendingHtlcsList()) {
+							PendingHTLC htlc = new PendingHTLC();
+							htlc.amount = Btc.fromSat(rpcHtlc.getAmount());
+							htlc.blocks_til_maturity = rpcHtlc.getBlocksTilMaturity();
+							htlc.incoming = rpcHtlc.getIncoming();
+							htlc.maturity_height = rpcHtlc.getMaturityHeight();
+							htlc.outpoint = rpcHtlc.getOutpoint();
+							htlc.stage = rpcHtlc.getStage();
+						}
+						channel.recovered_balance = Btc.fromSat(rpcChannel.getRecoveredBalance());
+						cmd.response.pending_force_closing_channels.add(channel);
 					}
-					channel.recovered_balance = Btc.fromSat(rpcChannel.getRecoveredBalance());
-					cmd.response.pending_force_closing_channels.add(channel);
-				}
 
-				cmd.response.waiting_close_channels = new ArrayList<WaitingCloseChannel>(
-						response.getWaitingCloseChannelsCount());
-				for (Rpc.PendingChannelsResponse.WaitingCloseChannel rpcChannel : response
-						.getWaitingCloseChannelsList()) {
-					WaitingCloseChannel channel = new WaitingCloseChannel();
-					channel.remote_node_pub = rpcChannel.getChannel().getRemoteNodePub();
-					channel.capacity = Btc.fromSat(rpcChannel.getChannel().getCapacity());
-					channel.channel_point = rpcChannel.getChannel().getChannelPoint();
-					channel.local_balance = Btc.fromSat(rpcChannel.getChannel().getLocalBalance());
-					channel.remote_balance = Btc.fromSat(rpcChannel.getChannel().getRemoteBalance());
-					channel.limbo_balance = Btc.fromSat(rpcChannel.getLimboBalance());
-					cmd.response.waiting_close_channels.add(channel);
-				}
+					cmd.response.waiting_close_channels = new ArrayList<WaitingCloseChannel>(
+							response.getWaitingCloseChannelsCount());
+					for (Rpc.PendingChannelsResponse.WaitingCloseChannel rpcChannel : response
+							.getWaitingCloseChannelsList()) {
+						WaitingCloseChannel channel = new WaitingCloseChannel();
+						channel.remote_node_pub = rpcChannel.getChannel().getRemoteNodePub();
+						channel.capacity = Btc.fromSat(rpcChannel.getChannel().getCapacity());
+						channel.channel_point = rpcChannel.getChannel().getChannelPoint();
+						channel.local_balance = Btc.fromSat(rpcChannel.getChannel().getLocalBalance());
+						channel.remote_balance = Btc.fromSat(rpcChannel.getChannel().getRemoteBalance());
+						channel.limbo_balance = Btc.fromSat(rpcChannel.getLimboBalance());
+						cmd.response.waiting_close_channels.add(channel);
+					}
+				});
 
 			} else if (command instanceof DescribeGraphCommand) {
 
 				DescribeGraphCommand cmd = (DescribeGraphCommand) command;
 				Rpc.ChannelGraphRequest.Builder builder = Rpc.ChannelGraphRequest.newBuilder();
 
-				Rpc.ChannelGraph response = blockingStub.describeGraph(builder.build());
-
-				cmd.response = new DescribeGraphResponse();
-
-				cmd.response.nodes = new ArrayList<NodeInGraph>(response.getNodesCount());
-				for (LightningNode rpcNode : response.getNodesList()) {
-					NodeInGraph node = new NodeInGraph();
-					node.lastUpdate = rpcNode.getLastUpdate();
-					node.id = rpcNode.getPubKey();
-					node.alias = rpcNode.getAlias();
-					node.addresses = new ArrayList<NodeAddress>(rpcNode.getAddressesCount());
-					for (Rpc.NodeAddress rpcNodeAddress : rpcNode.getAddressesList()) {
-						NodeAddress nodeAddress = new NodeAddress();
-						nodeAddress.network = rpcNodeAddress.getNetwork();
-						nodeAddress.addr = rpcNodeAddress.getAddr();
-						node.addresses.add(nodeAddress);
+				return call(cmd, stub.describeGraph(builder.build()), (response) -> {
+
+					cmd.response = new DescribeGraphResponse();
+
+					cmd.response.nodes = new ArrayList<NodeInGraph>(response.getNodesCount());
+					for (LightningNode rpcNode : response.getNodesList()) {
+						NodeInGraph node = new NodeInGraph();
+						node.lastUpdate = rpcNode.getLastUpdate();
+						node.id = rpcNode.getPubKey();
+						node.alias = rpcNode.getAlias();
+						node.addresses = new ArrayList<NodeAddress>(rpcNode.getAddressesCount());
+						for (Rpc.NodeAddress rpcNodeAddress : rpcNode.getAddressesList()) {
+							NodeAddress nodeAddress = new NodeAddress();
+							nodeAddress.network = rpcNodeAddress.getNetwork();
+							nodeAddress.addr = rpcNodeAddress.getAddr();
+							node.addresses.add(nodeAddress);
+						}
+						node.color = rpcNode.getColor();
+						cmd.response.nodes.add(node);
 					}
-					node.color = rpcNode.getColor();
-					cmd.response.nodes.add(node);
-				}
 
-				cmd.response.channels = new ArrayList<ChannelInGraph>(response.getEdgesCount());
-				for (ChannelEdge rpcChannel : response.getEdgesList()) {
-					ChannelInGraph channel = new ChannelInGraph();
-					channel.last_update = rpcChannel.getLastUpdate();
-					channel.id = channelIdFromLong(rpcChannel.getChannelId());
-					channel.point = rpcChannel.getChanPoint();
-					channel.capacitySat = rpcChannel.getCapacity();
-					channel.node1Id = rpcChannel.getNode1Pub();
-					channel.node1_policy = new RoutingPolicy();
-					channel.node1_policy.time_lock_delta = rpcChannel.getNode1Policy().getTimeLockDelta();
-					channel.node1_policy.min_htlc = rpcChannel.getNode1Policy().getMinHtlc();
-					channel.node1_policy.max_htlc_msat = 0; // TODO: Use the newset rpc version
-					channel.node1_policy.fee_base_msat = rpcChannel.getNode1Policy().getFeeBaseMsat();
-					channel.node1_policy.fee_rate_milli_msat = rpcChannel.getNode1Policy().getFeeRateMilliMsat();
-					channel.node1_policy.disabled = rpcChannel.getNode1Policy().getDisabled();
-					channel.node2Id = rpcChannel.getNode2Pub();
-					channel.node2_policy = new RoutingPolicy();
-					channel.node2_policy.time_lock_delta = rpcChannel.getNode2Policy().getTimeLockDelta();
-					channel.node2_policy.min_htlc = rpcChannel.getNode2Policy().getMinHtlc();
-					channel.node2_policy.max_htlc_msat = 0; // TODO: Use the newset rpc version
-					channel.node2_policy.fee_base_msat = rpcChannel.getNode2Policy().getFeeBaseMsat();
-					channel.node2_policy.fee_rate_milli_msat = rpcChannel.getNode2Policy().getFeeRateMilliMsat();
-					channel.node2_policy.disabled = rpcChannel.getNode2Policy().getDisabled();
-					cmd.response.channels.add(channel);
-				}
+					cmd.response.channels = new ArrayList<ChannelInGraph>(response.getEdgesCount());
+					for (ChannelEdge rpcChannel : response.getEdgesList()) {
+						ChannelInGraph channel = new ChannelInGraph();
+						channel.last_update = rpcChannel.getLastUpdate();
+						channel.id = channelIdFromLong(rpcChannel.getChannelId());
+						channel.point = rpcChannel.getChanPoint();
+						channel.capacitySat = rpcChannel.getCapacity();
+						channel.node1Id = rpcChannel.getNode1Pub();
+						channel.node1_policy = new RoutingPolicy();
+						channel.node1_policy.time_lock_delta = rpcChannel.getNode1Policy().getTimeLockDelta();
+						channel.node1_policy.min_htlc = rpcChannel.getNode1Policy().getMinHtlc();
+						channel.node1_policy.max_htlc_msat = 0; // TODO: Use the newset rpc version
+						channel.node1_policy.fee_base_msat = rpcChannel.getNode1Policy().getFeeBaseMsat();
+						channel.node1_policy.fee_rate_milli_msat = rpcChannel.getNode1Policy().getFeeRateMilliMsat();
+						channel.node1_policy.disabled = rpcChannel.getNode1Policy().getDisabled();
+						channel.node2Id = rpcChannel.getNode2Pub();
+						channel.node2_policy = new RoutingPolicy();
+						channel.node2_policy.time_lock_delta = rpcChannel.getNode2Policy().getTimeLockDelta();
+						channel.node2_policy.min_htlc = rpcChannel.getNode2Policy().getMinHtlc();
+						channel.node2_policy.max_htlc_msat = 0; // TODO: Use the newset rpc version
+						channel.node2_policy.fee_base_msat = rpcChannel.getNode2Policy().getFeeBaseMsat();
+						channel.node2_policy.fee_rate_milli_msat = rpcChannel.getNode2Policy().getFeeRateMilliMsat();
+						channel.node2_policy.disabled = rpcChannel.getNode2Policy().getDisabled();
+						cmd.response.channels.add(channel);
+					}
+				});
 
 			} else if (command instanceof FindRouteCommand) {
 
@@ -527,29 +651,30 @@ public class LndCommandsExecutor {
 			//	builder.setNumRoutes(1);
 				builder.setPubKey(cmd.getRequest().destId);
 
-				Rpc.QueryRoutesResponse response = blockingStub.queryRoutes(builder.build());
-
-				if (response.getRoutesCount() == 0) {
-					cmd.error = new ErrorResponse("No route found", 0L);
-				} else {
-					Rpc.Route rpcRoute = response.getRoutes(0);
-					cmd.response = new FindRouteResponse();
-					cmd.response.route = new Route();
-					cmd.response.route.totalTimeLock = rpcRoute.getTotalTimeLock();
-					cmd.response.route.totalAmount = Btc.fromMsat(rpcRoute.getTotalAmtMsat());
-					cmd.response.route.totalFees = Btc.fromMsat(rpcRoute.getTotalFeesMsat());
-					cmd.response.route.hops = new ArrayList<Hop>(rpcRoute.getHopsCount());
-					for (Rpc.Hop rpcHop : rpcRoute.getHopsList()) {
-						Hop hop = new Hop();
-						hop.amountToForward = Btc.fromMsat(rpcHop.getAmtToForwardMsat());
-						hop.channelCapacity = Btc.fromSat(rpcHop.getChanCapacity());
-						hop.channelId = channelIdFromLong(rpcHop.getChanId());
-						hop.expiry = rpcHop.getExpiry();
-						hop.fee = Btc.fromMsat(rpcHop.getFeeMsat());
-						hop.pubKey = rpcHop.getPubKey();
-						cmd.response.route.hops.add(hop);
+				return call(cmd, stub.queryRoutes(builder.build()), (response) -> {
+
+					if (response.getRoutesCount() == 0) {
+						cmd.error = new ErrorResponse("No route found", 0L);
+					} else {
+						Rpc.Route rpcRoute = response.getRoutes(0);
+						cmd.response = new FindRouteResponse();
+						cmd.response.route = new Route();
+						cmd.response.route.totalTimeLock = rpcRoute.getTotalTimeLock();
+						cmd.response.route.totalAmount = Btc.fromMsat(rpcRoute.getTotalAmtMsat());
+						cmd.response.route.totalFees = Btc.fromMsat(rpcRoute.getTotalFeesMsat());
+						cmd.response.route.hops = new ArrayList<Hop>(rpcRoute.getHopsCount());
+						for (Rpc.Hop rpcHop : rpcRoute.getHopsList()) {
+							Hop hop = new Hop();
+							hop.amountToForward = Btc.fromMsat(rpcHop.getAmtToForwardMsat());
+							hop.channelCapacity = Btc.fromSat(rpcHop.getChanCapacity());
+							hop.channelId = channelIdFromLong(rpcHop.getChanId());
+							hop.expiry = rpcHop.getExpiry();
+							hop.fee = Btc.fromMsat(rpcHop.getFeeMsat());
+							hop.pubKey = rpcHop.getPubKey();
+							cmd.response.route.hops.add(hop);
+						}
 					}
-				}
+				});
 
 			} else if (command instanceof PayToRouteCommand) {
 
@@ -573,6 +698,7 @@ public class LndCommandsExecutor {
 						.setTotalFeesMsat(cmd.getRequest().route.totalFees.toMsat())
 						.setTotalTimeLock(cmd.getRequest().route.totalTimeLock);
 
+				int hopIndex = 0;
 				for (Hop hop : cmd.getRequest().route.hops) {
 					Rpc.Hop.Builder rpcBuilder = Rpc.Hop.newBuilder();
 					rpcBuilder.setAmtToForwardMsat(hop.amountToForward.toMsat());
@@ -582,6 +708,15 @@ public class LndCommandsExecutor {
 					rpcBuilder.setFeeMsat(hop.fee.toMsat());
 					rpcBuilder.setPubKey(hop.pubKey);
 
+					hopIndex++;
+					if (cmd instanceof PayToRouteMppCommand && hopIndex == cmd.getRequest().route.hops.size()) {
+						PayToRouteMppCommand mppCmd = (PayToRouteMppCommand) cmd;
+						rpcBuilder.setTlvPayload(true);
+						rpcBuilder.setMppRecord(Rpc.MPPRecord.newBuilder()
+								.setPaymentAddr(ByteString.copyFrom(Hex.decodeHex(mppCmd.paymentAddr.toCharArray())))
+								.setTotalAmtMsat(mppCmd.totalAmount.toMsat()).build());
+					}
+
 					rpcRouteBuilder.addHops(rpcBuilder.build());
 				}
 
@@ -590,15 +725,16 @@ public class LndCommandsExecutor {
 
 				Rpc.SendToRouteRequest req = builder.build();
 				Log.build().param("req", req).event("Sending to route");
-				Rpc.SendResponse response = blockingStub.sendToRouteSync(req);
+				return call(cmd, stub.sendToRouteSync(req), (response) -> {
 
-				if (!StringUtils.isEmpty(response.getPaymentError())) {
-					throw new StoredException("Executing rpc on lnd failed", new Exception(response.getPaymentError()));
-				}
+					if (!StringUtils.isEmpty(response.getPaymentError())) {
+						throw new StoredException("Executing rpc on lnd failed", new Exception(response.getPaymentError()));
+					}
 
-//				Log.build().param("response", response).event("Send to route executed");
+//					Log.build().param("response", response).event("Send to route executed");
 
-				cmd.response = new NoDataResponse(); // TODO: Tmp
+					cmd.response = new NoDataResponse(); // TODO: Tmp
+				});
 
 			} else if (command instanceof ListInvoicesCommand) {
 //				
@@ -638,84 +774,150 @@ public class LndCommandsExecutor {
 				ListInvoicesCommand cmd = (ListInvoicesCommand) command;
 				Rpc.ListInvoiceRequest.Builder builder = Rpc.ListInvoiceRequest.newBuilder();
 
-				Rpc.ListInvoiceResponse response = blockingStub.listInvoices(builder.build());
-
-				cmd.response = new ListInvoicesResponse();
-				cmd.response.invoices = new ArrayList<Invoice>(response.getInvoicesCount());
-				for (Rpc.Invoice rpcInvoice : response.getInvoicesList()) {
-					Invoice invoice = new Invoice();
-
-					invoice.memo = rpcInvoice.getMemo(); // string An optional memo to attach along with the invoice.
-															// Used for record keeping purposes for the invoice’s
-															// creator, and will also be set in the description field of
-															// the encoded payment request if the description_hash field
-															// is not being used.
-//						String r_preimage	bytes	The hex-encoded preimage (32 byte) which will allow settling an incoming HTLC payable to this preimage
-					// r_hash bytes The hash of the preimage
-					invoice.amount = Btc.fromSat(rpcInvoice.getValue()); // value int64 The value of this invoice in
-																			// satoshis
-					invoice.creation_date = new FormattedTime(1000L * rpcInvoice.getCreationDate(), Precision.SECONDS); // int64
-																														// When
-																														// this
-																														// invoice
-																														// was
-																														// created
-					invoice.settle_date = rpcInvoice.getSettleDate() == 0 ? null
-							: new FormattedTime(1000L * rpcInvoice.getSettleDate(), Precision.SECONDS); // int64 When
-																										// this invoice
-																										// was settled
-					invoice.payment_request = rpcInvoice.getPaymentRequest(); // string A bare-bones invoice for a
-																				// payment within the Lightning Network.
-																				// With the details of the invoice, the
-																				// sender has all the data necessary to
-																				// send a payment to the recipient.
-					invoice.expiry = rpcInvoice.getExpiry(); // int64 Payment request expiry time in seconds. Default is
-																// 3600 (1 hour).
-					invoice.fallback_addr = rpcInvoice.getFallbackAddr(); // string Fallback on-chain address.
-					invoice.cltv_expiry = rpcInvoice.getCltvExpiry(); // uint64 Delta to use for the time-lock of the
-																		// CLTV extended to the final hop.
-					invoice.route_hints = copyRouteHints(rpcInvoice.getRouteHintsList());
-					invoice.isPrivate = rpcInvoice.getPrivate(); // bool Whether this invoice should include routing
-																	// hints for private channels.
-					invoice.add_index = rpcInvoice.getAddIndex(); // uint64 The “add” index of this invoice. Each newly
-																	// created invoice will increment this index making
-																	// it monotonically increasing. Callers to the
-																	// SubscribeInvoices call can use this to instantly
-																	// get notified of all added invoices with an
-																	// add_index greater than this one.
-					invoice.settle_index = rpcInvoice.getSettleIndex(); // uint64 The “settle” index of this invoice.
-																		// Each newly settled invoice will increment
-																		// this index making it monotonically
-																		// increasing. Callers to the SubscribeInvoices
-																		// call can use this to instantly get notified
-																		// of all settled invoices with an settle_index
-																		// greater than this one.
-					invoice.amoutPaid = Btc.fromMsat(rpcInvoice.getAmtPaidMsat()); // int64 The amount that was accepted
-																					// for this invoice, in
-																					// millisatoshis. This will ONLY be
-																					// set if this invoice has been
-																					// settled. We provide this field as
-																					// if the invoice was created with a
-																					// zero value, then we need to
-																					// record what amount was ultimately
-																					// accepted. Additionally, it’s
-																					// possible that the sender paid
-																					// MORE that was specified in the
-																					// original invoice. So we’ll record
-																					// that here as well.
-					invoice.state = rpcInvoice.getState().toString(); // InvoiceState The state the invoice is in.
-
-					cmd.response.invoices.add(invoice);
-				}
+				return call(cmd, stub.listInvoices(builder.build()), (response) -> {
+
+					cmd.response = new ListInvoicesResponse();
+					cmd.response.invoices = new ArrayList<Invoice>(response.getInvoicesCount());
+					for (Rpc.Invoice rpcInvoice : response.getInvoicesList()) {
+						Invoice invoice = new Invoice();
+
+						invoice.memo = rpcInvoice.getMemo(); // string An optional memo to attach along with the invoice.
+																// Used for record keeping purposes for the invoice’s
+																// creator, and will also be set in the description field of
+																// the encoded payment request if the description_hash field
+																// is not being used.
+	//						String r_preimage	bytes	The hex-encoded preimage (32 byte) which will allow settling an incoming HTLC payable to this preimage
+						// r_hash bytes The hash of the preimage
+						invoice.amount = Btc.fromSat(rpcInvoice.getValue()); // value int64 The value of this invoice in
+																				// satoshis
+						invoice.creation_date = new FormattedTime(1000L * rpcInvoice.getCreationDate(), Precision.SECONDS); // int64
+																															// When
+																															// this
+																															// invoice
+																															// was
+																															// created
+						invoice.settle_date = rpcInvoice.getSettleDate() == 0 ? null
+								: new FormattedTime(1000L * rpcInvoice.getSettleDate(), Precision.SECONDS); // int64 When
+																											// this invoice
+																											// was settled
+						invoice.payment_request = rpcInvoice.getPaymentRequest(); // string A bare-bones invoice for a
+																					// payment within the Lightning Network.
+																					// With the details of the invoice, the
+																					// sender has all the data necessary to
+																					// send a payment to the recipient.
+						invoice.expiry = rpcInvoice.getExpiry(); // int64 Payment request expiry time in seconds. Default is
+																	// 3600 (1 hour).
+						invoice.fallback_addr = rpcInvoice.getFallbackAddr(); // string Fallback on-chain address.
+						invoice.cltv_expiry = rpcInvoice.getCltvExpiry(); // uint64 Delta to use for the time-lock of the
+																			// CLTV extended to the final hop.
+						invoice.route_hints = copyRouteHints(rpcInvoice.getRouteHintsList());
+						invoice.isPrivate = rpcInvoice.getPrivate(); // bool Whether this invoice should include routing
+																		// hints for private channels.
+						invoice.add_index = rpcInvoice.getAddIndex(); // uint64 The “add” index of this invoice. Each newly
+																		// created invoice will increment this index making
+																		// it monotonically increasing. Callers to the
+																		// SubscribeInvoices call can use this to instantly
+																		// get notified of all added invoices with an
+																		// add_index greater than this one.
+						invoice.settle_index = rpcInvoice.getSettleIndex(); // uint64 The “settle” index of this invoice.
+																			// Each newly settled invoice will increment
+																			// this index making it monotonically
+																			// increasing. Callers to the SubscribeInvoices
+																			// call can use this to instantly get notified
+																			// of all settled invoices with an settle_index
+																			// greater than this one.
+						invoice.amoutPaid = Btc.fromMsat(rpcInvoice.getAmtPaidMsat()); // int64 The amount that was accepted
+																						// for this invoice, in
+																						// millisatoshis. This will ONLY be
+																						// set if this invoice has been
+																						// settled. We provide this field as
+																						// if the invoice was created with a
+																						// zero value, then we need to
+																						// record what amount was ultimately
+																						// accepted. Additionally, it’s
+																						// possible that the sender paid
+																						// MORE that was specified in the
+																						// original invoice. So we’ll record
+																						// that here as well.
+						invoice.state = rpcInvoice.getState().toString(); // InvoiceState The state the invoice is in.
+
+						cmd.response.invoices.add(invoice);
+					}
+				});
 
 			} else {
 				throw new StoredException("Command not supported by LndCommandsExecutor: " + command.type, null);
 			}
 		} catch (Exception ex) {
-			command.response = null;
-			command.error = new ErrorResponse(ex);
+			fail(command, ex);
 //			throw new StoredException("Failed to execute: " + JsonBuilder.build().toJson(command), ex);
+			return CompletableFuture.completedFuture(null);
+		}
+	}
+
+	private static long deadlineFor(Command<?, ?> command) {
+		if (command instanceof PayInvoiceCommand || command instanceof PayToRouteCommand
+				|| command instanceof OpenChannelCommand || command instanceof CloseChannelCommand
+				|| command instanceof DescribeGraphCommand || command instanceof SendOnChainCommand
+				|| command instanceof SendManyOnChainCommand) {
+			return longDeadlineSeconds;
+		}
+		return deadlineSeconds;
+	}
+
+	private interface ResponseHandler<T> {
+		void handle(T response) throws Exception;
+	}
+
+	private static <T> CompletableFuture<Void> call(Command<?, ?> command, ListenableFuture<T> rpc,
+			ResponseHandler<T> handler) {
+		CompletableFuture<Void> done = new CompletableFuture<Void>();
+		Futures.addCallback(rpc, new FutureCallback<T>() {
+			@Override
+			public void onSuccess(T response) {
+				try {
+					handler.handle(response);
+				} catch (Exception ex) {
+					fail(command, ex);
+				}
+				done.complete(null);
+			}
+
+			@Override
+			public void onFailure(Throwable t) {
+				fail(command, t);
+				done.complete(null);
+			}
+		}, MoreExecutors.directExecutor());
+		done.whenComplete((v, ex) -> {
+			if (done.isCancelled()) {
+				rpc.cancel(true);
+			}
+		});
+		return done;
+	}
+
+	private static void fail(Command<?, ?> command, Throwable t) {
+		command.response = null;
+		if ((command instanceof SendOnChainCommand || command instanceof SendManyOnChainCommand)
+				&& rejectedBeforeBroadcast(t)) {
+			t = new StoredException(SendManyOnChainCommand.REJECTED, t);
+		}
+		command.error = new ErrorResponse(t instanceof Exception ? (Exception) t : new Exception(t));
+	}
+
+	/**
+	 * Only definitive rejections. Deadline, unavailable lnd etc. do not tell if
+	 * transaction was broadcast
+	 */
+	private static boolean rejectedBeforeBroadcast(Throwable t) {
+		Status status = Status.fromThrowable(t);
+		if (status.getCode() == Status.Code.INVALID_ARGUMENT) {
+			return true;
 		}
+		String description = status.getDescription();
+		return status.getCode() == Status.Code.UNKNOWN && description != null
+				&& description.contains("insufficient funds");
 	}
 
 	private List<RouteHint> copyRouteHints(List<lnrpc.Rpc.RouteHint> routeHints) {
@@ -753,7 +955,7 @@ public class LndCommandsExecutor {
 //		sb.append(Long.toString(id>>16) & 0xFFFFFF);
 //		sb.append(Long.toString(id>>40));
 //		
-	static String channelIdFromLong(long id) {
+	public static String channelIdFromLong(long id) {
 		StringBuilder sb = new StringBuilder();
 		sb.append(id >> 40);
 		sb.append(":");
@@ -764,7 +966,7 @@ public class LndCommandsExecutor {
 		return sb.toString();
 	}
 
-	static long channelIdToLong(String id) {
+	public static long channelIdToLong(String id) {
 		String[] list = id.split(":");
 		return (Long.parseLong(list[0]) << 40) | ((Long.parseLong(list[1]) << 16)) | (Long.parseLong(list[2]));
 	}
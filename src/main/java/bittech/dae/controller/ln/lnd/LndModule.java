@@ -19,6 +19,7 @@ public class LndModule implements AutoCloseable {
 	private final Node node;
 	private final LndRpc lndRpc;
 	private final LndCommandsExecutor executor;
+	private final ChainTip chainTip;
 	
 	private final MixListener mixListener;
 	private final InfoListener infoListener;
@@ -35,20 +36,24 @@ public class LndModule implements AutoCloseable {
 		node = new Node(config.moduleName, config.listeningPort);
 		lndRpc = new LndRpc(config.rpcHost, config.rpcPort, config.cert);
 		executor = new LndCommandsExecutor(lndRpc.getChannel());
+		chainTip = new ChainTip(executor::execute);
 
 		mixListener = new MixListener(node);
 		infoListener = new InfoListener(executor);
-		onChainListener = new OnChainListener(node, lndRpc.getChannel(), executor);
+		onChainListener = new OnChainListener(node, lndRpc.getChannel(), executor, chainTip);
 		peersListener = new PeersListener(executor);
 		channelsListener = new ChannelsListener(node, lndRpc.getChannel(), executor);
-		invoicesListener = new InvoicesListener(node, lndRpc.getChannel());
-		fastPayListener = new FastPayListener(executor);
+		invoicesListener = new InvoicesListener(node, lndRpc.getChannel(), channelsListener::requestRefresh);
+		fastPayListener = new FastPayListener(executor, chainTip, channelsListener::requestRefresh);
 		
 		ManagerModule managerNotifier = new ManagerModule(node, config.moduleName);
 		managerNotifier.addDetailsProvider(infoListener);
 		managerNotifier.addDetailsProvider(onChainListener);
 		managerNotifier.addDetailsProvider(channelsListener);
+		managerNotifier.addDetailsProvider(fastPayListener);
 		
+		channelsListener.registerGraphObserver(fastPayListener);
+
 		node.registerListener(mixListener);
 		node.registerListener(infoListener);
 		node.registerListener(onChainListener);
@@ -64,6 +69,9 @@ public class LndModule implements AutoCloseable {
 
 	@Override
 	public void close() {
+		fastPayListener.close();
+		channelsListener.close();
+		onChainListener.close();
 		lndRpc.close();
 	}
 	
@@ -0,0 +1,198 @@
+package bittech.dae.controller.ln.lnd;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bittech.lib.commands.ln.onchain.ListUnspentResponse.Utxo;
+import bittech.lib.utils.Require;
+import bittech.lib.utils.exceptions.StoredException;
+
+/**
+ * Set of wallet outputs that were already seen, keyed by binary txid and output
+ * index. Spent outputs are pruned. Every change is appended to a file as fixed
+ * size record (op, txid, index), so the set survives restarts. File is
+ * rewritten when it grows much bigger than the set.
+ */
+public class OutpointIndex {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(OutpointIndex.class);
+
+	private static final byte OP_ADD = 'A';
+	private static final byte OP_REMOVE = 'R';
+	private static final int RECORD_SIZE = 1 + 32 + 4;
+
+	private static final class Outpoint {
+		final long tx0, tx1, tx2, tx3;
+		final int index;
+
+		Outpoint(byte[] txId, int index) {
+			ByteBuffer b = ByteBuffer.wrap(txId);
+			this.tx0 = b.getLong();
+			this.tx1 = b.getLong();
+			this.tx2 = b.getLong();
+			this.tx3 = b.getLong();
+			this.index = index;
+		}
+
+		void write(DataOutputStream out, byte op) throws IOException {
+			out.writeByte(op);
+			out.writeLong(tx0);
+			out.writeLong(tx1);
+			out.writeLong(tx2);
+			out.writeLong(tx3);
+			out.writeInt(index);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Outpoint)) {
+				return false;
+			}
+			Outpoint p = (Outpoint) o;
+			return tx0 == p.tx0 && tx1 == p.tx1 && tx2 == p.tx2 && tx3 == p.tx3 && index == p.index;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) tx0 * 31 + index; // txid is a hash already
+		}
+	}
+
+	private final File file;
+	private final boolean existed;
+	private final Set<Outpoint> outpoints = new HashSet<Outpoint>();
+	private long recordsInFile = 0;
+
+	public OutpointIndex(String fileName) {
+		Require.notEmpty(fileName, "fileName");
+		this.file = new File(fileName);
+		this.existed = file.exists();
+		if (existed) {
+			load();
+		}
+	}
+
+	/**
+	 * @return false if there was no index file - all outputs are new then
+	 */
+	public boolean existed() {
+		return existed;
+	}
+
+	public synchronized int size() {
+		return outpoints.size();
+	}
+
+	/**
+	 * Replaces content of the index with current unspent outputs
+	 *
+	 * @return outputs not seen before
+	 */
+	public synchronized List<Utxo> update(List<Utxo> unspent) {
+		List<Utxo> added = new ArrayList<Utxo>();
+		Set<Outpoint> current = new HashSet<Outpoint>(unspent.size() * 2);
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file, true)))) {
+			for (Utxo utxo : unspent) {
+				Outpoint p = new Outpoint(Hex.decodeHex(utxo.txId.toCharArray()), (int) utxo.txIndex);
+				current.add(p);
+				if (outpoints.add(p)) {
+					p.write(out, OP_ADD);
+					recordsInFile++;
+					added.add(utxo);
+				}
+			}
+			Iterator<Outpoint> it = outpoints.iterator();
+			while (it.hasNext()) {
+				Outpoint p = it.next();
+				if (!current.contains(p)) {
+					p.write(out, OP_REMOVE);
+					recordsInFile++;
+					it.remove();
+				}
+			}
+			out.flush();
+		} catch (Exception ex) {
+			throw new StoredException("Cannot update outpoint index file: " + file, ex);
+		}
+		if (recordsInFile > 2 * outpoints.size() + 1000) {
+			compact();
+		}
+		return added;
+	}
+
+	private void load() {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			byte[] txId = new byte[32];
+			while (true) {
+				byte op;
+				try {
+					op = in.readByte();
+					in.readFully(txId);
+				} catch (EOFException ex) {
+					break;
+				}
+				Outpoint p;
+				try {
+					p = new Outpoint(txId, in.readInt());
+				} catch (EOFException ex) {
+					break;
+				}
+				recordsInFile++;
+				if (op == OP_ADD) {
+					outpoints.add(p);
+				} else if (op == OP_REMOVE) {
+					outpoints.remove(p);
+				} else {
+					throw new StoredException("Corrupted outpoint index file: " + file, null);
+				}
+			}
+		} catch (IOException ex) {
+			throw new StoredException("Cannot load outpoint index file: " + file, ex);
+		}
+		if (file.length() != recordsInFile * RECORD_SIZE) {
+			LOGGER.warn("Outpoint index file has truncated record. Rewriting it");
+			compact();
+		}
+		LOGGER.info("Loaded outpoint index: " + outpoints.size());
+	}
+
+	private void compact() {
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			try (FileOutputStream fos = new FileOutputStream(tmp);
+					DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+				for (Outpoint p : outpoints) {
+					p.write(out, OP_ADD);
+				}
+				out.flush();
+				fos.getFD().sync();
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			recordsInFile = outpoints.size();
+		} catch (Exception ex) {
+			throw new StoredException("Cannot compact outpoint index file: " + file, ex);
+		}
+	}
+
+}
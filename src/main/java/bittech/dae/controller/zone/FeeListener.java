@@ -3,7 +3,6 @@ package bittech.dae.controller.zone;
 import java.util.HashMap;
 import java.util.Map;
 
-import bittech.dae.controller.zone.channels.ClientZoneListener;
 import bittech.dae.controller.zone.channels.ZoneChannel;
 import bittech.dae.controller.zone.channels.ZoneChannels;
 import bittech.lib.commands.ln.invoices.AddInvoiceCommand;
@@ -15,7 +14,6 @@ import bittech.lib.commands.lnzone.internal.IncreaseZoneFeeDepositCommand;
 import bittech.lib.protocol.Command;
 import bittech.lib.protocol.Connection;
 import bittech.lib.protocol.Listener;
-import bittech.lib.protocol.Node;
 import bittech.lib.protocol.common.NoDataResponse;
 import bittech.lib.utils.Btc;
 import bittech.lib.utils.Require;
@@ -81,17 +79,10 @@ public class FeeListener implements Listener, PaymentReceivedObserver {
 			}
 
 			String invoiceBolt = null;
-			Node node = null;
 			try {
-
-				node = new Node("zone-customer-123"); // TODO: Think about names for nodes/connections
-				String[] parsedUri = ClientZoneListener.parseUri(channel.establishedChannel.zonePeerUri);
-
-				node.connect("zone-peer", parsedUri[1], Integer.parseInt(parsedUri[2]));
-
 				IncreaseFeeDepositCommand increaseFeeDepositCmd = new IncreaseFeeDepositCommand(
 						cmd.getRequest().zoneChannelId, cmd.getRequest().amount);
-				node.execute("zone-peer", increaseFeeDepositCmd);
+				ZonePeerPool.getInstance().execute(channel.establishedChannel.zonePeerUri, increaseFeeDepositCmd);
 
 				if (increaseFeeDepositCmd.getError() != null) {
 					throw new StoredException("Peer returned error", increaseFeeDepositCmd.getError().toException());
@@ -101,10 +92,6 @@ public class FeeListener implements Listener, PaymentReceivedObserver {
 			} catch (Exception ex) {
 				throw new StoredException(
 						"Cannot increase fee deposit for peer " + channel.establishedChannel.zonePeerUri, ex);
-			} finally {
-				if (node != null) {
-					node.close();
-				}
 			}
 
 			PayInvoiceCommand payCommand = new PayInvoiceCommand(invoiceBolt, new Btc(), new Btc());
@@ -1,16 +1,20 @@
 package bittech.dae.controller.zone;
 
-import java.io.File;
 import java.io.FileReader;
-import java.io.PrintWriter;
+import java.io.IOException;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,6 +29,11 @@ import bittech.lib.utils.Require;
 import bittech.lib.utils.exceptions.StoredException;
 import bittech.lib.utils.json.JsonBuilder;
 
+/**
+ * Invoices kept in memory and persisted as snapshot plus journal of changed
+ * invoices (RecordJournal). Changed invoices are appended to the journal by
+ * saving thread every flushMillis.
+ */
 public class Invoices {
 
 	private final static Logger LOGGER = LoggerFactory.getLogger(Invoices.class);
@@ -35,6 +44,18 @@ public class Invoices {
 	private final static boolean saveInvoices = Config.getInstance().getEntryOrDefault("saveInvoices", Boolean.class,
 			true);
 
+	private final static long flushMillis = Config.getInstance().getEntryOrDefault("invoicesFlushMillis", Long.class,
+			1000L);
+
+	private final static long compactRecords = Config.getInstance().getEntryOrDefault("invoicesCompactRecords",
+			Long.class, 10000L);
+
+	private final static long EXPIRY_CHECK_MILLIS = 10000;
+
+	private static final byte OP_INVOICE = 'I';
+
+	private final static long UNPAID_EXPIRY_MILLIS = 3610000L;
+
 	public static final class Invoice {
 		String label;
 		InvoiceStatus status;
@@ -45,58 +66,190 @@ public class Invoices {
 		FormattedTime created_at;
 		FormattedTime paid_at;
 		FormattedTime refund_at;
+		String refund_txid; // may be shared by many invoices refunded in one transaction
 
 		public Invoice copy() {
 			Invoice inv = new Invoice();
 			inv.label = label;
 			inv.zoneChannelId = zoneChannelId;
 			inv.status = status;
+			inv.addr = addr;
+			inv.amount = amount;
 			inv.bolt_11 = bolt_11;
 			inv.created_at = created_at;
 			inv.paid_at = paid_at;
 			inv.refund_at = refund_at;
+			inv.refund_txid = refund_txid;
 			return inv;
 		}
 	}
 
+	public static class Data extends RecordJournal.Snapshot {
+		private Map<String, Invoice> invoices; // null in plain map of invoices written by previous versions
+	}
+
+	private static final class Expiry {
+		final long at;
+		final String label;
+
+		Expiry(long at, String label) {
+			this.at = at;
+			this.label = label;
+		}
+	}
+
 	private final Map<String, Invoice> invoices = new ConcurrentHashMap<String, Invoice>(); // label,
 
+	// Secondary indexes, guarded by this
+	private final Map<String, List<String>> labelsByZoneChannelId = new HashMap<String, List<String>>();
+	private final Map<String, InvoiceStatus> indexedStatus = new HashMap<String, InvoiceStatus>();
+	private final Map<InvoiceStatus, Set<String>> labelsByStatus = new EnumMap<InvoiceStatus, Set<String>>(
+			InvoiceStatus.class);
+	private final PriorityQueue<Expiry> unpaidExpiry = new PriorityQueue<Expiry>(
+			(a, b) -> Long.compare(a.at, b.at));
+	private final List<Invoice> byCreation = new ArrayList<Invoice>();
+
+	// labels of invoices changed since last flush
+	private final Set<String> dirty = new LinkedHashSet<String>();
+
+	private final RecordJournal journal;
+
+	private final SavingThread savingThread = new SavingThread();
+
 	public Invoices() {
 		if (saveInvoices) {
+			journal = new RecordJournal(fileName, compactRecords);
 			load();
-			new SavingThread().start();
+			journal.start(() -> snapshot());
+			savingThread.start();
+		} else {
+			journal = null;
 		}
 	}
 
-	private synchronized void save() throws StoredException {
-		try {
-			try (PrintWriter out = new PrintWriter(fileName)) {
-				JsonBuilder.build().toJson(invoices, out);
-			}
-		} catch (Exception ex) {
-			throw new StoredException("Cannot save invoices", ex);
+	/**
+	 * Writes invoices changed so far and waits until they are on disk
+	 */
+	public void sync() throws InterruptedException {
+		if (journal == null) {
+			return;
+		}
+		long seq;
+		synchronized (this) {
+			flush();
+			seq = journal.lastSeq();
 		}
+		journal.sync(seq);
 	}
 
+	/**
+	 * Appends invoices changed since last flush to journal
+	 */
+	private synchronized void flush() {
+		for (String label : dirty) {
+			journal.append(OP_INVOICE, RecordJournal.toJson(invoices.get(label)));
+		}
+		dirty.clear();
+	}
+
+	private synchronized byte[] snapshot() {
+		Data data = new Data();
+		data.invoices = new HashMap<String, Invoice>(invoices);
+		return journal.snapshot(data);
+	}
+
+	/**
+	 * Failure is fatal - starting with part of invoices would lose the others
+	 * with the next compaction
+	 */
 	private synchronized void load() {
 		try {
-			File file = new File(fileName);
 			LOGGER.debug("Loading invoices");
-			if (file.exists()) {
-				LOGGER.debug("File exists");
-				try (FileReader reader = new FileReader(file)) {
-					Type mapType = new TypeToken<Map<String, Invoice>>() {
-					}.getType();
-					invoices.clear();
-					invoices.putAll(JsonBuilder.build().fromJson(reader, mapType));
-				}
-				LOGGER.info("Loaded invoices: " + invoices.size());
+			invoices.clear();
+			Data data = journal.readSnapshot(Data.class, new Data());
+			if (data.invoices != null) {
+				invoices.putAll(data.invoices);
+			} else if (journal.getSnapshotFile().exists()) {
+				loadPlainMap();
 			}
+			journal.replay(data, (seq, op, payload) -> {
+				if (op == OP_INVOICE) {
+					Invoice inv = RecordJournal.fromJson(payload, Invoice.class);
+					invoices.put(inv.label, inv);
+				} else {
+					throw new StoredException("Unknown invoices journal record: " + op, null);
+				}
+			});
+			rebuildIndexes();
+			LOGGER.info("Loaded invoices: " + invoices.size());
 		} catch (Exception ex) {
-			new StoredException("Cannot load invoices", ex);
+			throw new StoredException("Cannot load invoices", ex);
 		}
 	}
 
+	// Plain map of invoices written by previous versions
+	private void loadPlainMap() throws IOException {
+		try (FileReader reader = new FileReader(journal.getSnapshotFile())) {
+			Type mapType = new TypeToken<Map<String, Invoice>>() {
+			}.getType();
+			Map<String, Invoice> loaded = JsonBuilder.build().fromJson(reader, mapType);
+			if (loaded != null) {
+				invoices.putAll(loaded);
+			}
+		}
+	}
+
+	private void rebuildIndexes() {
+		labelsByZoneChannelId.clear();
+		indexedStatus.clear();
+		labelsByStatus.clear();
+		unpaidExpiry.clear();
+		byCreation.clear();
+		byCreation.addAll(invoices.values());
+		Collections.sort(byCreation, (a, b) -> Long.compare(createdAt(a), createdAt(b)));
+		for (Invoice inv : byCreation) {
+			index(inv);
+		}
+	}
+
+	private void index(Invoice inv) {
+		if (inv.zoneChannelId != null) {
+			List<String> labels = labelsByZoneChannelId.get(inv.zoneChannelId);
+			if (labels == null) {
+				labels = new ArrayList<String>(1);
+				labelsByZoneChannelId.put(inv.zoneChannelId, labels);
+			}
+			labels.add(inv.label);
+		}
+		reindexStatus(inv);
+	}
+
+	private void reindexStatus(Invoice inv) {
+		if (inv.status == null) {
+			return;
+		}
+		InvoiceStatus old = indexedStatus.put(inv.label, inv.status);
+		if (old == inv.status && labelsByStatus.containsKey(old)) {
+			return;
+		}
+		if (old != null) {
+			labelsByStatus.get(old).remove(inv.label);
+		}
+		Set<String> labels = labelsByStatus.get(inv.status);
+		if (labels == null) {
+			labels = new LinkedHashSet<String>();
+			labelsByStatus.put(inv.status, labels);
+		}
+		labels.add(inv.label);
+		if (inv.status == InvoiceStatus.UNPAID) {
+			unpaidExpiry.add(new Expiry(createdAt(inv) + UNPAID_EXPIRY_MILLIS, inv.label));
+		}
+	}
+
+	private static long createdAt(Invoice inv) {
+		return inv.created_at == null ? 0 : inv.created_at.getDate().getTime();
+	}
+
 	public synchronized void add(Invoice invoice) {
 		Require.notNull(invoice, "invoice");
 		if (invoices.get(invoice.label) != null) {
@@ -104,6 +257,39 @@ public class Invoices {
 					new StoredException("Invoice with label '" + invoice.label + "' was added before", null));
 		}
 		invoices.put(invoice.label, invoice);
+		byCreation.add(invoice);
+		index(invoice);
+		dirty.add(invoice.label);
+	}
+
+	/**
+	 * Marks invoice modified in place to be persisted and reindexed
+	 */
+	public synchronized void update(Invoice invoice) {
+		Require.notNull(invoice, "invoice");
+		if (invoices.get(invoice.label) != invoice) {
+			throw new StoredException("Cannot update invoice. It is not stored: " + invoice.label, null);
+		}
+		reindexStatus(invoice);
+		dirty.add(invoice.label);
+	}
+
+	/**
+	 * Changes invoice in place only if its status is one of expected. Check and
+	 * change are done under invoices lock, so concurrent status changes never
+	 * overwrite each other
+	 *
+	 * @return false if there is no such invoice or its status is not expected
+	 */
+	public synchronized boolean updateIf(String label, Set<InvoiceStatus> expected, Consumer<Invoice> change) {
+		Invoice invoice = invoices.get(label);
+		if (invoice == null || !expected.contains(invoice.status)) {
+			return false;
+		}
+		change.accept(invoice);
+		reindexStatus(invoice);
+		dirty.add(label);
+		return true;
 	}
 
 	public synchronized boolean contains(String label) {
@@ -114,13 +300,15 @@ public class Invoices {
 		return invoices.get(label);
 	}
 
+	/**
+	 * @return the latest invoice created for zone channel
+	 */
 	public synchronized Invoice getByRequestId(String requestId) {
-		for (Invoice inv : invoices.values()) {
-			if (inv.zoneChannelId.equals(requestId)) {
-				return inv;
-			}
+		List<String> labels = labelsByZoneChannelId.get(requestId);
+		if (labels == null || labels.isEmpty()) {
+			return null;
 		}
-		return null;
+		return invoices.get(labels.get(labels.size() - 1));
 	}
 
 	public synchronized List<Invoice> getAsSortedList(Comparator<Invoice> comparator) {
@@ -130,30 +318,99 @@ public class Invoices {
 		return invoices;
 	}
 
+	/**
+	 * @return invoices in order of creation
+	 */
+	public synchronized List<Invoice> getAsCreatedList() {
+		return new ArrayList<Invoice>(byCreation);
+	}
+
+	public synchronized List<Invoice> getByStatus(InvoiceStatus status) {
+		Set<String> labels = labelsByStatus.get(status);
+		if (labels == null) {
+			return new ArrayList<Invoice>();
+		}
+		List<Invoice> list = new ArrayList<Invoice>(labels.size());
+		for (String label : labels) {
+			list.add(invoices.get(label));
+		}
+		return list;
+	}
+
+	public synchronized Map<InvoiceStatus, Integer> countByStatus() {
+		Map<InvoiceStatus, Integer> counts = new EnumMap<InvoiceStatus, Integer>(InvoiceStatus.class);
+		for (Map.Entry<InvoiceStatus, Set<String>> e : labelsByStatus.entrySet()) {
+			if (!e.getValue().isEmpty()) {
+				counts.put(e.getKey(), e.getValue().size());
+			}
+		}
+		return counts;
+	}
+
+	public synchronized int size() {
+		return invoices.size();
+	}
+
+	/**
+	 * Marks as expired only UNPAID invoices whose expiry time passed
+	 */
 	public synchronized void updateForExpired() {
-		long oneHourDelta = 3610000L;
-		long nowMillisec = (new Date()).getTime();
-		for (Invoice inv : invoices.values()) {
-			long invMillisec = inv.created_at.getDate().getTime();
-			if (inv.status == InvoiceStatus.UNPAID && nowMillisec - invMillisec > oneHourDelta) {
+		long nowMillisec = System.currentTimeMillis();
+		while (!unpaidExpiry.isEmpty() && unpaidExpiry.peek().at < nowMillisec) {
+			Expiry expiry = unpaidExpiry.poll();
+			Invoice inv = invoices.get(expiry.label);
+			if (inv != null && inv.status == InvoiceStatus.UNPAID) {
 				inv.status = InvoiceStatus.EXPIRED;
+				reindexStatus(inv);
+				dirty.add(inv.label);
 			}
 		}
 	}
 
+	/**
+	 * Stops saving thread and writes pending changes
+	 */
+	public void close() {
+		if (journal == null) {
+			return;
+		}
+		savingThread.interrupt();
+		try {
+			savingThread.join(10000);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		journal.close();
+	}
+
 	private class SavingThread extends Thread {
+
+		public SavingThread() {
+			setDaemon(true);
+		}
+
 		@Override
 		public void run() {
+			long lastExpiryCheck = 0;
 			while (true) {
 				try {
-					updateForExpired();
-					save();
-					Thread.sleep(10000);
+					if (System.currentTimeMillis() - lastExpiryCheck >= EXPIRY_CHECK_MILLIS) {
+						updateForExpired();
+						lastExpiryCheck = System.currentTimeMillis();
+					}
+					flush();
+					Thread.sleep(flushMillis);
 				} catch (InterruptedException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
+					break;
+				} catch (Exception e) {
+					new StoredException("Saving invoices failed", e);
 				}
 			}
+			try {
+				flush();
+			} catch (Exception e) {
+				new StoredException("Final saving of invoices failed", e);
+			}
 		}
 	}
 
@@ -16,7 +16,6 @@ import bittech.lib.commands.lnzone.internal.SetOfferCommand;
 import bittech.lib.protocol.Command;
 import bittech.lib.protocol.ErrorResponse;
 import bittech.lib.protocol.Listener;
-import bittech.lib.protocol.Node;
 import bittech.lib.protocol.common.NoDataResponse;
 import bittech.lib.utils.Btc;
 import bittech.lib.utils.Require;
@@ -28,6 +27,8 @@ public class OfferListener implements Listener {
 
 	final ZoneChannels channels;
 
+	private final PeerOfferCache peerOfferCache = new PeerOfferCache((uri) -> getPeerOffer(uri));
+
 	public String getMyUri() {
 		return myUri;
 	}
@@ -58,7 +59,7 @@ public class OfferListener implements Listener {
 	}
 
 	@Override
-	public synchronized void commandReceived(String fromServiceName, Command<?, ?> command) {
+	public void commandReceived(String fromServiceName, Command<?, ?> command) {
 		if (command instanceof GetOfferCommand) {
 			GetOfferCommand cmd = (GetOfferCommand) command;
 
@@ -74,7 +75,7 @@ public class OfferListener implements Listener {
 			cmd.response = new NoDataResponse();
 		} else if (command instanceof GetPeerOfferCommand) {
 			GetPeerOfferCommand cmd = (GetPeerOfferCommand) command;
-			Offer offer = getPeerOffer(cmd.getRequest().uri);
+			Offer offer = peerOfferCache.get(cmd.getRequest().uri).offer;
 			cmd.response = new GetPeerOfferResponse(offer);
 		} else {
 			throw new StoredException("Usupported command type: " + command, null);
@@ -82,6 +83,14 @@ public class OfferListener implements Listener {
 
 	}
 
+	public PeerOfferCache getPeerOfferCache() {
+		return peerOfferCache;
+	}
+
+	public void close() {
+		peerOfferCache.close();
+	}
+
 	@Override
 	public void responseSent(String serviceName, Command<?, ?> command) {
 		// Nothing here
@@ -117,16 +126,10 @@ public class OfferListener implements Listener {
 	}
 
 	public static Offer getPeerOffer(String uri) {
-		Node node = null;
 		try {
-
-			node = new Node("zone-customer");
-			String[] parsedUri = parseUri(uri);
-
-			node.connect("zone-peer", parsedUri[1], Integer.parseInt(parsedUri[2]));
-
+			parseUri(uri); // validate
 			GetOfferCommand getOfferCmd = new GetOfferCommand();
-			node.execute("zone-peer", getOfferCmd);
+			ZonePeerPool.getInstance().execute(uri, getOfferCmd);
 
 			if (getOfferCmd.getError() != null) {
 				throw new StoredException("Peer returned error", getOfferCmd.getError().toException());
@@ -135,10 +138,6 @@ public class OfferListener implements Listener {
 			return getOfferCmd.getResponse().offer;
 		} catch (Exception ex) {
 			throw new StoredException("Cannot get zone offer", ex);
-		} finally {
-			if (node != null) {
-				node.close();
-			}
 		}
 	}
 
@@ -0,0 +1,274 @@
+package bittech.dae.controller.zone;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bittech.lib.commands.ln.invoices.PaymentReceivedRequest;
+import bittech.lib.utils.Config;
+import bittech.lib.utils.Require;
+import bittech.lib.utils.exceptions.StoredException;
+import bittech.lib.utils.logs.Log;
+
+/**
+ * Delivers received payments to observers asynchronously. Payment is written to
+ * a journal before publish() returns, so it can be acknowledged right away and
+ * it is delivered again after restart if some observer did not finish it.
+ *
+ * Every observer has its own lanes (threads with bounded queues). Payments with
+ * the same label go to the same lane, so they are processed in order. When lane
+ * is full publish() blocks, which slows down the sender.
+ *
+ * Failed observer is retried with backoff. Payment still failing is parked - it
+ * stays in the journal and is delivered again after restart. Observers have to
+ * ignore payment delivered again. Stored as json snapshot in paymentsFile plus
+ * binary journal in paymentsFile.journal.
+ */
+public class PaymentReceivedBus {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(PaymentReceivedBus.class);
+
+	private final static String fileName = Config.getInstance().getEntryOrDefault("paymentsFile", String.class,
+			"/root/ln/payments");
+
+	private final static int lanesPerObserver = Config.getInstance().getEntryOrDefault("paymentLanes", Integer.class,
+			1);
+
+	private final static int laneQueueSize = Config.getInstance().getEntryOrDefault("paymentLaneQueueSize",
+			Integer.class, 1000);
+
+	private final static int observerRetries = Config.getInstance().getEntryOrDefault("paymentObserverRetries",
+			Integer.class, 3);
+
+	private final static long compactRecords = Config.getInstance().getEntryOrDefault("paymentsCompactRecords",
+			Long.class, 1000L);
+
+	private static final byte OP_PAYMENT = 'P';
+	private static final byte OP_DONE = 'D';
+
+	private static final class PendingPayment {
+		long id; // seq of journal record
+		PaymentReceivedRequest request;
+		Set<Integer> doneBy = new HashSet<Integer>(); // observer indexes
+	}
+
+	public static class Data extends RecordJournal.Snapshot {
+		private List<PendingPayment> payments = new ArrayList<PendingPayment>();
+	}
+
+	private final List<PaymentReceivedObserver> observers = new ArrayList<PaymentReceivedObserver>();
+	private final List<Lane[]> lanes = new ArrayList<Lane[]>();
+	private final Map<Long, PendingPayment> pending = new LinkedHashMap<Long, PendingPayment>();
+	private final RecordJournal journal;
+	private boolean started = false;
+
+	public PaymentReceivedBus() {
+		this(fileName);
+	}
+
+	PaymentReceivedBus(String file) {
+		journal = new RecordJournal(file, compactRecords);
+		load();
+		journal.start(() -> snapshot());
+	}
+
+	/**
+	 * Observers have to be registered before start() always in the same order.
+	 * Done marks in journal refer to observer index
+	 */
+	public synchronized void register(PaymentReceivedObserver observer) {
+		Require.notNull(observer, "observer");
+		if (started) {
+			throw new StoredException("Cannot register payment observer after bus started", null);
+		}
+		observers.add(observer);
+	}
+
+	/**
+	 * Starts lanes and delivers payments left from previous run
+	 */
+	public void start() throws InterruptedException {
+		List<PendingPayment> left;
+		synchronized (this) {
+			for (int i = 0; i < observers.size(); i++) {
+				Lane[] observerLanes = new Lane[lanesPerObserver];
+				for (int l = 0; l < lanesPerObserver; l++) {
+					observerLanes[l] = new Lane(i, l);
+					observerLanes[l].start();
+				}
+				lanes.add(observerLanes);
+			}
+			started = true;
+			pending.values().removeIf((p) -> p.doneBy.size() >= observers.size());
+			left = new ArrayList<PendingPayment>(pending.values());
+		}
+		if (!left.isEmpty()) {
+			LOGGER.info("Delivering payments left from previous run: " + left.size());
+		}
+		for (PendingPayment payment : left) {
+			dispatch(payment);
+		}
+	}
+
+	/**
+	 * Returns when payment is durably stored and queued to all observers. Blocks
+	 * if queue of any observer is full
+	 */
+	public void publish(PaymentReceivedRequest request) throws InterruptedException {
+		Require.notNull(request, "request");
+		PendingPayment payment = new PendingPayment();
+		payment.request = request;
+		long seq;
+		synchronized (this) {
+			seq = journal.append(OP_PAYMENT, RecordJournal.toJson(request));
+			payment.id = seq;
+			pending.put(seq, payment);
+		}
+		journal.sync(seq);
+		boolean deliverNow;
+		synchronized (this) {
+			deliverNow = started;
+		}
+		if (deliverNow) {
+			dispatch(payment); // otherwise start() delivers it
+		}
+	}
+
+	private void dispatch(PendingPayment payment) throws InterruptedException {
+		int lane = lanesPerObserver == 1 ? 0 : (payment.request.label.hashCode() & 0x7fffffff) % lanesPerObserver;
+		for (int i = 0; i < observers.size(); i++) {
+			if (!isDone(payment, i)) {
+				lanes.get(i)[lane].queue.put(payment);
+			}
+		}
+	}
+
+	private synchronized boolean isDone(PendingPayment payment, int observerIndex) {
+		return payment.doneBy.contains(observerIndex);
+	}
+
+	private synchronized void done(PendingPayment payment, int observerIndex) {
+		payment.doneBy.add(observerIndex);
+		journal.append(OP_DONE, (payment.id + ":" + observerIndex).getBytes(StandardCharsets.UTF_8));
+		if (payment.doneBy.size() >= observers.size()) {
+			pending.remove(payment.id);
+		}
+	}
+
+	private final class Lane extends Thread {
+		final int observerIndex;
+		final BlockingQueue<PendingPayment> queue = new ArrayBlockingQueue<PendingPayment>(laneQueueSize);
+
+		Lane(int observerIndex, int laneIndex) {
+			super("payment-observer-" + observerIndex + "-" + laneIndex);
+			this.observerIndex = observerIndex;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			PaymentReceivedObserver observer = observers.get(observerIndex);
+			while (!isInterrupted()) {
+				PendingPayment payment;
+				try {
+					payment = queue.take();
+				} catch (InterruptedException ex) {
+					break;
+				}
+				try {
+					if (!deliver(observer, payment)) {
+						continue; // parked
+					}
+				} catch (InterruptedException ex) {
+					break;
+				}
+				try {
+					done(payment, observerIndex);
+				} catch (Exception ex) {
+					new StoredException("Cannot mark payment as done " + payment.request.label, ex);
+				}
+			}
+		}
+
+		private boolean deliver(PaymentReceivedObserver observer, PendingPayment payment)
+				throws InterruptedException {
+			for (int attempt = 0;; attempt++) {
+				try {
+					observer.onPaymentReceived(payment.request);
+					return true;
+				} catch (Exception ex) {
+					if (attempt >= observerRetries) {
+						new StoredException("Payment observer failed for " + payment.request.label
+								+ ". Parked until restart", ex);
+						return false;
+					}
+					new StoredException("Payment observer failed for " + payment.request.label + ". Retrying", ex);
+					Thread.sleep(1000L << Math.min(attempt, 6));
+				}
+			}
+		}
+	}
+
+	private synchronized byte[] snapshot() {
+		Data data = new Data();
+		data.payments = new ArrayList<PendingPayment>(pending.values());
+		return journal.snapshot(data);
+	}
+
+	private synchronized void load() {
+		try {
+			Data data = journal.readSnapshot(Data.class, new Data());
+			for (PendingPayment payment : data.payments) {
+				pending.put(payment.id, payment);
+			}
+			journal.replay(data, (seq, op, payload) -> {
+				if (op == OP_PAYMENT) {
+					PendingPayment payment = new PendingPayment();
+					payment.id = seq;
+					payment.request = RecordJournal.fromJson(payload, PaymentReceivedRequest.class);
+					pending.put(seq, payment);
+				} else if (op == OP_DONE) {
+					String[] parts = new String(payload, StandardCharsets.UTF_8).split(":");
+					PendingPayment payment = pending.get(Long.parseLong(parts[0]));
+					if (payment != null) {
+						payment.doneBy.add(Integer.parseInt(parts[1]));
+					}
+				} else {
+					throw new StoredException("Unknown payments journal record: " + op, null);
+				}
+			});
+			LOGGER.info("Loaded not processed payments: " + pending.size());
+		} catch (Exception ex) {
+			throw new StoredException("Cannot load payments journal", ex);
+		}
+	}
+
+	/**
+	 * Stops lanes. Payments not processed yet are delivered after restart
+	 */
+	public void close() {
+		List<Lane[]> toStop;
+		int notProcessed;
+		synchronized (this) {
+			toStop = new ArrayList<Lane[]>(lanes);
+			notProcessed = pending.size();
+		}
+		for (Lane[] observerLanes : toStop) {
+			for (Lane lane : observerLanes) {
+				lane.interrupt();
+			}
+		}
+		journal.close();
+		new Log().param("pending", notProcessed).event("Payment bus closed");
+	}
+
+}
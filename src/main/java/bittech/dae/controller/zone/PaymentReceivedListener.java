@@ -9,7 +9,6 @@ import bittech.lib.protocol.Command;
 import bittech.lib.protocol.Connection;
 import bittech.lib.protocol.Listener;
 import bittech.lib.protocol.common.NoDataResponse;
-import bittech.lib.utils.Notificator;
 import bittech.lib.utils.Require;
 import bittech.lib.utils.exceptions.StoredException;
 import bittech.lib.utils.logs.Log;
@@ -25,13 +24,19 @@ public class PaymentReceivedListener implements Listener {
 
 //	private final PaymentsThread paymentsThread = new PaymentsThread();
 	
-	private Notificator<PaymentReceivedObserver> paymentReceivedNotifier = new Notificator<PaymentReceivedObserver>();
+	private final PaymentReceivedBus paymentReceivedBus = new PaymentReceivedBus();
 
 	public PaymentReceivedListener(Connection connection) {
 		this.connection = Require.notNull(connection, "connection");
 	}
 
 	public void start() throws StoredException {
+		try {
+			paymentReceivedBus.start();
+		} catch (InterruptedException ex) {
+			throw new StoredException("Interrupted while delivering not processed payments", ex);
+		}
+
 		RegisterPaymentsListenerCommand cmd = new RegisterPaymentsListenerCommand();
 		connection.execute(cmd);
 
@@ -54,7 +59,11 @@ public class PaymentReceivedListener implements Listener {
 	}
 	
 	public void registerPaymentReceivedObserver(PaymentReceivedObserver observer) {
-		paymentReceivedNotifier.register(observer);
+		paymentReceivedBus.register(observer);
+	}
+
+	public void close() {
+		paymentReceivedBus.close();
 	}
 
 	@Override
@@ -67,7 +76,8 @@ public class PaymentReceivedListener implements Listener {
 				(new Log()).param("cmd", cmd).event("Payment received");
 
 //				LOGGER.info("------------------ Adding to payments queue.Size is: " + payments.size());
-				paymentReceivedNotifier.notifyThem((m) -> m.onPaymentReceived(cmd.getRequest()));
+				// Observers are called by the bus, ack as soon as payment is journaled
+				paymentReceivedBus.publish(cmd.getRequest());
 //				payments.add(cmd.getRequest());
 //				LOGGER.info("------------------ Added to queue.Size is: " + payments.size());
 
@@ -0,0 +1,201 @@
+package bittech.dae.controller.zone;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bittech.dae.controller.zone.ToOnchainListener.Payment;
+import bittech.lib.utils.Config;
+import bittech.lib.utils.Require;
+import bittech.lib.utils.exceptions.StoredException;
+
+/**
+ * Persistent queue of on-chain payouts keyed by invoice label, so the same
+ * invoice is never queued twice. Payout is journaled when queued, before it is
+ * sent and when it is done. Invoice of the payout has to be durably updated
+ * before done(), so payout record is never lost before invoice status. Queued
+ * payouts are queued again after restart. Payouts that were being sent are
+ * returned by interrupted() - it is not known whether they were paid, so they
+ * must not be sent again. Stored as json snapshot in payoutsFile plus binary
+ * journal in payoutsFile.journal.
+ */
+public class PayoutQueue {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(PayoutQueue.class);
+
+	private final static String fileName = Config.getInstance().getEntryOrDefault("payoutsFile", String.class,
+			"/root/ln/payouts");
+
+	private final static long compactRecords = Config.getInstance().getEntryOrDefault("payoutsCompactRecords",
+			Long.class, 1000L);
+
+	private static final byte OP_QUEUED = 'Q';
+	private static final byte OP_SENDING = 'S';
+	private static final byte OP_NOT_SENT = 'N';
+	private static final byte OP_DONE = 'D';
+
+	private static final class Entry {
+		Payment payment;
+		boolean sending = false;
+	}
+
+	public static class Data extends RecordJournal.Snapshot {
+		private List<Entry> payouts = new ArrayList<Entry>();
+	}
+
+	private final Map<String, Entry> byLabel = new LinkedHashMap<String, Entry>();
+	private final BlockingQueue<Payment> ready = new LinkedBlockingQueue<Payment>();
+	private final List<Payment> interrupted = new ArrayList<Payment>();
+	private final RecordJournal journal;
+
+	public PayoutQueue() {
+		this(fileName);
+	}
+
+	PayoutQueue(String file) {
+		journal = new RecordJournal(file, compactRecords);
+		load();
+		journal.start(() -> snapshot());
+	}
+
+	/**
+	 * Durably queues payout
+	 *
+	 * @return false if payout for this invoice label is already queued
+	 */
+	public boolean offer(Payment payment) throws InterruptedException {
+		Require.notNull(payment, "payment");
+		Require.notEmpty(payment.invoice_label, "invoice_label");
+		long seq;
+		synchronized (this) {
+			if (byLabel.containsKey(payment.invoice_label)) {
+				return false;
+			}
+			Entry entry = new Entry();
+			entry.payment = payment;
+			byLabel.put(payment.invoice_label, entry);
+			seq = journal.append(OP_QUEUED, RecordJournal.toJson(payment));
+		}
+		journal.sync(seq);
+		ready.put(payment);
+		return true;
+	}
+
+	public Payment take() throws InterruptedException {
+		return ready.take();
+	}
+
+	public Payment poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return ready.poll(timeout, unit);
+	}
+
+	/**
+	 * Durably marks payouts as being sent. Call it right before sending. If
+	 * interrupted, the mark is revoked and payouts stay queued for next start
+	 */
+	public void sending(List<Payment> payments) throws InterruptedException {
+		long seq = 0;
+		synchronized (this) {
+			for (Payment p : payments) {
+				Entry entry = byLabel.get(p.invoice_label);
+				if (entry != null) {
+					entry.sending = true;
+					seq = journal.append(OP_SENDING, p.invoice_label.getBytes(StandardCharsets.UTF_8));
+				}
+			}
+		}
+		try {
+			journal.sync(seq);
+		} catch (InterruptedException ex) {
+			notSent(payments); // writer may still persist the marks
+			throw ex;
+		}
+	}
+
+	private synchronized void notSent(List<Payment> payments) {
+		for (Payment p : payments) {
+			Entry entry = byLabel.get(p.invoice_label);
+			if (entry != null && entry.sending) {
+				entry.sending = false;
+				journal.append(OP_NOT_SENT, p.invoice_label.getBytes(StandardCharsets.UTF_8));
+			}
+		}
+	}
+
+	public synchronized void done(Payment payment) {
+		if (byLabel.remove(payment.invoice_label) != null) {
+			journal.append(OP_DONE, payment.invoice_label.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * @return payouts that were being sent when process stopped. Mark them done
+	 *         after handling
+	 */
+	public synchronized List<Payment> interrupted() {
+		return new ArrayList<Payment>(interrupted);
+	}
+
+	public synchronized List<Payment> list() {
+		List<Payment> list = new ArrayList<Payment>(byLabel.size());
+		for (Entry entry : byLabel.values()) {
+			list.add(entry.payment);
+		}
+		return list;
+	}
+
+	private synchronized byte[] snapshot() {
+		Data data = new Data();
+		data.payouts = new ArrayList<Entry>(byLabel.values());
+		return journal.snapshot(data);
+	}
+
+	private synchronized void load() {
+		try {
+			Data data = journal.readSnapshot(Data.class, new Data());
+			for (Entry entry : data.payouts) {
+				byLabel.put(entry.payment.invoice_label, entry);
+			}
+			journal.replay(data, (seq, op, payload) -> {
+				String str = new String(payload, StandardCharsets.UTF_8);
+				if (op == OP_QUEUED) {
+					Entry entry = new Entry();
+					entry.payment = RecordJournal.fromJson(payload, Payment.class);
+					byLabel.put(entry.payment.invoice_label, entry);
+				} else if (op == OP_SENDING || op == OP_NOT_SENT) {
+					Entry entry = byLabel.get(str);
+					if (entry != null) {
+						entry.sending = op == OP_SENDING;
+					}
+				} else if (op == OP_DONE) {
+					byLabel.remove(str);
+				} else {
+					throw new StoredException("Unknown payouts journal record: " + op, null);
+				}
+			});
+			for (Entry entry : byLabel.values()) {
+				if (entry.sending) {
+					interrupted.add(entry.payment);
+				} else {
+					ready.add(entry.payment);
+				}
+			}
+			LOGGER.info("Loaded payouts. Queued: " + ready.size() + ", interrupted: " + interrupted.size());
+		} catch (Exception ex) {
+			throw new StoredException("Cannot load payouts journal", ex);
+		}
+	}
+
+	public void close() {
+		journal.close();
+	}
+
+}
@@ -0,0 +1,237 @@
+package bittech.dae.controller.zone;
+
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import bittech.lib.commands.lnzone.commans.Offer;
+import bittech.lib.utils.Config;
+import bittech.lib.utils.Notificator;
+import bittech.lib.utils.Require;
+import bittech.lib.utils.exceptions.StoredException;
+import bittech.lib.utils.json.JsonBuilder;
+
+/**
+ * Bounded LRU cache of offers of other zone peers, keyed by zone uri. Offer
+ * older than TTL is still returned and refreshed in background, only offer
+ * older than max stale time (a few TTLs) is fetched synchronously by get().
+ * getCached() never blocks on the network. Concurrent fetches of the same peer
+ * share one request. Every offer has version (sha1 of its json), observers are
+ * notified when version of peer offer changes. Cached offers are shared between
+ * callers and must not be modified.
+ */
+public class PeerOfferCache {
+
+	private final static int maxSize = Config.getInstance().getEntryOrDefault("peerOfferCacheSize", Integer.class,
+			1000);
+
+	private final static long ttlMillis = 1000L
+			* Config.getInstance().getEntryOrDefault("peerOfferTtlSeconds", Long.class, 60L);
+
+	private final static long maxStaleMillis = 1000L
+			* Config.getInstance().getEntryOrDefault("peerOfferMaxStaleSeconds", Long.class, 180L);
+
+	public static final class VersionedOffer {
+		public final Offer offer;
+		public final String version;
+		public final long fetchedAt;
+
+		private VersionedOffer(Offer offer, long fetchedAt) {
+			this.offer = offer;
+			this.version = version(offer);
+			this.fetchedAt = fetchedAt;
+		}
+	}
+
+	private static final class Entry {
+		VersionedOffer current;
+		boolean refreshing = false;
+		CompletableFuture<VersionedOffer> inFlight = null; // fetch in progress
+	}
+
+	private final Function<String, Offer> fetcher;
+
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > maxSize;
+		}
+	};
+
+	private final ExecutorService refresher = Executors.newSingleThreadExecutor((r) -> {
+		Thread t = new Thread(r, "peer-offer-refresher");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final Notificator<PeerOfferChangeObserver> changeNotificator = new Notificator<PeerOfferChangeObserver>();
+
+	/**
+	 * @param fetcher gets offer from zone peer, e.g. OfferListener.getPeerOffer
+	 */
+	public PeerOfferCache(Function<String, Offer> fetcher) {
+		this.fetcher = Require.notNull(fetcher, "fetcher");
+	}
+
+	public void registerChangeObserver(PeerOfferChangeObserver observer) {
+		changeNotificator.register(observer);
+	}
+
+	/**
+	 * @return peer offer, fetched from the network only if there is no cached one
+	 *         or it is older than max stale time
+	 */
+	public VersionedOffer get(String uri) {
+		Require.notEmpty(uri, "uri");
+		long now = System.currentTimeMillis();
+		synchronized (entries) {
+			Entry entry = entry(uri);
+			if (entry.current != null && now - entry.current.fetchedAt <= maxStaleMillis) {
+				if (now - entry.current.fetchedAt > ttlMillis) {
+					refreshInBackground(uri, entry);
+				}
+				return entry.current;
+			}
+		}
+		return fetch(uri);
+	}
+
+	/**
+	 * Never blocks on the network, e.g. for offer comparisons in UI
+	 *
+	 * @return cached peer offer or null if not cached yet. Missing or old offer is
+	 *         fetched in background
+	 */
+	public VersionedOffer getCached(String uri) {
+		Require.notEmpty(uri, "uri");
+		long now = System.currentTimeMillis();
+		synchronized (entries) {
+			Entry entry = entry(uri);
+			if (entry.current == null || now - entry.current.fetchedAt > ttlMillis) {
+				refreshInBackground(uri, entry);
+			}
+			return entry.current;
+		}
+	}
+
+	/**
+	 * Never blocks on the network
+	 *
+	 * @return true if given version is the current version of cached peer offer
+	 */
+	public boolean isCurrent(String uri, String version) {
+		VersionedOffer cached = getCached(uri);
+		return cached != null && cached.version.equals(version);
+	}
+
+	private Entry entry(String uri) {
+		Entry entry = entries.get(uri);
+		if (entry == null) {
+			entry = new Entry();
+			entries.put(uri, entry);
+		}
+		return entry;
+	}
+
+	// Called with entries lock held
+	private void refreshInBackground(String uri, Entry entry) {
+		if (entry.refreshing) {
+			return;
+		}
+		entry.refreshing = true;
+		try {
+			refresher.execute(() -> {
+				try {
+					fetch(uri);
+				} catch (Exception ex) {
+					new StoredException("Cannot refresh offer of zone peer " + uri, ex);
+				} finally {
+					synchronized (entries) {
+						Entry e = entries.get(uri);
+						if (e != null) {
+							e.refreshing = false;
+						}
+					}
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			entry.refreshing = false; // closed
+		}
+	}
+
+	/**
+	 * Only the first caller asks the peer, the others wait for its result
+	 */
+	private VersionedOffer fetch(String uri) {
+		Entry entry;
+		CompletableFuture<VersionedOffer> future;
+		boolean first = false;
+		synchronized (entries) {
+			entry = entry(uri);
+			if (entry.inFlight == null) {
+				entry.inFlight = new CompletableFuture<VersionedOffer>();
+				first = true;
+			}
+			future = entry.inFlight;
+		}
+		if (!first) {
+			try {
+				return future.get();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new StoredException("Interrupted while waiting for offer of zone peer " + uri, ex);
+			} catch (ExecutionException ex) {
+				throw new StoredException("Cannot get offer of zone peer " + uri, ex.getCause());
+			}
+		}
+
+		VersionedOffer fetched;
+		VersionedOffer previous;
+		try {
+			fetched = new VersionedOffer(fetcher.apply(uri), System.currentTimeMillis());
+			synchronized (entries) {
+				Entry current = entry(uri); // could be evicted in the meantime
+				previous = current.current;
+				current.current = fetched;
+			}
+			future.complete(fetched);
+		} catch (RuntimeException ex) {
+			future.completeExceptionally(ex);
+			throw ex;
+		} finally {
+			synchronized (entries) {
+				if (entry.inFlight == future) {
+					entry.inFlight = null;
+				}
+			}
+		}
+		if (previous == null || !previous.version.equals(fetched.version)) {
+			changeNotificator.notifyThem((o) -> o.onPeerOfferChanged(uri, fetched.offer, fetched.version));
+		}
+		return fetched;
+	}
+
+	public static String version(Offer offer) {
+		if (offer == null) {
+			return "";
+		}
+		StringWriter out = new StringWriter();
+		JsonBuilder.build().toJson(offer, out);
+		return DigestUtils.sha1Hex(out.toString());
+	}
+
+	public void close() {
+		refresher.shutdownNow();
+	}
+
+}
@@ -0,0 +1,8 @@
+package bittech.dae.controller.zone;
+
+import bittech.lib.commands.lnzone.commans.Offer;
+
+public interface PeerOfferChangeObserver {
+
+	public void onPeerOfferChanged(String uri, Offer offer, String version);
+}
@@ -0,0 +1,382 @@
+package bittech.dae.controller.zone;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bittech.lib.utils.Require;
+import bittech.lib.utils.exceptions.StoredException;
+import bittech.lib.utils.json.JsonBuilder;
+
+/**
+ * Append-only log of records (seq, op, payload) next to a snapshot file.
+ * Records are queued by append() and written by one thread - everything
+ * queued while previous batch was synced goes to disk with a single fsync
+ * (group commit). Snapshot is written with atomic rename and stores the last
+ * seq it contains, records up to this seq are skipped on replay. Snapshot and
+ * payloads are usually json, see toJson() and fromJson().
+ */
+public class RecordJournal {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(RecordJournal.class);
+
+	private static final int HEADER_LENGTH = 4 + 8 + 1; // length, seq, op
+
+	public interface Replay {
+		void apply(long seq, byte op, byte[] payload) throws Exception;
+	}
+
+	/**
+	 * Called by writer thread to get current state as snapshot file content. The
+	 * content has to contain lastSeq() read in the same critical section as the
+	 * state, see snapshot(Snapshot)
+	 */
+	public interface Snapshotter {
+		byte[] snapshot();
+	}
+
+	/**
+	 * Base of json snapshot content. Keeps seq of the last record included
+	 */
+	public static class Snapshot {
+		long journalSeq;
+	}
+
+	private static final class Record {
+		final long seq;
+		final byte op;
+		final byte[] payload;
+
+		Record(long seq, byte op, byte[] payload) {
+			this.seq = seq;
+			this.op = op;
+			this.payload = payload;
+		}
+	}
+
+	private final File snapshotFile;
+	private final File journalFile;
+	private final long compactRecords;
+
+	private List<Record> pending = new ArrayList<Record>();
+	private long lastSeq = 0;
+	private long syncedSeq = 0;
+	private boolean closed = false;
+	private boolean stopped = false;
+	private boolean replayFailed = false;
+
+	private long recordsInFile = 0;
+	private long syncedLength = -1; // end of last synced record, -1 if not known
+	private FileOutputStream journalStream = null;
+	private DataOutputStream journal = null;
+
+	private Snapshotter snapshotter;
+	private Thread writer;
+
+	public RecordJournal(String snapshotFileName, long compactRecords) {
+		Require.notEmpty(snapshotFileName, "snapshotFileName");
+		this.snapshotFile = new File(snapshotFileName);
+		this.journalFile = new File(snapshotFileName + ".journal");
+		this.compactRecords = compactRecords;
+	}
+
+	public File getSnapshotFile() {
+		return snapshotFile;
+	}
+
+	/**
+	 * Reads json snapshot file
+	 *
+	 * @return defaultValue if there is no snapshot file yet
+	 */
+	public <T extends Snapshot> T readSnapshot(Class<T> type, T defaultValue) {
+		if (!snapshotFile.exists()) {
+			return defaultValue;
+		}
+		try (Reader reader = new InputStreamReader(new FileInputStream(snapshotFile), StandardCharsets.UTF_8)) {
+			T snapshot = JsonBuilder.build().fromJson(reader, type);
+			return snapshot == null ? defaultValue : snapshot;
+		} catch (Exception ex) {
+			synchronized (this) {
+				replayFailed = true;
+			}
+			throw new StoredException("Cannot read snapshot " + snapshotFile, ex);
+		}
+	}
+
+	/**
+	 * Applies records newer than given snapshot
+	 */
+	public void replay(Snapshot snapshot, Replay replay) {
+		replay(snapshot.journalSeq, replay);
+	}
+
+	/**
+	 * Applies records newer than snapshot. Drops torn record at the end of file.
+	 * If any record cannot be applied the state is incomplete - exception is
+	 * thrown and the journal cannot be started, so the file is never compacted
+	 * into partial snapshot
+	 */
+	public synchronized void replay(long snapshotSeq, Replay replay) {
+		lastSeq = snapshotSeq;
+		syncedSeq = snapshotSeq;
+		if (!journalFile.exists()) {
+			return;
+		}
+		long fileLength = journalFile.length();
+		long validLength = 0;
+		try {
+			try (DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(journalFile)))) {
+				while (true) {
+					long seq;
+					byte op;
+					byte[] payload;
+					try {
+						int length = in.readInt();
+						if (length < 0 || length > fileLength - validLength - HEADER_LENGTH) {
+							break; // torn length prefix
+						}
+						seq = in.readLong();
+						op = in.readByte();
+						payload = new byte[length];
+						in.readFully(payload);
+						validLength += HEADER_LENGTH + length;
+					} catch (EOFException ex) {
+						break;
+					}
+					recordsInFile++;
+					if (seq > snapshotSeq) {
+						replay.apply(seq, op, payload);
+						lastSeq = Math.max(lastSeq, seq);
+					}
+				}
+			}
+			syncedLength = validLength;
+			syncedSeq = lastSeq;
+			if (validLength != fileLength) {
+				LOGGER.warn("Journal " + journalFile + " has truncated record. Dropping it");
+				try (FileOutputStream out = new FileOutputStream(journalFile, true)) {
+					out.getChannel().truncate(validLength);
+				}
+			}
+		} catch (Exception ex) {
+			replayFailed = true;
+			throw new StoredException("Cannot replay journal " + journalFile, ex);
+		}
+	}
+
+	/**
+	 * Starts writer thread
+	 */
+	public synchronized void start(Snapshotter snapshotter) {
+		if (replayFailed) {
+			throw new StoredException("Cannot start journal that was not fully replayed: " + journalFile, null);
+		}
+		this.snapshotter = Require.notNull(snapshotter, "snapshotter");
+		writer = new Thread(() -> writeLoop(), "journal-" + snapshotFile.getName());
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Queues record to be written. Should be called in the same critical section
+	 * as the change it describes, so seq order is the order of changes
+	 *
+	 * @return seq of the record
+	 */
+	public synchronized long append(byte op, byte[] payload) {
+		if (closed) {
+			throw new StoredException("Journal closed: " + journalFile, null);
+		}
+		Record record = new Record(++lastSeq, op, payload);
+		pending.add(record);
+		notifyAll();
+		return record.seq;
+	}
+
+	/**
+	 * Serializes snapshot with seq of the last appended record. Has to be called
+	 * in the same critical section as changes of the state
+	 */
+	public byte[] snapshot(Snapshot snapshot) {
+		snapshot.journalSeq = lastSeq();
+		return toJson(snapshot);
+	}
+
+	/**
+	 * @return seq of the last appended record
+	 */
+	public synchronized long lastSeq() {
+		return lastSeq;
+	}
+
+	/**
+	 * Waits until record with given seq is synced to disk
+	 */
+	public synchronized void sync(long seq) throws InterruptedException {
+		while (syncedSeq < seq) {
+			if (stopped) {
+				throw new StoredException("Journal stopped before record " + seq + " was written: " + journalFile,
+						null);
+			}
+			wait();
+		}
+	}
+
+	private void writeLoop() {
+		while (true) {
+			List<Record> batch;
+			synchronized (this) {
+				while (pending.isEmpty() && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException ex) {
+						closed = true;
+					}
+				}
+				if (pending.isEmpty() && closed) {
+					break;
+				}
+				batch = pending;
+				pending = new ArrayList<Record>();
+			}
+
+			try {
+				write(batch);
+			} catch (Exception ex) {
+				closeJournal();
+				new StoredException("Cannot write journal " + journalFile, ex);
+				synchronized (this) {
+					if (closed) {
+						break;
+					}
+					batch.addAll(pending); // retry, keep order
+					pending = batch;
+				}
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException e) {
+					synchronized (this) {
+						closed = true;
+					}
+				}
+				continue;
+			}
+			synchronized (this) {
+				syncedSeq = batch.get(batch.size() - 1).seq;
+				notifyAll();
+			}
+
+			if (recordsInFile >= compactRecords) {
+				try {
+					compact();
+				} catch (Exception ex) {
+					new StoredException("Cannot compact journal " + journalFile, ex);
+				}
+			}
+		}
+		closeJournal();
+		synchronized (this) {
+			stopped = true;
+			notifyAll();
+		}
+	}
+
+	private void write(List<Record> batch) throws IOException {
+		if (journal == null) {
+			journalStream = new FileOutputStream(journalFile, true);
+			if (syncedLength >= 0 && journalStream.getChannel().size() > syncedLength) {
+				journalStream.getChannel().truncate(syncedLength); // partially written batch
+			}
+			journal = new DataOutputStream(new BufferedOutputStream(journalStream));
+		}
+		for (Record record : batch) {
+			journal.writeInt(record.payload.length);
+			journal.writeLong(record.seq);
+			journal.writeByte(record.op);
+			journal.write(record.payload);
+		}
+		journal.flush();
+		journalStream.getChannel().force(false);
+		syncedLength = journalStream.getChannel().size();
+		recordsInFile += batch.size();
+	}
+
+	private void compact() throws IOException {
+		byte[] snapshot = snapshotter.snapshot();
+		File tmp = new File(snapshotFile.getPath() + ".tmp");
+		try (FileOutputStream out = new FileOutputStream(tmp)) {
+			out.write(snapshot);
+			out.getChannel().force(false);
+		}
+		Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+
+		closeJournal();
+		new FileOutputStream(journalFile).close(); // truncate
+		recordsInFile = 0;
+		syncedLength = 0;
+		LOGGER.info("Journal compacted into " + snapshotFile);
+	}
+
+	private void closeJournal() {
+		try {
+			if (journal != null) {
+				journal.close();
+			}
+		} catch (Exception ex) {
+			new StoredException("Cannot close journal " + journalFile, ex);
+		}
+		journal = null;
+		journalStream = null;
+	}
+
+	public static byte[] toJson(Object object) {
+		StringWriter out = new StringWriter();
+		JsonBuilder.build().toJson(object, out);
+		return out.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	public static <T> T fromJson(byte[] json, Class<T> type) {
+		return JsonBuilder.build().fromJson(new StringReader(new String(json, StandardCharsets.UTF_8)), type);
+	}
+
+	/**
+	 * Writes queued records and stops writer thread
+	 */
+	public void close() {
+		Thread w;
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+			w = writer;
+		}
+		if (w != null) {
+			try {
+				w.join(10000);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+}
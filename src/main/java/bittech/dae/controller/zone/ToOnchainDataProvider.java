@@ -1,9 +1,10 @@
 package bittech.dae.controller.zone;
 
-import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 
 import bittech.dae.controller.zone.Invoices.Invoice;
+import bittech.lib.commands.ln.invoices.GetPaymentStatusResponse.InvoiceStatus;
 import bittech.lib.manager.ManagerDataProvider;
 import bittech.lib.manager.commands.GetNodeDetailsResponse;
 import bittech.lib.utils.Require;
@@ -25,12 +26,9 @@ public class ToOnchainDataProvider implements ManagerDataProvider {
 	@Override
 	public void addCustomData(GetNodeDetailsResponse details) throws StoredException {
 
-		List<Invoice> invoices = refillListener.getInvoices().getAsSortedList(new Comparator<Invoice>() {
-			@Override
-			public int compare(Invoice o1, Invoice o2) {
-				return o1.created_at.toString().compareTo(o2.created_at.toString());
-			}
-		});
+		Invoices allInvoices = refillListener.getInvoices();
+		List<Invoice> invoices = allInvoices.getAsCreatedList();
+		Map<InvoiceStatus, Integer> counts = allInvoices.countByStatus();
 
 		details.details.put("offer", zoneModule.getOffer());
 		details.details.put("invoices", invoices);
@@ -44,33 +42,24 @@ public class ToOnchainDataProvider implements ManagerDataProvider {
 
 			details.summary.put("invoices", Integer.toString(invoices.size()));
 
-			int paid = 0;
-			int unpaid = 0;
-			int completed = 0;
-			int errors = 0;
-			int expired = 0;
-			for (Invoice inv : invoices) {
-				switch (inv.status) {
+			for (InvoiceStatus status : counts.keySet()) {
+				switch (status) {
 				case PAID:
-					paid++;
-					break;
 				case UNPAID:
-					unpaid++;
-					break;
 				case EXPIRED:
-					expired++;
-					break;
 				case COMPLETED:
-					completed++;
-					break;
 				case ERROR:
-					errors++;
 					break;
 				default:
-					throw new Exception("Unknown invoice status: " + inv.status + " for invoice "
-							+ JsonBuilder.build().toJson(inv));
+					throw new Exception("Unknown invoice status: " + status + " for "
+							+ JsonBuilder.build().toJson(allInvoices.getByStatus(status)));
 				}
 			}
+			int paid = count(counts, InvoiceStatus.PAID);
+			int unpaid = count(counts, InvoiceStatus.UNPAID);
+			int completed = count(counts, InvoiceStatus.COMPLETED);
+			int errors = count(counts, InvoiceStatus.ERROR);
+			int expired = count(counts, InvoiceStatus.EXPIRED);
 
 			details.summary.put("expired", Integer.toString(expired));
 			details.summary.put("unpaid", Integer.toString(unpaid));
@@ -87,4 +76,9 @@ public class ToOnchainDataProvider implements ManagerDataProvider {
 
 	}
 
+	private static int count(Map<InvoiceStatus, Integer> counts, InvoiceStatus status) {
+		Integer count = counts.get(status);
+		return count == null ? 0 : count;
+	}
+
 }
@@ -1,16 +1,23 @@
 package bittech.dae.controller.zone;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import bittech.dae.controller.ln.commands.SendManyOnChainCommand;
+import bittech.dae.controller.ln.lnd.DecodedInvoiceCache;
 import bittech.dae.controller.zone.Invoices.Invoice;
-import bittech.dae.controller.zone.channels.ClientZoneListener;
 import bittech.dae.controller.zone.channels.CompoundChannels;
 import bittech.dae.controller.zone.channels.ZoneChannel;
 import bittech.dae.controller.zone.channels.ZoneChannels;
@@ -33,12 +40,11 @@ import bittech.lib.protocol.Command;
 import bittech.lib.protocol.Connection;
 import bittech.lib.protocol.ErrorResponse;
 import bittech.lib.protocol.Listener;
-import bittech.lib.protocol.Node;
 import bittech.lib.utils.Btc;
+import bittech.lib.utils.Config;
 import bittech.lib.utils.FormattedTime;
 import bittech.lib.utils.FormattedTime.Precision;
 import bittech.lib.utils.Require;
-import bittech.lib.utils.Utils;
 import bittech.lib.utils.exceptions.StoredException;
 import bittech.lib.utils.logs.Log;
 
@@ -46,6 +52,21 @@ public class ToOnchainListener implements Listener, PaymentReceivedObserver {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(ToOnchainListener.class);
 
+	private final static int withdrawalBatchSize = Config.getInstance().getEntryOrDefault("withdrawalBatchSize",
+			Integer.class, 50);
+
+	private final static int payoutWorkers = Config.getInstance().getEntryOrDefault("payoutWorkers", Integer.class,
+			1);
+
+	private final static long withdrawalBatchMillis = Config.getInstance()
+			.getEntryOrDefault("withdrawalBatchMillis", Long.class, 5000L);
+
+	private static final Set<InvoiceStatus> NOT_PAID = EnumSet.of(InvoiceStatus.UNPAID, InvoiceStatus.EXPIRED);
+	private static final Set<InvoiceStatus> NOT_SETTLED = EnumSet.of(InvoiceStatus.UNPAID, InvoiceStatus.EXPIRED,
+			InvoiceStatus.PAID);
+	private static final Set<InvoiceStatus> NOT_COMPLETED = EnumSet
+			.complementOf(EnumSet.of(InvoiceStatus.COMPLETED));
+
 	public static final class Payment {
 		String invoice_label;
 		Btc amount;
@@ -54,19 +75,22 @@ public class ToOnchainListener implements Listener, PaymentReceivedObserver {
 
 	private Invoices invoices = new Invoices();
 	// //
-	private Queue<Payment> payments = new ConcurrentLinkedQueue<Payment>();
+	private final PayoutQueue payouts = new PayoutQueue();
 
 	private final ZoneChannels channels;
 	
 	private final CompoundChannels compoundChannels;
 
 	private final Connection controllerConnection;
+	private final DecodedInvoiceCache<DecodeInvoiceCommand> decodedInvoices;
 
-	private final PaymentsThread paymentsThread = new PaymentsThread();
+	private final List<PaymentsThread> paymentsThreads = new ArrayList<PaymentsThread>();
 
 	public ToOnchainListener(final ZoneChannels channels, final Connection controllerConnection, CompoundChannels compoundChannels) {
 		this.channels = Require.notNull(channels, "channels");
 		this.controllerConnection = Require.notNull(controllerConnection, "controllerConnection");
+		this.decodedInvoices = new DecodedInvoiceCache<DecodeInvoiceCommand>(DecodeInvoiceCommand::new,
+				controllerConnection::execute);
 		this.compoundChannels = Require.notNull(compoundChannels, "compoundChannels");
 	}
 
@@ -76,7 +100,7 @@ public class ToOnchainListener implements Listener, PaymentReceivedObserver {
 	// }
 
 	public List<Payment> getPayments() {
-		return new LinkedList<Payment>(payments);
+		return new LinkedList<Payment>(payouts.list());
 	}
 
 	public void start() throws StoredException {
@@ -87,8 +111,44 @@ public class ToOnchainListener implements Listener, PaymentReceivedObserver {
 			throw new StoredException("Register command failed: " + cmd.getError().message, null);
 		}
 
-		paymentsThread.start();
+		// Not known if these were paid, never send them again
+		List<Payment> interrupted = payouts.interrupted();
+		for (Payment p : interrupted) {
+			if (markInvoiceError(invoices, p.invoice_label)) {
+				new StoredException("On-chain payment interrupted by restart, marking as error: " + p.invoice_label,
+						null);
+			}
+		}
+		try {
+			invoices.sync();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new StoredException("Interrupted while saving invoices", ex);
+		}
+		for (Payment p : interrupted) {
+			payouts.done(p);
+		}
+
+		for (int i = 0; i < payoutWorkers; i++) {
+			PaymentsThread thread = new PaymentsThread(i);
+			paymentsThreads.add(thread);
+			thread.start();
+		}
+	}
 
+	public void close() {
+		for (PaymentsThread thread : paymentsThreads) {
+			thread.running.set(false);
+			thread.interrupt();
+		}
+		for (PaymentsThread thread : paymentsThreads) {
+			try {
+				thread.join(10000);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		payouts.close();
 	}
 
 	private Invoice addInvoice(String zoneChannelId, String label, String addr, Btc amount, String bolt11)
@@ -179,6 +239,7 @@ public class ToOnchainListener implements Listener, PaymentReceivedObserver {
 			} catch (Exception ex) {
 				if (inv != null) {
 					inv.status = InvoiceStatus.ERROR;
+					invoices.update(inv);
 				}
 				throw new StoredException("Cannot schedule return given satoshis on-chain", ex);
 			}
@@ -230,8 +291,7 @@ public class ToOnchainListener implements Listener, PaymentReceivedObserver {
 		
 //		String shortChnnelId = getShortChannelId(channel.fundingTxId);
 		
-		DecodeInvoiceCommand decodePayCmd = new DecodeInvoiceCommand(invoiceBolt11);
-		controllerConnection.execute(decodePayCmd);
+		DecodeInvoiceCommand decodePayCmd = decodedInvoices.decode(invoiceBolt11);
 		if (decodePayCmd.getError() != null) {
 			throw new StoredException("Cannot decode invoice " + invoiceBolt11, decodePayCmd.getError().toException());
 		}
@@ -264,27 +324,14 @@ public class ToOnchainListener implements Listener, PaymentReceivedObserver {
 	}
 
 	private String askZonePeerForInvoice(ZoneChannel channel, Btc amount, String addr) {
-		Node node = null;
-		try {
-
-			node = new Node("zone-customer-" + Utils.rand()); // TODO: Think about names for nodes/connections
-			String[] parsedUri = ClientZoneListener.parseUri(channel.establishedChannel.zonePeerUri);
-
-			node.connect("zone-peer", parsedUri[1], Integer.parseInt(parsedUri[2]));
-
-			ToOnchainCommand toOnchainCommand = new ToOnchainCommand(channel.establishedChannel.zoneChannelId, amount, addr);
-			node.execute("zone-peer", toOnchainCommand);
+		ToOnchainCommand toOnchainCommand = new ToOnchainCommand(channel.establishedChannel.zoneChannelId, amount, addr);
+		ZonePeerPool.getInstance().execute(channel.establishedChannel.zonePeerUri, toOnchainCommand);
 
-			if (toOnchainCommand.getError() != null) {
-				throw new StoredException("Zone peer returned error", toOnchainCommand.getError().toException());
-			}
-
-			return toOnchainCommand.getResponse().invoiceBolt11;
-		} finally {
-			if (node != null) {
-				node.close();
-			}
+		if (toOnchainCommand.getError() != null) {
+			throw new StoredException("Zone peer returned error", toOnchainCommand.getError().toException());
 		}
+
+		return toOnchainCommand.getResponse().invoiceBolt11;
 	}
 
 	private void rebalanceToOnchainCommand(RebalanceToOnchainCommand cmd) {
@@ -323,42 +370,153 @@ public class ToOnchainListener implements Listener, PaymentReceivedObserver {
 
 		public AtomicBoolean running = new AtomicBoolean(true);
 
+		// Payments to address that was already in collected batch
+		private final LinkedList<Payment> deferred = new LinkedList<Payment>();
+
+		PaymentsThread(int index) {
+			super("payout-worker-" + index);
+		}
+
 		@Override
 		public void run() {
 			while (running.get() == true) {
-				Payment p = payments.poll();
+				List<Payment> batch;
+				try {
+					batch = nextBatch();
+				} catch (InterruptedException e) {
+					new StoredException("Payments thread interrupted. Stopping thread", e);
+					running.set(false);
+					break;
+				}
+
+				try {
+					payouts.sending(batch);
+				} catch (InterruptedException e) {
+					running.set(false); // sending mark revoked, sent after restart
+					break;
+				}
+
+				if (batch.size() == 1) {
+					sendSingle(batch.get(0));
+				} else {
+					sendBatch(batch);
+				}
+			}
+		}
+
+		/**
+		 * Waits for first payment, then collects more until batch window passes or
+		 * batch is full. Batch has at most one payment per address
+		 */
+		private List<Payment> nextBatch() throws InterruptedException {
+			Map<String, Payment> byAddr = new LinkedHashMap<String, Payment>();
+			Iterator<Payment> it = deferred.iterator();
+			while (it.hasNext() && byAddr.size() < withdrawalBatchSize) {
+				Payment p = it.next();
+				if (!byAddr.containsKey(p.addr)) {
+					byAddr.put(p.addr, p);
+					it.remove();
+				}
+			}
+			if (byAddr.isEmpty()) {
+				Payment first = payouts.take();
+				byAddr.put(first.addr, first);
+			}
+
+			long deadline = System.currentTimeMillis() + withdrawalBatchMillis;
+			while (byAddr.size() < withdrawalBatchSize) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					break;
+				}
+				Payment p = payouts.poll(wait, TimeUnit.MILLISECONDS);
 				if (p == null) {
+					break;
+				}
+				if (byAddr.containsKey(p.addr)) {
+					deferred.add(p);
+				} else {
+					byAddr.put(p.addr, p);
+				}
+			}
+			return new ArrayList<Payment>(byAddr.values());
+		}
 
-					try {
-						Thread.sleep(1000);
-					} catch (InterruptedException e) {
-						e.printStackTrace(); // interrupted
-						new StoredException("Payments thread interrupted. Stopping thread", e);
-						running.set(false);
+		private void sendBatch(List<Payment> batch) {
+			Map<String, Btc> outputs = new LinkedHashMap<String, Btc>();
+			for (Payment p : batch) {
+				outputs.put(p.addr, p.amount);
+			}
+			SendManyOnChainCommand withdrawCmd = new SendManyOnChainCommand(outputs);
+			LOGGER.debug("Sending " + batch.size() + " on-chain payments in one transaction");
+			try {
+				controllerConnection.execute(withdrawCmd);
+			} catch (Exception e) {
+				new StoredException("Cannot send on-chain payments batch", e);
+				markError(batch);
+				return; // unknown if transaction was sent
+			}
+			if (withdrawCmd.getError() != null) {
+				if (withdrawCmd.getError().containsMessage(SendManyOnChainCommand.REJECTED)) {
+					new StoredException("Batch of on-chain payments rejected. Sending one by one",
+							withdrawCmd.getError().toException());
+					for (Payment p : batch) {
+						sendSingle(p);
 					}
+				} else {
+					new StoredException("Cannot send on-chain payments batch", withdrawCmd.getError().toException());
+					markError(batch); // unknown if transaction was sent
+				}
+				return;
+			}
+			completed(batch, withdrawCmd.getResponse().txId);
+		}
 
-					continue;
+		private void sendSingle(Payment p) {
+			SendOnChainCommand withdrawCmd = new SendOnChainCommand(p.addr, p.amount);
+			try {
+				LOGGER.debug("Sending on-chain payment to addr: " + p.addr);
+				controllerConnection.execute(withdrawCmd);
+				if (withdrawCmd.getError() != null) {
+					throw new Exception(withdrawCmd.getError().message);
 				}
+			} catch (Exception e) {
+				markError(Collections.singletonList(p));
+				new StoredException("Cannot send on-chain payment to address: " + p.addr, e);
+				return;
+			}
+			LOGGER.debug("PAID on-chain payment to addr: " + p.addr);
+			completed(Collections.singletonList(p), withdrawCmd.getResponse().txId);
+		}
 
-				SendOnChainCommand withdrawCmd = new SendOnChainCommand(p.addr, p.amount);
-				Invoice inv = null;
-				try {
-					LOGGER.debug("Sending on-chain payment to addr: " + p.addr);
-					controllerConnection.execute(withdrawCmd);
-					if (withdrawCmd.getError() != null) {
-						throw new Exception(withdrawCmd.getError().message);
-					}
-					LOGGER.debug("PAID on-chain payment to addr: " + p.addr);
-					inv = invoices.getByLabel(p.invoice_label);
-					inv.status = InvoiceStatus.COMPLETED;
-					inv.refund_at = FormattedTime.now(Precision.SECONDS);
-				} catch (Exception e) {
-					if (inv != null) {
-						inv.status = InvoiceStatus.ERROR;
-					}
-					new StoredException("Cannot send on-chain payment to address: " + p.addr, e);
+		private void completed(List<Payment> sent, String txId) {
+			for (Payment p : sent) {
+				if (!markInvoiceCompleted(invoices, p.invoice_label, txId)) {
+					new StoredException("No unsettled invoice for sent on-chain payment " + p.invoice_label, null);
 				}
+			}
+			done(sent);
+		}
+
+		private void markError(List<Payment> failed) {
+			for (Payment p : failed) {
+				markInvoiceError(invoices, p.invoice_label);
+			}
+			done(failed);
+		}
 
+		// Invoices first, so payout record is never dropped before invoice status
+		// is stored. If interrupted, payouts stay marked as sending and start()
+		// handles them
+		private void done(List<Payment> handled) {
+			try {
+				invoices.sync();
+			} catch (InterruptedException e) {
+				running.set(false);
+				return;
+			}
+			for (Payment p : handled) {
+				payouts.done(p);
 			}
 		}
 	}
@@ -377,15 +535,49 @@ public class ToOnchainListener implements Listener, PaymentReceivedObserver {
 		}
 		LOGGER.debug("Payment received for label " + label + " with amount " + paymentReceived.amount);
 
+		Invoice inv = invoices.getByLabel(label);
+		if (inv.status != InvoiceStatus.UNPAID && inv.status != InvoiceStatus.EXPIRED) {
+			LOGGER.info("Payment for label " + label + " already handled, status: " + inv.status);
+			return; // delivered again, payout queued already
+		}
+
 		Payment p = new Payment();
 		p.amount = paymentReceived.amount_received.sub(new Btc("1000"));
-		Invoice inv = invoices.getByLabel(label);
 		p.invoice_label = label;
 		p.addr = inv.addr;
-		inv.status = InvoiceStatus.PAID;
-		inv.paid_at = FormattedTime.now(Precision.SECONDS);
+		try {
+			payouts.offer(p);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new StoredException("Interrupted while queuing on-chain payment for " + label, e);
+		}
+		// Payout worker may have completed it already
+		if (!markInvoicePaid(invoices, label)) {
+			LOGGER.info("Payout for label " + label + " already handled, status: " + invoices.getByLabel(label).status);
+		}
+	}
+
+	/**
+	 * Invoice statuses are changed with compare-and-set, because payout worker can
+	 * take the payout before onPaymentReceived marks the invoice as paid
+	 */
+	static boolean markInvoicePaid(Invoices invoices, String label) {
+		return invoices.updateIf(label, NOT_PAID, (inv) -> {
+			inv.status = InvoiceStatus.PAID;
+			inv.paid_at = FormattedTime.now(Precision.SECONDS);
+		});
+	}
+
+	static boolean markInvoiceCompleted(Invoices invoices, String label, String txId) {
+		return invoices.updateIf(label, NOT_SETTLED, (inv) -> {
+			inv.status = InvoiceStatus.COMPLETED;
+			inv.refund_at = FormattedTime.now(Precision.SECONDS);
+			inv.refund_txid = txId;
+		});
+	}
 
-		payments.add(p);
+	static boolean markInvoiceError(Invoices invoices, String label) {
+		return invoices.updateIf(label, NOT_COMPLETED, (inv) -> inv.status = InvoiceStatus.ERROR);
 	}
 
 	@Override
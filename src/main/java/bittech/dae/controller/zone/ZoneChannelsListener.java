@@ -31,7 +31,7 @@ public class ZoneChannelsListener implements Listener {
 		if (command instanceof ListZoneChannelsCommand) {
 
 			ListZoneChannelsCommand cmd = (ListZoneChannelsCommand) command;
-			cmd.response = new ListZoneChannelsResponse(channels.copyEstablishedChannels());
+			cmd.response = new ListZoneChannelsResponse(channels.getEstablishedChannels());
 
 		} else {
 			throw new StoredException("Usupported command type: " + command, null);
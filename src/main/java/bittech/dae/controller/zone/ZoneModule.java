@@ -176,7 +176,7 @@ public class ZoneModule implements ManagerDataProvider, AutoCloseable {
 		details.details.put("proposals channels", proposalsChannels);
 		details.summary.put("proposals channels", Integer.toString(proposalsChannels.size()));
 
-		List<EstablishedChannel> establishedChannels = zoneChannels.copyEstablishedChannels();
+		List<EstablishedChannel> establishedChannels = zoneChannels.getEstablishedChannels();
 		details.details.put("established channels", establishedChannels);
 		details.summary.put("established channels", Integer.toString(establishedChannels.size()));
 
@@ -188,6 +188,23 @@ public class ZoneModule implements ManagerDataProvider, AutoCloseable {
 		if (node != null) {
 			node.close();
 		}
+		if (paymentReceivedListener != null) {
+			paymentReceivedListener.close();
+		}
+		if (refillListener != null) {
+			refillListener.close();
+			refillListener.getInvoices().close();
+		}
+		if (zoneChannels != null) {
+			zoneChannels.close();
+		}
+		if (allChannels != null) {
+			allChannels.close();
+		}
+		if (offerListener != null) {
+			offerListener.close();
+		}
+		ZonePeerPool.getInstance().close();
 	}
 
 	public int getListeningPort() {
@@ -0,0 +1,299 @@
+package bittech.dae.controller.zone;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import bittech.dae.controller.zone.channels.ClientZoneListener;
+import bittech.lib.commans.general.PingCommand;
+import bittech.lib.protocol.Command;
+import bittech.lib.protocol.Node;
+import bittech.lib.utils.Config;
+import bittech.lib.utils.Require;
+import bittech.lib.utils.Utils;
+import bittech.lib.utils.exceptions.StoredException;
+
+/**
+ * Connections to other zone peers keyed by zone uri ("zone:ip:port"). The
+ * connection is kept open between commands and pinged when idle. Connection not
+ * used for idle timeout is closed. Failed connection is dropped and the next
+ * connect is delayed with exponential backoff. Number of commands executed at
+ * the same time on one peer is limited. Dropped connection is closed when the
+ * last command running on it finishes, so one failed command does not abort
+ * the others.
+ */
+public class ZonePeerPool {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ZonePeerPool.class);
+
+	private static final String CONNECTION_NAME = "zone-peer";
+
+	private final static long pingMillis = 1000L
+			* Config.getInstance().getEntryOrDefault("zonePeerPingSeconds", Long.class, 30L);
+
+	private final static long idleMillis = 1000L
+			* Config.getInstance().getEntryOrDefault("zonePeerIdleSeconds", Long.class, 300L);
+
+	private final static long maxBackoffMillis = 1000L
+			* Config.getInstance().getEntryOrDefault("zonePeerMaxBackoffSeconds", Long.class, 60L);
+
+	private final static int maxConcurrent = Config.getInstance().getEntryOrDefault("zonePeerMaxConcurrent",
+			Integer.class, 4);
+
+	private static final long MIN_BACKOFF_MILLIS = 500;
+
+	// Guarded by lock of its peer
+	private static final class PeerConnection {
+		final Node node;
+		int users = 0;
+		boolean dropped = false;
+
+		PeerConnection(Node node) {
+			this.node = node;
+		}
+	}
+
+	private static final class Peer {
+		final String uri;
+		final Semaphore permits = new Semaphore(maxConcurrent, true);
+		PeerConnection connection = null; // null when not connected
+		volatile long lastUsed = System.currentTimeMillis();
+		int failures = 0;
+		long nextConnectAt = 0;
+
+		Peer(String uri) {
+			this.uri = uri;
+		}
+	}
+
+	private static final class Holder {
+		static final ZonePeerPool INSTANCE = new ZonePeerPool();
+	}
+
+	public static ZonePeerPool getInstance() {
+		return Holder.INSTANCE;
+	}
+
+	private final Map<String, Peer> peers = new ConcurrentHashMap<String, Peer>();
+
+	private final ScheduledExecutorService keepAlive = Executors.newSingleThreadScheduledExecutor((r) -> {
+		Thread t = new Thread(r, "zone-peer-keepalive");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private ZonePeerPool() {
+		keepAlive.scheduleWithFixedDelay(() -> maintain(), pingMillis, pingMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Executes command on zone peer. Exception is thrown if peer cannot be
+	 * connected, errors returned by peer are in command.getError(). Error can also
+	 * come from broken connection, so the connection is checked with ping then
+	 */
+	public <T extends Command<?, ?>> T execute(String uri, T command) {
+		Require.notEmpty(uri, "uri");
+		Require.notNull(command, "command");
+		Peer peer = acquire(uri);
+		try {
+			peer.lastUsed = System.currentTimeMillis();
+			PeerConnection connection = connected(peer);
+			try {
+				try {
+					connection.node.execute(CONNECTION_NAME, command);
+				} catch (Exception ex) {
+					drop(peer, connection);
+					throw new StoredException("Cannot execute command on zone peer " + uri, ex);
+				}
+				if (command.getError() != null && !answersPing(connection.node)) {
+					LOGGER.warn("Zone peer " + uri + " returned error and did not answer ping. Dropping connection");
+					drop(peer, connection);
+				}
+			} finally {
+				release(peer, connection);
+			}
+			peer.lastUsed = System.currentTimeMillis();
+			return command;
+		} finally {
+			peer.permits.release();
+		}
+	}
+
+	private Peer acquire(String uri) {
+		while (true) {
+			Peer peer = peers.computeIfAbsent(uri, (u) -> new Peer(u));
+			try {
+				peer.permits.acquire();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new StoredException("Interrupted while waiting for zone peer " + uri, ex);
+			}
+			if (peers.get(uri) == peer) {
+				return peer;
+			}
+			peer.permits.release(); // evicted in the meantime
+		}
+	}
+
+	/**
+	 * @return connection with caller counted as its user. Call release() after
+	 *         use
+	 */
+	private PeerConnection connected(Peer peer) {
+		synchronized (peer) {
+			if (peer.connection != null) {
+				peer.connection.users++;
+				return peer.connection;
+			}
+			long now = System.currentTimeMillis();
+			if (now < peer.nextConnectAt) {
+				throw new StoredException("Zone peer " + peer.uri + " unavailable. Next connect in "
+						+ (peer.nextConnectAt - now) + " ms", null);
+			}
+			Node node = null;
+			try {
+				String[] parsedUri = ClientZoneListener.parseUri(peer.uri);
+				node = new Node("zone-customer-" + Utils.rand());
+				node.connect(CONNECTION_NAME, parsedUri[1], Integer.parseInt(parsedUri[2]));
+			} catch (Exception ex) {
+				if (node != null) {
+					node.close();
+				}
+				long backoff = Math.min(maxBackoffMillis, MIN_BACKOFF_MILLIS << Math.min(peer.failures, 16));
+				peer.failures++;
+				peer.nextConnectAt = now + backoff;
+				throw new StoredException("Cannot connect to zone peer " + peer.uri, ex);
+			}
+			peer.failures = 0;
+			peer.nextConnectAt = 0;
+			peer.connection = new PeerConnection(node);
+			peer.connection.users++;
+			LOGGER.info("Connected to zone peer " + peer.uri);
+			return peer.connection;
+		}
+	}
+
+	private void release(Peer peer, PeerConnection connection) {
+		boolean close;
+		synchronized (peer) {
+			connection.users--;
+			close = connection.dropped && connection.users == 0;
+		}
+		if (close) {
+			close(peer, connection);
+		}
+	}
+
+	/**
+	 * New commands get new connection. The dropped one is closed when nobody uses
+	 * it
+	 */
+	private void drop(Peer peer, PeerConnection connection) {
+		boolean close;
+		synchronized (peer) {
+			if (peer.connection == connection) {
+				peer.connection = null;
+			}
+			close = !connection.dropped && connection.users == 0;
+			connection.dropped = true;
+		}
+		if (close) {
+			close(peer, connection);
+		}
+	}
+
+	private static void close(Peer peer, PeerConnection connection) {
+		try {
+			connection.node.close();
+		} catch (Exception ex) {
+			new StoredException("Cannot close connection to zone peer " + peer.uri, ex);
+		}
+	}
+
+	/**
+	 * Closes idle connections and pings the others
+	 */
+	private void maintain() {
+		long now = System.currentTimeMillis();
+		for (Peer peer : peers.values()) {
+			PeerConnection connection;
+			synchronized (peer) {
+				connection = peer.connection;
+			}
+			if (now - peer.lastUsed > idleMillis) {
+				// All permits taken, so nobody uses the connection
+				if (peer.permits.tryAcquire(maxConcurrent)) {
+					try {
+						if (connection != null) {
+							LOGGER.info("Closing idle connection to zone peer " + peer.uri);
+							drop(peer, connection);
+						}
+						peers.remove(peer.uri, peer);
+					} finally {
+						peer.permits.release(maxConcurrent);
+					}
+				}
+			} else if (connection != null && now - peer.lastUsed > pingMillis) {
+				// Busy peer is in use, so it needs no ping. Ping takes a permit, so it
+				// never exceeds maxConcurrent
+				if (peer.permits.tryAcquire()) {
+					try {
+						ping(peer);
+					} finally {
+						peer.permits.release();
+					}
+				}
+			}
+		}
+	}
+
+	private void ping(Peer peer) {
+		PeerConnection connection;
+		synchronized (peer) {
+			connection = peer.connection;
+			if (connection == null) {
+				return;
+			}
+			connection.users++;
+		}
+		try {
+			if (!answersPing(connection.node)) {
+				LOGGER.warn("Zone peer " + peer.uri + " did not answer ping. Dropping connection");
+				drop(peer, connection);
+			}
+		} finally {
+			release(peer, connection);
+		}
+	}
+
+	private static boolean answersPing(Node node) {
+		PingCommand ping = new PingCommand("PING");
+		try {
+			node.execute(CONNECTION_NAME, ping);
+			return ping.getError() == null;
+		} catch (Exception ex) {
+			return false;
+		}
+	}
+
+	public void close() {
+		keepAlive.shutdownNow();
+		for (Peer peer : peers.values()) {
+			PeerConnection connection;
+			synchronized (peer) {
+				connection = peer.connection;
+			}
+			if (connection != null) {
+				drop(peer, connection);
+			}
+		}
+		peers.clear();
+	}
+
+}
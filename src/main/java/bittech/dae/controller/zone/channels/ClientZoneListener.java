@@ -3,6 +3,7 @@ package bittech.dae.controller.zone.channels;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import bittech.dae.controller.zone.ZonePeerPool;
 import bittech.lib.commands.ln.GetInfoCommand;
 import bittech.lib.commands.ln.invoices.PayInvoiceCommand;
 import bittech.lib.commands.lnzone.EstablishedChannel.Status;
@@ -57,16 +58,10 @@ public class ClientZoneListener implements Listener {
 	}
 
 	public static Offer getZoneOffer(String uri) {
-		Node node = null;
 		try {
-
-			node = new Node("zone-customer");
-			String[] parsedUri = parseUri(uri);
-
-			node.connect("zone-peer", parsedUri[1], Integer.parseInt(parsedUri[2]));
-
+			parseUri(uri); // validate
 			GetOfferCommand getOfferCmd = new GetOfferCommand();
-			node.execute("zone-peer", getOfferCmd);
+			ZonePeerPool.getInstance().execute(uri, getOfferCmd);
 
 			if (getOfferCmd.getError() != null) {
 				throw new StoredException("Peer returned error", getOfferCmd.getError().toException());
@@ -75,10 +70,6 @@ public class ClientZoneListener implements Listener {
 			return getOfferCmd.getResponse().offer;
 		} catch (Exception ex) {
 			throw new StoredException("Cannot get zone offer", ex);
-		} finally {
-			if (node != null) {
-				node.close();
-			}
 		}
 	}
 
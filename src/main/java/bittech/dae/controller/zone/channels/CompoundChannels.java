@@ -1,9 +1,13 @@
 package bittech.dae.controller.zone.channels;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 import bittech.lib.commands.ln.channels.ChannelChangedRequest;
 import bittech.lib.commands.lnzone.CompoundChannel;
@@ -16,12 +20,38 @@ import bittech.lib.utils.Utils;
 import bittech.lib.utils.exceptions.StoredException;
 import bittech.lib.utils.logs.Log;
 
+/**
+ * Channels stored here are never modified after they are put to the map. Each
+ * change puts a modified copy and publishes new read only list of channels, so
+ * readers get it without locking and copying. Returned and notified channels
+ * are shared and must not be modified.
+ */
 public class CompoundChannels implements StandardChannelChangeObserver, ZoneChannelChangeObserver {
 
-	private Map<String, CompoundChannel> channels = new HashMap<String, CompoundChannel>(); // fundingTxID, channel
+	private static final int STRIPES = 64;
+
+	// fundingTxID or zoneChannelId if not funded yet, channel
+	private final Map<String, CompoundChannel> channels = new ConcurrentHashMap<String, CompoundChannel>();
+	private final Map<String, CompoundChannel> channelsByZoneChannelId = new ConcurrentHashMap<String, CompoundChannel>();
+	private final Object[] stripes = new Object[STRIPES];
+
+	private final Object publishLock = new Object();
+	private volatile List<CompoundChannel> published = Collections.emptyList();
+
+	private final ExecutorService notifier = Executors.newSingleThreadExecutor((r) -> {
+		Thread t = new Thread(r, "compound-channels-notifier");
+		t.setDaemon(true);
+		return t;
+	});
 
 	private Notificator<CompoundChannelChangeObserver> changeNotifier = new Notificator<CompoundChannelChangeObserver>();
 
+	public CompoundChannels() {
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Object();
+		}
+	}
+
 	public void registerCompoundChannelChangeObserver(CompoundChannelChangeObserver observer) {
 		changeNotifier.register(observer);
 	}
@@ -117,16 +147,20 @@ public class CompoundChannels implements StandardChannelChangeObserver, ZoneChan
 
 	private void newChannel(CompoundChannel channel) {
 		channels.put(channel.fundingTxId, channel);
+		publish();
 	}
 
-	public synchronized List<CompoundChannel> getChannels() { // TODO: Multithreading issue?
-		ArrayList<CompoundChannel> chList = new ArrayList<CompoundChannel>(channels.values().size());
-
-		for (CompoundChannel ch : channels.values()) {
-			chList.add(Utils.deepCopy(ch, CompoundChannel.class));
+	private void publish() {
+		synchronized (publishLock) {
+			published = Collections.unmodifiableList(new ArrayList<CompoundChannel>(channels.values()));
 		}
+	}
 
-		return chList;
+	/**
+	 * @return read only list of shared channels. Copy channel before modifying it
+	 */
+	public List<CompoundChannel> getChannels() {
+		return published;
 	}
 
 	// private synchronized void updateZonePart(EstablishedChannel
@@ -134,51 +168,85 @@ public class CompoundChannels implements StandardChannelChangeObserver, ZoneChan
 	//
 	// }
 
-	private synchronized ChangeType putChannel(CompoundChannel channel) {
-		int len = channels.size();
+	private ChangeType putChannel(CompoundChannel channel) {
+		CompoundChannel previous;
 		if (channel.fundingTxId != null) {
-			channels.put(channel.fundingTxId, channel);
-			if (channel.zoneChannelData != null) {
-				channels.remove(channel.zoneChannelData.zoneChannelId);
+			previous = channels.put(channel.fundingTxId, channel);
+			if (channel.zoneChannelData != null && channel.zoneChannelData.zoneChannelId != null) {
+				CompoundChannel zonePart = channels.remove(channel.zoneChannelData.zoneChannelId);
+				previous = previous != null ? previous : zonePart;
 			}
 		} else if (channel.zoneChannelData != null && channel.zoneChannelData.zoneChannelId != null) {
-			channels.put(channel.zoneChannelData.zoneChannelId, channel);
-			channels.remove(channel.fundingTxId);
+			previous = channels.put(channel.zoneChannelData.zoneChannelId, channel);
 		} else {
 			throw new StoredException("Channel do not contains data sufficient to put it to channels map", null);
 		}
-		// if(len == channels.size()) {
-		// return ChangeType.MODIFIED;
-		if (len < channels.size()) {
-			return ChangeType.ADDED;
-		} else {
-			return ChangeType.MODIFIED;
-			// throw new StoredException("Channel was removed from list, what should not be
-			// possible here", null);
+		if (channel.zoneChannelData != null && channel.zoneChannelData.zoneChannelId != null) {
+			channelsByZoneChannelId.put(channel.zoneChannelData.zoneChannelId, channel);
 		}
+		publish();
+		return previous == null ? ChangeType.ADDED : ChangeType.MODIFIED;
 	}
 
-	public synchronized CompoundChannel findZoneChannelById(String zoneChannelId) {
+	public CompoundChannel findZoneChannelById(String zoneChannelId) {
 		Require.notNull(zoneChannelId, "zoneChannelId");
+		return channelsByZoneChannelId.get(zoneChannelId);
+	}
 
-		for (CompoundChannel channel : channels.values()) {
-			if ((channel.zoneChannelData != null) && (zoneChannelId.equals(channel.zoneChannelData.zoneChannelId))) {
-				return channel;
+	/**
+	 * Runs change under locks of both its keys, stripes are always taken in the
+	 * same order. Changes of one channel are serialized, changes of other
+	 * channels run in parallel
+	 */
+	private void locked(String key1, String key2, Runnable change) {
+		int s1 = stripe(key1);
+		int s2 = key2 != null ? stripe(key2) : s1;
+		synchronized (stripes[Math.min(s1, s2)]) {
+			synchronized (stripes[Math.max(s1, s2)]) {
+				change.run();
 			}
 		}
-		return null;
+	}
+
+	private static int stripe(String key) {
+		return (key.hashCode() & 0x7fffffff) % STRIPES;
+	}
+
+	/**
+	 * Notifications are queued in order of changes and sent by notifier thread,
+	 * so slow observers do not hold channel updates
+	 */
+	private void notifyChanged(ChangeType changeType, CompoundChannel channel) {
+		try {
+			notifier.execute(() -> {
+				try {
+					changeNotifier.notifyThem((e) -> e.onCompoundChannelChanged(changeType, channel));
+				} catch (Exception ex) {
+					new StoredException("Compound channel change notification failed", ex);
+				}
+			});
+		} catch (RejectedExecutionException ex) {
+			new StoredException("Compound channels closed. Change not notified", ex);
+		}
 	}
 
 	@Override
-	public synchronized void onZoneChannelChanged(EstablishedChannel zoneEstablishedChannel) {
+	public void onZoneChannelChanged(EstablishedChannel zoneEstablishedChannel) {
 		(new Log()).param("changed channel", zoneEstablishedChannel).event("onZoneChannelChanged");
 
 		if (zoneEstablishedChannel.zoneChannelId == null) {
 			throw new StoredException("Zone channel has null id", null);
 		}
 
+		locked(zoneEstablishedChannel.zoneChannelId, zoneEstablishedChannel.fundingTxId,
+				() -> applyZoneChange(zoneEstablishedChannel));
+	}
+
+	private void applyZoneChange(EstablishedChannel zoneEstablishedChannel) {
 		CompoundChannel channelById = channels.get(zoneEstablishedChannel.zoneChannelId);
-		CompoundChannel channelByFundingId = channels.get(zoneEstablishedChannel.fundingTxId);
+		CompoundChannel channelByFundingId = zoneEstablishedChannel.fundingTxId != null
+				? channels.get(zoneEstablishedChannel.fundingTxId)
+				: null;
 
 		CompoundChannel channel;
 
@@ -187,11 +255,11 @@ public class CompoundChannels implements StandardChannelChangeObserver, ZoneChan
 			channel.status = "not_funded_yet";
 			channel.type = CompoundChannel.Type.ZONE;
 		} else if (channelById != null && channelByFundingId == null) {
-			channel = channelById; // It exists only as zone part
+			channel = copy(channelById); // It exists only as zone part
 		} else if (channelById == null && channelByFundingId != null) {
-			channel = channelByFundingId; // It exists only as normal channel (was established)
+			channel = copy(channelByFundingId); // It exists only as normal channel (was established)
 		} else if (channelById != null && channelByFundingId != null) {
-			channel = channelByFundingId; // It both channels are separately stored
+			channel = copy(channelByFundingId); // It both channels are separately stored
 		} else {
 			throw new StoredException("Internal error. Additional combination exists!?!?", null);
 		}
@@ -208,10 +276,13 @@ public class CompoundChannels implements StandardChannelChangeObserver, ZoneChan
 			}
 		}
 
-		ChangeType changeType = putChannel(channel);
+		notifyChanged(putChannel(channel), channel);
+	}
 
-		final CompoundChannel ch = Utils.deepCopy(channel, CompoundChannel.class);
-		changeNotifier.notifyThem((e) -> e.onCompoundChannelChanged(changeType, ch));
+	private static CompoundChannel copy(CompoundChannel channel) {
+		CompoundChannel copy = Utils.deepCopy(channel, CompoundChannel.class);
+		copy.zoneChannelData = channel.zoneChannelData; // it is immutable already
+		return copy;
 	}
 
 	private static CompoundChannel newChannel(ChannelChangedRequest change) {
@@ -222,22 +293,28 @@ public class CompoundChannels implements StandardChannelChangeObserver, ZoneChan
 	}
 
 	@Override
-	public synchronized void onStandardChannelChanged(ChannelChangedRequest change) {
+	public void onStandardChannelChanged(ChannelChangedRequest change) {
 		(new Log()).param("change", change).event("onStandardChannelChanged");
 
 		Require.notNull(change, "change");
 		Require.notEmpty(change.fundingTxId, "fundingTxId");
-		CompoundChannel existingChannel = channels.get(change.fundingTxId);
-
-		if (existingChannel == null) {
-			CompoundChannel newChannel = newChannel(change);
-			newChannel(newChannel);
-			changeNotifier.notifyThem((e) -> e.onCompoundChannelChanged(ChangeType.ADDED, newChannel));
-		} else {
-			CompoundChannels.applyChange(existingChannel, change);
-			changeNotifier.notifyThem((e) -> e.onCompoundChannelChanged(ChangeType.MODIFIED, existingChannel));
-		}
+		locked(change.fundingTxId, null, () -> {
+			CompoundChannel existingChannel = channels.get(change.fundingTxId);
+
+			if (existingChannel == null) {
+				CompoundChannel newChannel = newChannel(change);
+				newChannel(newChannel);
+				notifyChanged(ChangeType.ADDED, newChannel);
+			} else {
+				CompoundChannel channel = copy(existingChannel);
+				CompoundChannels.applyChange(channel, change);
+				notifyChanged(putChannel(channel), channel);
+			}
+		});
+	}
 
+	public void close() {
+		notifier.shutdown();
 	}
 
 }
@@ -3,7 +3,7 @@ package bittech.dae.controller.zone.channels;
 import java.util.HashSet;
 import java.util.Set;
 
-import bittech.lib.commands.ln.GetInfoCommand;
+import bittech.dae.controller.ln.lnd.ChainTip;
 import bittech.lib.commands.ln.peers.ListPeersCommand;
 import bittech.lib.commands.lnzone.CompoundChannel;
 import bittech.lib.commands.lnzone.internal.ChannelChangedCommand;
@@ -18,12 +18,14 @@ import bittech.lib.protocol.Node;
 import bittech.lib.protocol.common.NoDataResponse;
 import bittech.lib.utils.Btc;
 import bittech.lib.utils.Require;
+import bittech.lib.utils.Utils;
 import bittech.lib.utils.exceptions.StoredException;
 import bittech.lib.utils.logs.Log;
 
 public class CompoundChannelsListener implements Listener, CompoundChannelChangeObserver {
 
 	private final Connection controllerConnection;
+	private final ChainTip chainTip;
 	private final ZoneChannels zoneChannels;
 	private final CompoundChannels compoundChannels;
 	private final Node myNode;
@@ -37,6 +39,7 @@ public class CompoundChannelsListener implements Listener, CompoundChannelChange
 		this.compoundChannels = Require.notNull(allChannels, "allChannels");
 		this.myNode = Require.notNull(myNode, "myNode");
 		this.controllerConnection = Require.notNull(controllerConnection, "controllerConnection");
+		this.chainTip = new ChainTip(controllerConnection::execute);
 		this.registeredToNotification = new HashSet<String>();
 		this.mergeToAllChannels();
 
@@ -94,18 +97,14 @@ public class CompoundChannelsListener implements Listener, CompoundChannelChange
 	}
 
 	private int getCurrentBlockumber() {
-		GetInfoCommand cmd = new GetInfoCommand();
-		controllerConnection.execute(cmd);
-		if (cmd.getError() != null) {
-			throw new StoredException("Cannot get node info", cmd.getError().toException());
-		}
-		return cmd.getResponse().block_height;
+		return chainTip.getHeight();
 	}
 
 	private synchronized void calcFees(int blockNumber) {
-		for (CompoundChannel channel : compoundChannels.getChannels()) {
-			if ("normal".equals(channel.status)) {
-				if (channel.zoneChannelData != null) {
+		for (CompoundChannel sharedChannel : compoundChannels.getChannels()) {
+			if ("normal".equals(sharedChannel.status)) {
+				if (sharedChannel.zoneChannelData != null) {
+					CompoundChannel channel = Utils.deepCopy(sharedChannel, CompoundChannel.class); // shared one is read only
 
 					// TODO: May not be needed in the future
 					if (channel.zoneChannelData.lastBlockNumber == 0) {
@@ -1,16 +1,19 @@
 package bittech.dae.controller.zone.channels;
 
-import java.io.File;
-import java.io.FileReader;
-import java.io.PrintWriter;
 import java.math.BigDecimal;
-import java.util.Iterator;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import bittech.dae.controller.zone.RecordJournal;
 import bittech.lib.commands.ln.invoices.AddInvoiceRequest;
 import bittech.lib.commands.lnzone.EstablishedChannel;
 import bittech.lib.commands.lnzone.commans.Offer;
@@ -20,7 +23,6 @@ import bittech.lib.utils.Notificator;
 import bittech.lib.utils.Require;
 import bittech.lib.utils.Utils;
 import bittech.lib.utils.exceptions.StoredException;
-import bittech.lib.utils.json.JsonBuilder;
 import bittech.lib.utils.logs.Log;
 
 public class ZoneChannels {
@@ -33,52 +35,101 @@ public class ZoneChannels {
 	private final static boolean saveChannels = Config.getInstance().getEntryOrDefault("saveChannels", Boolean.class,
 			true);
 
-	public static class Data {
+	private final static long compactRecords = Config.getInstance().getEntryOrDefault("channelsCompactRecords",
+			Long.class, 1000L);
+
+	private static final byte OP_PUT = 'P';
+	private static final byte OP_REMOVE = 'R';
+	private static final byte OP_OFFER = 'O';
+
+	public static class Data extends RecordJournal.Snapshot {
 		private Offer offer;
 		private List<ZoneChannel> channelsProposals = new LinkedList<ZoneChannel>();
 	}
 
-	private Data data = new Data();
+	private Data data = new Data(); // offer, channels are in indexes below
+
+	// Channels in order of last update, keyed by zoneChannelId
+	private final Map<String, ZoneChannel> channelsById = new LinkedHashMap<String, ZoneChannel>();
+	private final Map<String, ZoneChannel> channelsByFundingTxId = new HashMap<String, ZoneChannel>();
+	private final Map<String, ZoneChannel> channelsByInvoiceLabel = new HashMap<String, ZoneChannel>();
+
+	// Copies of channels data that are never modified, published for lock free
+	// reads. Republished on every change
+	private final Map<String, EstablishedChannel> frozenChannels = new LinkedHashMap<String, EstablishedChannel>();
+	private volatile List<EstablishedChannel> publishedChannels = Collections.emptyList();
+	private volatile Offer publishedOffer = null;
 
 	private Notificator<ZoneChannelChangeObserver> changeNotificator = new Notificator<ZoneChannelChangeObserver>();
 
+	// Snapshot in channelsFile plus journal of changed records
+	private final RecordJournal journal;
+
 	public ZoneChannels() {
 		if (saveChannels) {
+			journal = new RecordJournal(fileName, compactRecords);
 			load();
-			addChangeObserver(new ZoneChannelChangeObserver() {
-
-				@Override
-				public void onZoneChannelChanged(EstablishedChannel zoneEstablishedChannel) {
-					save();
-				}
-				
-			});
+			journal.start(() -> snapshot());
+		} else {
+			journal = null;
 		}
 	}
 
-	private synchronized void save() throws StoredException {
+	private synchronized byte[] snapshot() {
+		data.channelsProposals = new ArrayList<ZoneChannel>(channelsById.values());
 		try {
-			try (PrintWriter out = new PrintWriter(fileName)) {
-				JsonBuilder.build().toJson(data, out);
-			}
-		} catch (Exception ex) {
-			throw new StoredException("Cannot save channels", ex);
+			return journal.snapshot(data);
+		} finally {
+			data.channelsProposals = null;
 		}
 	}
 
+	/**
+	 * Failure is fatal - starting with part of channels would lose the others
+	 * with the next compaction
+	 */
 	private synchronized void load() {
 		try {
-			File file = new File(fileName);
 			LOGGER.debug("Loading channels");
-			if (file.exists()) {
-				LOGGER.debug("File exists");
-				try (FileReader reader = new FileReader(file)) {
-					data = JsonBuilder.build().fromJson(reader, Data.class);
+			data = journal.readSnapshot(Data.class, new Data());
+			if (data.channelsProposals != null) {
+				for (ZoneChannel channel : data.channelsProposals) {
+					index(channel);
 				}
-				LOGGER.info("Loaded channels: " + data.channelsProposals.size());
+				data.channelsProposals = null;
 			}
+			journal.replay(data, (seq, op, payload) -> {
+				if (op == OP_PUT) {
+					ZoneChannel channel = RecordJournal.fromJson(payload, ZoneChannel.class);
+					removeByZoneChannelId(channel.establishedChannel.zoneChannelId);
+					index(channel);
+				} else if (op == OP_REMOVE) {
+					removeByZoneChannelId(new String(payload, StandardCharsets.UTF_8));
+				} else if (op == OP_OFFER) {
+					data.offer = RecordJournal.fromJson(payload, Offer.class);
+				} else {
+					throw new StoredException("Unknown channels journal record: " + op, null);
+				}
+			});
+			publish();
+			LOGGER.info("Loaded channels: " + channelsById.size());
 		} catch (Exception ex) {
-			new StoredException("Cannot load channels", ex);
+			throw new StoredException("Cannot load channels", ex);
+		}
+	}
+
+	private void journal(byte op, byte[] payload) {
+		if (journal != null) {
+			journal.append(op, payload);
+		}
+	}
+
+	/**
+	 * Writes pending changes and stops journal writer
+	 */
+	public void close() {
+		if (journal != null) {
+			journal.close();
 		}
 	}
 
@@ -102,15 +153,27 @@ public class ZoneChannels {
 		return ch;
 	}
 
+	/**
+	 * Moves channel paid with given invoice from WAITING_FOR_PAYMENT to FUNDING
+	 *
+	 * @return null if no channel is waiting for payment of this invoice, e.g. the
+	 *         same payment delivered again
+	 */
 	public synchronized ZoneChannel channelPaid(String invoiceLabel) {
 		Log log = new Log().param("invoiceLabel", invoiceLabel);
 		try {
 			log.event("channelPaid called");
-			for (ZoneChannel ch : data.channelsProposals) {
-				if ((ch.helperData != null) && (ch.helperData.invoiceRequest != null) && invoiceLabel.equals(ch.helperData.invoiceRequest.label)) {
-					ch.establishedChannel.status = bittech.lib.commands.lnzone.EstablishedChannel.Status.FUNDING;
-					return ch;
+			ZoneChannel ch = channelsByInvoiceLabel.get(invoiceLabel);
+			if (ch != null && invoiceLabel.equals(invoiceLabel(ch))) {
+				if (ch.establishedChannel.status != bittech.lib.commands.lnzone.EstablishedChannel.Status.WAITING_FOR_PAYMENT) {
+					log.param("status", ch.establishedChannel.status).event("Channel not waiting for payment");
+					return null;
 				}
+				ch.establishedChannel.status = bittech.lib.commands.lnzone.EstablishedChannel.Status.FUNDING;
+				journal(OP_PUT, RecordJournal.toJson(ch));
+				frozenChannels.put(ch.establishedChannel.zoneChannelId, freeze(ch));
+				publish();
+				return ch;
 			}
 		} catch (Exception ex) {
 			log.param("exception", ex).event("Exception thrown");
@@ -120,23 +183,30 @@ public class ZoneChannels {
 	}
 
 	public synchronized List<ZoneChannel> copyProposalsChannels() {
-		return new LinkedList<ZoneChannel>(data.channelsProposals);
+		return new LinkedList<ZoneChannel>(channelsById.values());
 	}
 
-	public synchronized List<EstablishedChannel> copyEstablishedChannels() {
-		List<EstablishedChannel> list = new LinkedList<EstablishedChannel>();
-		for (ZoneChannel channel : data.channelsProposals) {
-			list.add(Utils.deepCopy(channel.establishedChannel, EstablishedChannel.class));
-		}
-		return list;
+	/**
+	 * @return read only list of shared channels data. Copy it before modifying
+	 */
+	public List<EstablishedChannel> getEstablishedChannels() {
+		return publishedChannels;
 	}
 
-	public synchronized Offer getOffer() {
-		if (data.offer == null) {
-			return null;
-		} else {
-			return Utils.deepCopy(data.offer, data.offer.getClass());
-		}
+	/**
+	 * @return shared offer. Copy it before modifying
+	 */
+	public Offer getOffer() {
+		return publishedOffer;
+	}
+
+	private void publish() {
+		publishedChannels = Collections.unmodifiableList(new ArrayList<EstablishedChannel>(frozenChannels.values()));
+		publishedOffer = data.offer;
+	}
+
+	private static EstablishedChannel freeze(ZoneChannel channel) {
+		return Utils.deepCopy(channel.establishedChannel, EstablishedChannel.class);
 	}
 
 	public synchronized void setOffer(final Offer offer) {
@@ -176,7 +246,10 @@ public class ZoneChannels {
 			throw new StoredException("Fixed cost cannot be negative value", null);
 		}
 
-		data.offer = Utils.deepCopy(offer, offer.getClass());
+		byte[] json = RecordJournal.toJson(offer);
+		data.offer = RecordJournal.fromJson(json, offer.getClass());
+		journal(OP_OFFER, json);
+		publish();
 
 		} catch(Exception ex) {
 			throw new StoredException("Cannot set new offer", ex);
@@ -185,43 +258,72 @@ public class ZoneChannels {
 
 	public synchronized ZoneChannel findByTxId(String txId) {
 		Require.notNull(txId, "txId");
-		for (ZoneChannel channel : data.channelsProposals) {
-			if (txId.equals(channel.establishedChannel.fundingTxId)) {
-				return channel;
-			}
+		ZoneChannel channel = channelsByFundingTxId.get(txId);
+		if (channel != null && !txId.equals(channel.establishedChannel.fundingTxId)) {
+			// Returned channel was modified by caller and not updated yet
+			channelsByFundingTxId.remove(txId);
+			return null;
 		}
-		return null;
+		return channel;
 	}
 
 	public synchronized ZoneChannel findZoneChannelById(String zoneChannelId) {
 		Require.notNull(zoneChannelId, "zoneChannelId");
-		for (ZoneChannel channel : data.channelsProposals) {
-			if (zoneChannelId.equals(channel.establishedChannel.zoneChannelId)) {
-				return channel;
-			}
-		}
-		return null;
+		return channelsById.get(zoneChannelId);
 	}
 
 	private void removeByZoneChannelId(String zoneChannelId) {
 		Require.notNull(zoneChannelId, "zoneChannelId");
-		Iterator<ZoneChannel> i = data.channelsProposals.iterator();
-		while (i.hasNext()) {
-			if (zoneChannelId.equals(i.next().establishedChannel.zoneChannelId)) {
-				i.remove();
-				break;
-			}
+		ZoneChannel channel = channelsById.remove(zoneChannelId);
+		frozenChannels.remove(zoneChannelId);
+		if (channel == null) {
+			return;
+		}
+		String txId = channel.establishedChannel.fundingTxId;
+		if (txId != null && channelsByFundingTxId.get(txId) == channel) {
+			channelsByFundingTxId.remove(txId);
+		}
+		String label = invoiceLabel(channel);
+		if (label != null && channelsByInvoiceLabel.get(label) == channel) {
+			channelsByInvoiceLabel.remove(label);
+		}
+	}
+
+	private void index(ZoneChannel channel) {
+		channelsById.put(channel.establishedChannel.zoneChannelId, channel);
+		frozenChannels.put(channel.establishedChannel.zoneChannelId, freeze(channel));
+		if (channel.establishedChannel.fundingTxId != null) {
+			channelsByFundingTxId.put(channel.establishedChannel.fundingTxId, channel);
+		}
+		String label = invoiceLabel(channel);
+		if (label != null) {
+			channelsByInvoiceLabel.put(label, channel);
 		}
 	}
 
+	private static String invoiceLabel(ZoneChannel channel) {
+		if (channel.helperData == null || channel.helperData.invoiceRequest == null) {
+			return null;
+		}
+		return channel.helperData.invoiceRequest.label;
+	}
+
 	private void put(ZoneChannel channel) {
 		removeByZoneChannelId(channel.establishedChannel.zoneChannelId);
-		data.channelsProposals.add(Utils.deepCopy(channel, ZoneChannel.class));
-		changeNotificator.notifyThem((m) -> m.onZoneChannelChanged(channel.establishedChannel));
+		// One serialization gives both the stored copy and the journal record
+		byte[] json = RecordJournal.toJson(channel);
+		index(RecordJournal.fromJson(json, ZoneChannel.class));
+		journal(OP_PUT, json);
+		publish();
+		final EstablishedChannel frozen = frozenChannels.get(channel.establishedChannel.zoneChannelId);
+		changeNotificator.notifyThem((m) -> m.onZoneChannelChanged(frozen));
 	}
 	
-	public void replace(String tmpZoneChannelId, ZoneChannel channel) {
+	public synchronized void replace(String tmpZoneChannelId, ZoneChannel channel) {
 		removeByZoneChannelId(tmpZoneChannelId);
+		if (!tmpZoneChannelId.equals(channel.establishedChannel.zoneChannelId)) {
+			journal(OP_REMOVE, tmpZoneChannelId.getBytes(StandardCharsets.UTF_8));
+		}
 		channel.establishedChannel.calcFields();
 		put(channel);
 	}
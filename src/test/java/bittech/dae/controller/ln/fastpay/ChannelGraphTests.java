@@ -0,0 +1,149 @@
+package bittech.dae.controller.ln.fastpay;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+
+import bittech.dae.controller.ln.lnd.LndCommandsExecutor;
+import bittech.lib.commands.ln.channels.DescribeGraphResponse;
+import bittech.lib.utils.Config;
+import bittech.lib.utils.exceptions.ExceptionManager;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class ChannelGraphTests extends TestCase {
+
+	public ChannelGraphTests(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(ChannelGraphTests.class);
+	}
+
+	protected void setUp() throws Exception {
+		Config.loadEmptyConfig();
+		Config.getInstance().addEntry("printExceptions", false);
+		ExceptionManager.getInstance().deleteAll();
+	}
+
+	private static long id(String channelId) {
+		return LndCommandsExecutor.channelIdToLong(channelId);
+	}
+
+	private static int edge(ChannelGraph g, String from, String channelId) {
+		int e = g.findEdge(g.nodeIndex(from), id(channelId));
+		Assert.assertTrue("No edge from " + from + " in " + channelId, e >= 0);
+		return e;
+	}
+
+	public void testBuild() throws Exception {
+		ChannelGraph g = ChannelGraph.build(TestGraph.build());
+
+		Assert.assertEquals(4, g.nodesCount());
+		Assert.assertEquals(8, g.edgesCount());
+		Assert.assertEquals(-1, g.nodeIndex("02x"));
+		Assert.assertEquals(TestGraph.A, g.nodeId(g.nodeIndex(TestGraph.A)));
+
+		int ab = edge(g, TestGraph.A, TestGraph.AB);
+		int ba = edge(g, TestGraph.B, TestGraph.AB);
+		Assert.assertEquals(ba, g.edgeTwin[ab]);
+		Assert.assertEquals(ab, g.edgeTwin[ba]);
+		Assert.assertEquals(g.nodeIndex(TestGraph.B), g.edgePeer[ab]);
+		Assert.assertEquals(g.nodeIndex(TestGraph.A), g.edgeSource(ab));
+		Assert.assertEquals(0, g.edgeDirection(ab));
+		Assert.assertEquals(1, g.edgeDirection(ba));
+		Assert.assertEquals(TestGraph.AB, g.edgeChannelIdAsString(ab));
+		Assert.assertEquals(-1, g.findEdge(g.nodeIndex(TestGraph.C), id(TestGraph.AB)));
+		Assert.assertEquals(-1, g.findChannelEdge(id("9:9:9")));
+
+		// Edge carries policy of its source node
+		int bc = edge(g, TestGraph.B, TestGraph.BC);
+		Assert.assertEquals(40, g.edgeTimeLockDelta[bc]);
+		Assert.assertEquals(1000 + 1000, g.feeMsat(bc, 1000000));
+		int dc = edge(g, TestGraph.D, TestGraph.DC);
+		Assert.assertEquals(144, g.edgeTimeLockDelta[dc]);
+		Assert.assertEquals(5000 + 5000, g.feeMsat(dc, 1000000));
+		Assert.assertEquals(0, g.edgeTimeLockDelta[g.edgeTwin[dc]]);
+	}
+
+	public void testBuildSkipsUnknownNodesAndMissingPolicies() throws Exception {
+		DescribeGraphResponse source = TestGraph.build();
+		source.nodes.add(TestGraph.node(TestGraph.A, "duplicate"));
+		source.channels.add(TestGraph.channel("2:1:0", TestGraph.A, TestGraph.policy(0, 0, 0), "02x",
+				TestGraph.policy(0, 0, 0)));
+		source.channels.add(TestGraph.channel("2:2:0", TestGraph.B, null, TestGraph.D, TestGraph.policy(0, 0, 0)));
+
+		ChannelGraph g = ChannelGraph.build(source);
+
+		Assert.assertEquals(4, g.nodesCount());
+		Assert.assertEquals(10, g.edgesCount());
+		Assert.assertEquals(-1, g.findChannelEdge(id("2:1:0")));
+		Assert.assertTrue(g.edgeDisabled.get(edge(g, TestGraph.B, "2:2:0")));
+		Assert.assertFalse(g.edgeDisabled.get(edge(g, TestGraph.D, "2:2:0")));
+	}
+
+	public void testWithAdded() throws Exception {
+		ChannelGraph g = ChannelGraph.build(TestGraph.build());
+		int oldBc = edge(g, TestGraph.B, TestGraph.BC);
+		g.updatePolicy(oldBc, 7, 8, 9, 10, false);
+
+		List<ChannelGraph.AddedChannel> channels = new ArrayList<ChannelGraph.AddedChannel>();
+		// Announced by E, that is not in graph yet
+		ChannelGraph.AddedChannel be = new ChannelGraph.AddedChannel(id("3:1:0"), 5000, "02e", TestGraph.B);
+		be.setPolicy("02e", TestGraph.rpcPolicy(100, 200, 30));
+		channels.add(be);
+		// The other side of a new channel not announced yet
+		ChannelGraph.AddedChannel cf = new ChannelGraph.AddedChannel(id("3:2:0"), 6000, TestGraph.C, "02f");
+		cf.setPolicy(TestGraph.C, TestGraph.rpcPolicy(1, 2, 3));
+		channels.add(cf);
+		Map<String, String> nodes = new HashMap<String, String>();
+		nodes.put("02e", "alias-e");
+		nodes.put(TestGraph.A, "renamed");
+
+		ChannelGraph added = g.withAdded(channels, nodes);
+
+		// Source graph is not changed
+		Assert.assertEquals(4, g.nodesCount());
+		Assert.assertEquals(8, g.edgesCount());
+
+		Assert.assertEquals(6, added.nodesCount());
+		Assert.assertEquals(12, added.edgesCount());
+		Assert.assertEquals("alias-e", added.nodeAliases[added.nodeIndex("02e")]);
+		Assert.assertEquals("", added.nodeAliases[added.nodeIndex("02f")]);
+		Assert.assertEquals("renamed", added.nodeAliases[added.nodeIndex(TestGraph.A)]);
+
+		// Old edges keep their policies and twins
+		int bc = edge(added, TestGraph.B, TestGraph.BC);
+		Assert.assertEquals(7, added.edgeFeeBaseMsat[bc]);
+		Assert.assertEquals(9, added.edgeTimeLockDelta[bc]);
+		Assert.assertEquals(added.nodeIndex(TestGraph.C), added.edgePeer[bc]);
+		Assert.assertEquals(added.nodeIndex(TestGraph.B), added.edgeSource(bc));
+		for (String channelId : new String[] { TestGraph.AB, TestGraph.BC, TestGraph.AD, TestGraph.DC }) {
+			int e = added.findChannelEdge(id(channelId));
+			Assert.assertEquals(e, added.edgeTwin[added.edgeTwin[e]]);
+			Assert.assertEquals(channelId, added.edgeChannelIdAsString(added.edgeTwin[e]));
+		}
+
+		// New edges, policy is set by direction of announcing node
+		int eb = edge(added, "02e", "3:1:0");
+		int beEdge = edge(added, TestGraph.B, "3:1:0");
+		Assert.assertEquals(eb, added.edgeTwin[beEdge]);
+		Assert.assertEquals(5000, added.edgeCapacitySat[eb]);
+		Assert.assertEquals(100, added.edgeFeeBaseMsat[eb]);
+		Assert.assertEquals(30, added.edgeTimeLockDelta[eb]);
+		Assert.assertEquals(1, added.edgeDirection(eb));
+		Assert.assertEquals(0, added.edgeDirection(beEdge));
+		Assert.assertTrue(added.edgeDisabled.get(beEdge));
+		Assert.assertFalse(added.edgeDisabled.get(edge(added, TestGraph.C, "3:2:0")));
+		Assert.assertTrue(added.edgeDisabled.get(edge(added, "02f", "3:2:0")));
+	}
+
+}
@@ -0,0 +1,135 @@
+package bittech.dae.controller.ln.fastpay;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+
+import bittech.dae.controller.ln.lnd.LndCommandsExecutor;
+import bittech.lib.commands.ln.channels.Hop;
+import bittech.lib.commands.ln.channels.Route;
+import bittech.lib.utils.Btc;
+import bittech.lib.utils.Config;
+import bittech.lib.utils.exceptions.ExceptionManager;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import lnrpc.Rpc;
+
+public class GraphManagerTests extends TestCase {
+
+	private static final Btc AMOUNT = Btc.fromSat(100000);
+
+	private GraphManager graphManager;
+
+	public GraphManagerTests(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(GraphManagerTests.class);
+	}
+
+	protected void setUp() throws Exception {
+		Config.loadEmptyConfig();
+		Config.getInstance().addEntry("printExceptions", false);
+		Config.getInstance().addEntry("saveLiquidity", false);
+		ExceptionManager.getInstance().deleteAll();
+
+		graphManager = new GraphManager();
+		graphManager.update(TestGraph.build());
+	}
+
+	private static void assertHop(Hop hop, String channelId, String pubKey, long amountToForwardMsat, long feeMsat,
+			int timeLockDelta, int expiry) {
+		Assert.assertEquals(channelId, hop.channelId);
+		Assert.assertEquals(pubKey, hop.pubKey);
+		Assert.assertEquals(amountToForwardMsat, hop.amountToForward.toMsat());
+		Assert.assertEquals(feeMsat, hop.fee.toMsat());
+		Assert.assertEquals(timeLockDelta, hop.timeLockDelta);
+		Assert.assertEquals(expiry, hop.expiry);
+	}
+
+	private static Rpc.GraphTopologyUpdate channelUpdate(String channelId, String advertisingNode,
+			String connectingNode, Rpc.RoutingPolicy policy) {
+		return Rpc.GraphTopologyUpdate.newBuilder()
+				.addChannelUpdates(Rpc.ChannelEdgeUpdate.newBuilder()
+						.setChanId(LndCommandsExecutor.channelIdToLong(channelId)).setCapacity(TestGraph.CAPACITY_SAT)
+						.setAdvertisingNode(advertisingNode).setConnectingNode(connectingNode).setRoutingPolicy(policy))
+				.build();
+	}
+
+	public void testRouteFeesAndExpiry() throws Exception {
+		Route route = graphManager.findRoute(TestGraph.A, TestGraph.C, AMOUNT, null);
+		GraphManager.addExpiry(route, 1000, 9);
+
+		// B charges 1000 msat + 0.1% of 100000 sat and adds 40 blocks
+		long feeMsat = 1000 + 100000;
+		Assert.assertEquals(2, route.hops.size());
+		assertHop(route.hops.get(0), TestGraph.AB, TestGraph.B, AMOUNT.toMsat(), feeMsat, 40, 1009);
+		assertHop(route.hops.get(1), TestGraph.BC, TestGraph.C, AMOUNT.toMsat(), 0, 0, 1009);
+		Assert.assertEquals(AMOUNT.toMsat() + feeMsat, route.totalAmount.toMsat());
+		Assert.assertEquals(feeMsat, route.totalFees.toMsat());
+		Assert.assertEquals(1049, route.totalTimeLock);
+	}
+
+	public void testExcludedChannel() throws Exception {
+		Route route = graphManager.findRoute(TestGraph.A, TestGraph.C, AMOUNT, Collections.singleton(TestGraph.BC));
+		GraphManager.addExpiry(route, 1000, 9);
+
+		long feeMsat = 5000 + 500000;
+		assertHop(route.hops.get(0), TestGraph.AD, TestGraph.D, AMOUNT.toMsat(), feeMsat, 144, 1009);
+		assertHop(route.hops.get(1), TestGraph.DC, TestGraph.C, AMOUNT.toMsat(), 0, 0, 1009);
+		Assert.assertEquals(1153, route.totalTimeLock);
+
+		graphManager.bannedChannels.add(LndCommandsExecutor.channelIdToLong(TestGraph.DC));
+		Assert.assertNull(graphManager.findRoute(TestGraph.A, TestGraph.C, AMOUNT, Collections.singleton(TestGraph.BC)));
+		Assert.assertNull(graphManager.findRoute(TestGraph.A, "02x", AMOUNT, null));
+	}
+
+	public void testFeesAddUpAlongRoute() throws Exception {
+		// C starts to charge for forwarding to B
+		graphManager.update(channelUpdate(TestGraph.BC, TestGraph.C, TestGraph.B, TestGraph.rpcPolicy(1000, 1000, 20)));
+		Route route = graphManager.buildRoute(TestGraph.A, Arrays.asList(TestGraph.AD, TestGraph.DC, TestGraph.BC),
+				AMOUNT);
+		GraphManager.addExpiry(route, 1000, 9);
+
+		// D charges for amount that includes fee of C
+		long feeC = 1000 + 100000;
+		long feeD = 5000 + (AMOUNT.toMsat() + feeC) * 5000 / 1000000;
+		Assert.assertEquals(3, route.hops.size());
+		assertHop(route.hops.get(0), TestGraph.AD, TestGraph.D, AMOUNT.toMsat() + feeC, feeD, 144, 1029);
+		assertHop(route.hops.get(1), TestGraph.DC, TestGraph.C, AMOUNT.toMsat(), feeC, 20, 1009);
+		assertHop(route.hops.get(2), TestGraph.BC, TestGraph.B, AMOUNT.toMsat(), 0, 0, 1009);
+		Assert.assertEquals(AMOUNT.toMsat() + feeC + feeD, route.totalAmount.toMsat());
+		Assert.assertEquals(feeC + feeD, route.totalFees.toMsat());
+		Assert.assertEquals(1173, route.totalTimeLock);
+	}
+
+	public void testTopologyUpdates() throws Exception {
+		// Policy update of known channel is applied in place
+		graphManager.update(channelUpdate(TestGraph.BC, TestGraph.B, TestGraph.C,
+				TestGraph.rpcPolicy(1000000, 10000, 40)));
+		Route route = graphManager.findRoute(TestGraph.A, TestGraph.C, AMOUNT, null);
+		Assert.assertEquals(TestGraph.AD, route.hops.get(0).channelId);
+
+		// New channel to new node is usable after merge
+		graphManager.update(channelUpdate("5:1:0", TestGraph.C, "02e", TestGraph.rpcPolicy(0, 0, 0)));
+		graphManager.update(channelUpdate("5:1:0", "02e", TestGraph.C, TestGraph.rpcPolicy(0, 0, 0)));
+		Assert.assertNull(graphManager.findRoute(TestGraph.A, "02e", AMOUNT, null));
+		graphManager.mergeAdded();
+		route = graphManager.findRoute(TestGraph.A, "02e", AMOUNT, null);
+		Assert.assertEquals(3, route.hops.size());
+		Assert.assertEquals("5:1:0", route.hops.get(2).channelId);
+		Assert.assertEquals(5, graphManager.getNodesCount());
+
+		// Closed channel is not used
+		graphManager.update(Rpc.GraphTopologyUpdate.newBuilder().addClosedChans(
+				Rpc.ClosedChannelUpdate.newBuilder().setChanId(LndCommandsExecutor.channelIdToLong("5:1:0"))).build());
+		Assert.assertNull(graphManager.findRoute(TestGraph.A, "02e", AMOUNT, null));
+	}
+
+}
@@ -0,0 +1,126 @@
+package bittech.dae.controller.ln.fastpay;
+
+import java.util.ArrayList;
+
+import org.junit.Assert;
+
+import bittech.dae.controller.ln.lnd.LndCommandsExecutor;
+import bittech.lib.commands.ln.channels.Hop;
+import bittech.lib.commands.ln.channels.Route;
+import bittech.lib.utils.Btc;
+import bittech.lib.utils.Config;
+import bittech.lib.utils.exceptions.ExceptionManager;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class LiquidityModelTests extends TestCase {
+
+	private static final long AMOUNT_MSAT = 10000000000L; // 0.1 of capacity
+	private static final long FEE_MSAT = 20000;
+	private static final long CAPACITY_MSAT = TestGraph.CAPACITY_SAT * 1000;
+
+	private ChannelGraph g;
+	private int ab, bc;
+	private LiquidityModel liquidity;
+
+	public LiquidityModelTests(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(LiquidityModelTests.class);
+	}
+
+	protected void setUp() throws Exception {
+		Config.loadEmptyConfig();
+		Config.getInstance().addEntry("printExceptions", false);
+		Config.getInstance().addEntry("saveLiquidity", false);
+		ExceptionManager.getInstance().deleteAll();
+
+		g = ChannelGraph.build(TestGraph.build());
+		ab = g.findEdge(g.nodeIndex(TestGraph.A), LndCommandsExecutor.channelIdToLong(TestGraph.AB));
+		bc = g.findEdge(g.nodeIndex(TestGraph.B), LndCommandsExecutor.channelIdToLong(TestGraph.BC));
+		liquidity = new LiquidityModel();
+	}
+
+	private static Hop hop(String channelId, String pubKey, long feeMsat) {
+		Hop hop = new Hop();
+		hop.channelId = channelId;
+		hop.pubKey = pubKey;
+		hop.amountToForward = Btc.fromMsat(AMOUNT_MSAT);
+		hop.fee = Btc.fromMsat(feeMsat);
+		hop.channelCapacity = Btc.fromSat(TestGraph.CAPACITY_SAT);
+		return hop;
+	}
+
+	/**
+	 * A -> B -> C, B charges FEE_MSAT
+	 */
+	private static Route route() {
+		Route route = new Route();
+		route.hops = new ArrayList<Hop>();
+		route.hops.add(hop(TestGraph.AB, TestGraph.B, FEE_MSAT));
+		route.hops.add(hop(TestGraph.BC, TestGraph.C, 0));
+		return route;
+	}
+
+	private void age(long millis) {
+		for (LiquidityModel.Bounds b : liquidity.bounds.values()) {
+			b.updatedAt -= millis;
+		}
+	}
+
+	public void testUniformWhenNothingKnown() throws Exception {
+		Assert.assertTrue(liquidity.isEmpty());
+		Assert.assertEquals(0.9, liquidity.successProbability(g, bc, AMOUNT_MSAT), 1e-9);
+		Assert.assertEquals(0.0, liquidity.successProbability(g, bc, CAPACITY_MSAT), 1e-9);
+		Assert.assertEquals(CAPACITY_MSAT / 2, liquidity.expectedLiquidityMsat(TestGraph.A, route()));
+	}
+
+	public void testFailure() throws Exception {
+		liquidity.reportFailure(TestGraph.A, route(), TestGraph.BC);
+
+		// A -> B forwarded amount with fee, B -> C did not have the amount
+		Assert.assertEquals(1.0, liquidity.successProbability(g, ab, AMOUNT_MSAT + FEE_MSAT), 1e-9);
+		Assert.assertEquals(0.0, liquidity.successProbability(g, bc, AMOUNT_MSAT), 1e-9);
+		Assert.assertEquals(0.5, liquidity.successProbability(g, bc, (AMOUNT_MSAT - 1) / 2), 1e-9);
+		// Opposite direction learned nothing
+		Assert.assertEquals(0.9, liquidity.successProbability(g, g.edgeTwin[bc], AMOUNT_MSAT), 1e-9);
+
+		Assert.assertEquals((AMOUNT_MSAT - 1) / 2, liquidity.expectedLiquidityMsat(TestGraph.A, route()));
+	}
+
+	public void testSuccess() throws Exception {
+		liquidity.reportSuccess(TestGraph.A, route());
+
+		// Liquidity moved to the other side, at most capacity - amount is left
+		long left = CAPACITY_MSAT - AMOUNT_MSAT;
+		Assert.assertEquals(0.0, liquidity.successProbability(g, bc, left), 1e-9);
+		Assert.assertEquals(0.0, liquidity.successProbability(g, ab, left - FEE_MSAT), 1e-9);
+		Assert.assertEquals(0.5, liquidity.successProbability(g, bc, left / 2), 1e-9);
+	}
+
+	public void testDecay() throws Exception {
+		liquidity.reportFailure(TestGraph.A, route(), TestGraph.BC);
+		age(LiquidityModel.halfLifeMillis);
+
+		// After half-life lower bound is halved and upper bound is half way back to
+		// capacity
+		long lower = (AMOUNT_MSAT + FEE_MSAT) / 2;
+		Assert.assertEquals(1.0, liquidity.successProbability(g, ab, lower - 1000000), 1e-9);
+		Assert.assertTrue(liquidity.successProbability(g, ab, lower + 1000000) < 1.0);
+
+		double upper = (AMOUNT_MSAT - 1) + (CAPACITY_MSAT - AMOUNT_MSAT + 1) / 2.0;
+		Assert.assertEquals((upper - AMOUNT_MSAT) / upper, liquidity.successProbability(g, bc, AMOUNT_MSAT), 1e-4);
+
+		// Long after nothing is known again
+		age(20 * LiquidityModel.halfLifeMillis);
+		Assert.assertEquals(0.9, liquidity.successProbability(g, bc, AMOUNT_MSAT), 1e-4);
+		Assert.assertEquals(0.9, liquidity.successProbability(g, ab, AMOUNT_MSAT), 1e-4);
+	}
+
+}
@@ -0,0 +1,135 @@
+package bittech.dae.controller.ln.fastpay;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.Assert;
+
+import bittech.dae.controller.ln.lnd.LndCommandsExecutor;
+import bittech.lib.utils.Config;
+import bittech.lib.utils.exceptions.ExceptionManager;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class PathFinderTests extends TestCase {
+
+	private static final long AMOUNT_MSAT = 100000000;
+
+	private ChannelGraph g;
+	private int a, c;
+
+	public PathFinderTests(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(PathFinderTests.class);
+	}
+
+	protected void setUp() throws Exception {
+		Config.loadEmptyConfig();
+		Config.getInstance().addEntry("printExceptions", false);
+		ExceptionManager.getInstance().deleteAll();
+
+		g = ChannelGraph.build(TestGraph.build());
+		a = g.nodeIndex(TestGraph.A);
+		c = g.nodeIndex(TestGraph.C);
+	}
+
+	private String[] channels(int[] path) {
+		String[] ids = new String[path.length];
+		for (int i = 0; i < path.length; i++) {
+			ids[i] = g.edgeChannelIdAsString(path[i]);
+		}
+		return ids;
+	}
+
+	private BitSet excluded(String channelId) {
+		BitSet excluded = new BitSet(g.edgesCount());
+		int e = g.findChannelEdge(LndCommandsExecutor.channelIdToLong(channelId));
+		excluded.set(e);
+		excluded.set(g.edgeTwin[e]);
+		return excluded;
+	}
+
+	public void testCheapestPath() throws Exception {
+		int[] path = new PathFinder(new WeightedCostFunction()).findPath(g, a, c, AMOUNT_MSAT, null);
+		Assert.assertArrayEquals(new String[] { TestGraph.AB, TestGraph.BC }, channels(path));
+		Assert.assertEquals(a, g.edgeSource(path[0]));
+		Assert.assertEquals(c, g.edgePeer[path[1]]);
+	}
+
+	public void testSamePathBothWays() throws Exception {
+		int[] path = new PathFinder(new WeightedCostFunction()).findPath(g, c, a, AMOUNT_MSAT, null);
+		Assert.assertArrayEquals(new String[] { TestGraph.BC, TestGraph.AB }, channels(path));
+	}
+
+	public void testExcludedAndDisabledEdges() throws Exception {
+		PathFinder finder = new PathFinder(new WeightedCostFunction());
+
+		int[] path = finder.findPath(g, a, c, AMOUNT_MSAT, excluded(TestGraph.BC));
+		Assert.assertArrayEquals(new String[] { TestGraph.AD, TestGraph.DC }, channels(path));
+
+		// Only direction D -> C is disabled, it is the one needed
+		int dc = g.findEdge(g.nodeIndex(TestGraph.D), LndCommandsExecutor.channelIdToLong(TestGraph.DC));
+		g.updatePolicy(dc, 0, 0, 0, 0, true);
+		Assert.assertNull(finder.findPath(g, a, c, AMOUNT_MSAT, excluded(TestGraph.BC)));
+		Assert.assertNotNull(finder.findPath(g, c, a, AMOUNT_MSAT, excluded(TestGraph.BC)));
+	}
+
+	public void testFeeChangesPath() throws Exception {
+		int bc = g.findEdge(g.nodeIndex(TestGraph.B), LndCommandsExecutor.channelIdToLong(TestGraph.BC));
+		g.updatePolicy(bc, 1000000, 10000, 40, 1000, false);
+		int[] path = new PathFinder(new WeightedCostFunction()).findPath(g, a, c, AMOUNT_MSAT, null);
+		Assert.assertArrayEquals(new String[] { TestGraph.AD, TestGraph.DC }, channels(path));
+	}
+
+	public void testLimits() throws Exception {
+		Assert.assertNull(new PathFinder(new WeightedCostFunction(), 1).findPath(g, a, c, AMOUNT_MSAT, null));
+		Assert.assertArrayEquals(new int[0], new PathFinder(new WeightedCostFunction()).findPath(g, a, a, 1, null));
+
+		// Below min htlc
+		Assert.assertNull(new PathFinder(new WeightedCostFunction()).findPath(g, a, c, 999, null));
+		// Not less than capacity
+		Assert.assertNull(new PathFinder(new WeightedCostFunction()).findPath(g, a, c,
+				TestGraph.CAPACITY_SAT * 1000, null));
+	}
+
+	public void testNodeHeap() throws Exception {
+		int count = 1000;
+		NodeHeap heap = new NodeHeap(count);
+		Random random = new Random(1);
+		long[] keys = new long[count];
+		for (int node = 0; node < count; node++) {
+			keys[node] = random.nextInt(1000000);
+			heap.push(node, keys[node]);
+		}
+		// Decrease key, higher key is ignored
+		for (int node = 0; node < count; node += 3) {
+			keys[node] /= 2;
+			heap.push(node, keys[node]);
+			heap.push(node, keys[node] + 1);
+		}
+
+		long last = -1;
+		BitSet popped = new BitSet(count);
+		while (!heap.isEmpty()) {
+			int node = heap.pop();
+			Assert.assertFalse(popped.get(node));
+			popped.set(node);
+			Assert.assertTrue(keys[node] >= last);
+			last = keys[node];
+		}
+		Assert.assertEquals(count, popped.cardinality());
+
+		// Popped node can be pushed again
+		heap.push(7, 5);
+		Assert.assertEquals(7, heap.pop());
+		Assert.assertTrue(heap.isEmpty());
+	}
+
+}
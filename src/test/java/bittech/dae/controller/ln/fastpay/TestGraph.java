@@ -0,0 +1,87 @@
+package bittech.dae.controller.ln.fastpay;
+
+import java.util.ArrayList;
+
+import bittech.lib.commands.ln.channels.DescribeGraphResponse;
+import bittech.lib.commands.ln.channels.DescribeGraphResponse.ChannelInGraph;
+import bittech.lib.commands.ln.channels.DescribeGraphResponse.NodeInGraph;
+import bittech.lib.commands.ln.channels.DescribeGraphResponse.RoutingPolicy;
+import lnrpc.Rpc;
+
+/**
+ * Small hand built graph for routing tests:
+ *
+ * <pre>
+ *   A --1:1:0-- B --1:2:0-- C
+ *   A --1:3:0-- D --1:4:0-- C
+ * </pre>
+ *
+ * B is cheap (1000 msat + 0.1%, CLTV delta 40), D is expensive (5000 msat +
+ * 0.5%, CLTV delta 144). Every channel has 1 BTC capacity.
+ */
+class TestGraph {
+
+	static final String A = "02a";
+	static final String B = "02b";
+	static final String C = "02c";
+	static final String D = "02d";
+
+	static final String AB = "1:1:0";
+	static final String BC = "1:2:0";
+	static final String AD = "1:3:0";
+	static final String DC = "1:4:0";
+
+	static final long CAPACITY_SAT = 100000000;
+
+	static DescribeGraphResponse build() {
+		DescribeGraphResponse graph = new DescribeGraphResponse();
+		graph.nodes = new ArrayList<NodeInGraph>();
+		graph.channels = new ArrayList<ChannelInGraph>();
+		for (String id : new String[] { A, B, C, D }) {
+			graph.nodes.add(node(id, "alias-" + id));
+		}
+		graph.channels.add(channel(AB, A, policy(0, 0, 0), B, policy(1000, 1000, 40)));
+		graph.channels.add(channel(BC, B, policy(1000, 1000, 40), C, policy(0, 0, 0)));
+		graph.channels.add(channel(AD, A, policy(0, 0, 0), D, policy(5000, 5000, 144)));
+		graph.channels.add(channel(DC, C, policy(0, 0, 0), D, policy(5000, 5000, 144)));
+		return graph;
+	}
+
+	static NodeInGraph node(String id, String alias) {
+		NodeInGraph node = new NodeInGraph();
+		node.id = id;
+		node.alias = alias;
+		return node;
+	}
+
+	/**
+	 * node1 has to be the one with lower id, as in lnd
+	 */
+	static ChannelInGraph channel(String id, String node1, RoutingPolicy policy1, String node2,
+			RoutingPolicy policy2) {
+		ChannelInGraph channel = new ChannelInGraph();
+		channel.id = id;
+		channel.capacitySat = CAPACITY_SAT;
+		channel.node1Id = node1;
+		channel.node1_policy = policy1;
+		channel.node2Id = node2;
+		channel.node2_policy = policy2;
+		return channel;
+	}
+
+	static RoutingPolicy policy(long feeBaseMsat, long feeRateMilliMsat, long timeLockDelta) {
+		RoutingPolicy policy = new RoutingPolicy();
+		policy.fee_base_msat = feeBaseMsat;
+		policy.fee_rate_milli_msat = feeRateMilliMsat;
+		policy.time_lock_delta = timeLockDelta;
+		policy.min_htlc = 1000;
+		policy.disabled = false;
+		return policy;
+	}
+
+	static Rpc.RoutingPolicy rpcPolicy(long feeBaseMsat, long feeRateMilliMsat, int timeLockDelta) {
+		return Rpc.RoutingPolicy.newBuilder().setFeeBaseMsat(feeBaseMsat).setFeeRateMilliMsat(feeRateMilliMsat)
+				.setTimeLockDelta(timeLockDelta).setMinHtlc(1000).build();
+	}
+
+}
@@ -0,0 +1,122 @@
+package bittech.dae.controller.ln.lnd;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+
+import bittech.lib.commands.ln.onchain.ListUnspentResponse.Utxo;
+import bittech.lib.utils.Config;
+import bittech.lib.utils.exceptions.ExceptionManager;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class OutpointIndexTests extends TestCase {
+
+	private static final int RECORD_SIZE = 1 + 32 + 4;
+
+	private File dir;
+	private String fileName;
+
+	public OutpointIndexTests(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(OutpointIndexTests.class);
+	}
+
+	protected void setUp() throws Exception {
+		Config.loadEmptyConfig();
+		Config.getInstance().addEntry("printExceptions", false);
+		ExceptionManager.getInstance().deleteAll();
+
+		dir = Files.createTempDirectory("outpoints").toFile();
+		fileName = new File(dir, "outpoints").getPath();
+	}
+
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	private static Utxo utxo(int tx, int index) {
+		Utxo utxo = new Utxo();
+		utxo.txId = String.format("%064x", tx);
+		utxo.txIndex = index;
+		return utxo;
+	}
+
+	private static List<Utxo> utxos(int count) {
+		List<Utxo> list = new ArrayList<Utxo>();
+		for (int i = 0; i < count; i++) {
+			list.add(utxo(i, i % 3));
+		}
+		return list;
+	}
+
+	public void testUpdateAndReload() throws Exception {
+		OutpointIndex index = new OutpointIndex(fileName);
+		Assert.assertFalse(index.existed());
+		Assert.assertEquals(3, index.update(utxos(3)).size());
+		Assert.assertEquals(0, index.update(utxos(3)).size());
+
+		// Output 0 spent, output 3 received
+		List<Utxo> current = utxos(4);
+		current.remove(0);
+		List<Utxo> added = index.update(current);
+		Assert.assertEquals(1, added.size());
+		Assert.assertEquals(current.get(2).txId, added.get(0).txId);
+		Assert.assertEquals(3, index.size());
+
+		index = new OutpointIndex(fileName);
+		Assert.assertTrue(index.existed());
+		Assert.assertEquals(3, index.size());
+		Assert.assertEquals(0, index.update(current).size());
+		// Spent output seen again is new
+		Assert.assertEquals(1, index.update(utxos(4)).size());
+	}
+
+	public void testTruncatedRecord() throws Exception {
+		OutpointIndex index = new OutpointIndex(fileName);
+		index.update(utxos(3));
+		Assert.assertEquals(3 * RECORD_SIZE, new File(fileName).length());
+
+		// Write of the last record interrupted
+		try (RandomAccessFile file = new RandomAccessFile(fileName, "rw")) {
+			file.setLength(3 * RECORD_SIZE - 5);
+		}
+
+		index = new OutpointIndex(fileName);
+		Assert.assertEquals(2, index.size());
+		Assert.assertEquals(2 * RECORD_SIZE, new File(fileName).length());
+		Assert.assertEquals(1, index.update(utxos(3)).size());
+
+		index = new OutpointIndex(fileName);
+		Assert.assertEquals(3, index.size());
+	}
+
+	public void testCompaction() throws Exception {
+		OutpointIndex index = new OutpointIndex(fileName);
+		index.update(utxos(600));
+		Assert.assertEquals(600 * RECORD_SIZE, new File(fileName).length());
+
+		// 600 adds + 599 removes is more than 2 * 1 + 1000 records
+		index.update(Collections.singletonList(utxo(7, 1)));
+		Assert.assertEquals(1, index.size());
+		Assert.assertEquals(RECORD_SIZE, new File(fileName).length());
+
+		index = new OutpointIndex(fileName);
+		Assert.assertEquals(1, index.size());
+		Assert.assertEquals(0, index.update(Collections.singletonList(utxo(7, 1))).size());
+	}
+
+}
@@ -0,0 +1,116 @@
+package bittech.dae.controller.zone;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+
+import bittech.lib.commands.ln.invoices.PaymentReceivedRequest;
+import bittech.lib.utils.Btc;
+import bittech.lib.utils.Config;
+import bittech.lib.utils.exceptions.ExceptionManager;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class PaymentReceivedBusTests extends TestCase {
+
+	private File dir;
+	private String fileName;
+	private final BlockingQueue<String> received = new LinkedBlockingQueue<String>();
+
+	public PaymentReceivedBusTests(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(PaymentReceivedBusTests.class);
+	}
+
+	protected void setUp() throws Exception {
+		Config.loadEmptyConfig();
+		Config.getInstance().addEntry("printExceptions", false);
+		ExceptionManager.getInstance().deleteAll();
+
+		dir = Files.createTempDirectory("payments").toFile();
+		fileName = new File(dir, "payments").getPath();
+	}
+
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	private static PaymentReceivedRequest payment(String label) {
+		PaymentReceivedRequest request = new PaymentReceivedRequest();
+		request.label = label;
+		request.amount = Btc.fromSat(1000);
+		request.status = "paid";
+		return request;
+	}
+
+	/**
+	 * Bus with observer collecting labels of received payments
+	 */
+	private PaymentReceivedBus startBus() throws InterruptedException {
+		PaymentReceivedBus bus = new PaymentReceivedBus(fileName);
+		bus.register((p) -> received.add(p.label));
+		bus.start();
+		return bus;
+	}
+
+	private String next() throws InterruptedException {
+		return received.poll(5, TimeUnit.SECONDS);
+	}
+
+	public void testReplay() throws Exception {
+		// Not started, so nothing is delivered before close
+		PaymentReceivedBus bus = new PaymentReceivedBus(fileName);
+		bus.publish(payment("a"));
+		bus.publish(payment("b"));
+		bus.close();
+
+		bus = startBus();
+		Assert.assertEquals("a", next());
+		Assert.assertEquals("b", next());
+		// Single lane, so a and b are marked done before c is delivered
+		bus.publish(payment("c"));
+		Assert.assertEquals("c", next());
+		bus.close();
+
+		// Done mark of c may be lost, it is delivered again then
+		bus = startBus();
+		String again = received.poll(500, TimeUnit.MILLISECONDS);
+		Assert.assertTrue(again == null || again.equals("c"));
+		Assert.assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+		bus.close();
+	}
+
+	public void testReplayAfterTruncatedRecord() throws Exception {
+		PaymentReceivedBus bus = new PaymentReceivedBus(fileName);
+		bus.publish(payment("a"));
+		bus.publish(payment("b"));
+		bus.close();
+
+		// Process stopped while the last record was being written
+		File journalFile = new File(fileName + ".journal");
+		try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+			file.setLength(file.length() - 3);
+		}
+
+		bus = startBus();
+		Assert.assertEquals("a", next());
+		bus.publish(payment("c"));
+		Assert.assertEquals("c", next());
+		Assert.assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+		bus.close();
+	}
+
+}
@@ -0,0 +1,113 @@
+package bittech.dae.controller.zone;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+
+import bittech.dae.controller.zone.ToOnchainListener.Payment;
+import bittech.lib.utils.Btc;
+import bittech.lib.utils.Config;
+import bittech.lib.utils.exceptions.ExceptionManager;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class PayoutQueueTests extends TestCase {
+
+	private File dir;
+	private String fileName;
+
+	public PayoutQueueTests(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(PayoutQueueTests.class);
+	}
+
+	protected void setUp() throws Exception {
+		Config.loadEmptyConfig();
+		Config.getInstance().addEntry("printExceptions", false);
+		ExceptionManager.getInstance().deleteAll();
+
+		dir = Files.createTempDirectory("payouts").toFile();
+		fileName = new File(dir, "payouts").getPath();
+	}
+
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	private static Payment payment(String label) {
+		Payment payment = new Payment();
+		payment.invoice_label = label;
+		payment.amount = new Btc("0.001");
+		payment.addr = "addr_" + label;
+		return payment;
+	}
+
+	private static List<String> labels(List<Payment> payments) {
+		List<String> labels = new ArrayList<String>();
+		for (Payment p : payments) {
+			labels.add(p.invoice_label);
+		}
+		return labels;
+	}
+
+	public void testReplay() throws Exception {
+		PayoutQueue queue = new PayoutQueue(fileName);
+		Assert.assertTrue(queue.offer(payment("a")));
+		Assert.assertTrue(queue.offer(payment("b")));
+		Assert.assertTrue(queue.offer(payment("c")));
+		Assert.assertFalse(queue.offer(payment("a")));
+		queue.sending(Arrays.asList(payment("b")));
+		queue.done(payment("c"));
+		queue.close();
+
+		queue = new PayoutQueue(fileName);
+		Assert.assertEquals(Arrays.asList("a", "b"), labels(queue.list()));
+		// It is not known whether b was paid, so it is not queued again
+		Assert.assertEquals(Arrays.asList("b"), labels(queue.interrupted()));
+		Payment a = queue.poll(1, TimeUnit.SECONDS);
+		Assert.assertEquals("a", a.invoice_label);
+		Assert.assertEquals("addr_a", a.addr);
+		Assert.assertEquals(new Btc("0.001").toMsat(), a.amount.toMsat());
+		Assert.assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+		Assert.assertFalse(queue.offer(payment("b")));
+		queue.close();
+	}
+
+	public void testReplayAfterTruncatedRecord() throws Exception {
+		PayoutQueue queue = new PayoutQueue(fileName);
+		queue.offer(payment("a"));
+		queue.offer(payment("b"));
+		queue.close();
+
+		// Process stopped while the last record was being written
+		File journalFile = new File(fileName + ".journal");
+		try (RandomAccessFile file = new RandomAccessFile(journalFile, "rw")) {
+			file.setLength(file.length() - 3);
+		}
+
+		queue = new PayoutQueue(fileName);
+		Assert.assertEquals(Arrays.asList("a"), labels(queue.list()));
+		Assert.assertTrue(queue.offer(payment("b")));
+		queue.close();
+
+		queue = new PayoutQueue(fileName);
+		Assert.assertEquals(Arrays.asList("a", "b"), labels(queue.list()));
+		Assert.assertTrue(queue.interrupted().isEmpty());
+		queue.close();
+	}
+
+}
@@ -0,0 +1,212 @@
+package bittech.dae.controller.zone;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+
+import bittech.lib.utils.Config;
+import bittech.lib.utils.exceptions.ExceptionManager;
+import bittech.lib.utils.exceptions.StoredException;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class RecordJournalTests extends TestCase {
+
+	private static final byte OP = 'X';
+
+	public static class State extends RecordJournal.Snapshot {
+		List<String> items = new ArrayList<String>();
+	}
+
+	private File dir;
+	private String fileName;
+
+	public RecordJournalTests(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(RecordJournalTests.class);
+	}
+
+	protected void setUp() throws Exception {
+		Config.loadEmptyConfig();
+		Config.getInstance().addEntry("printExceptions", false);
+		ExceptionManager.getInstance().deleteAll();
+
+		dir = Files.createTempDirectory("journal").toFile();
+		fileName = new File(dir, "state.json").getPath();
+	}
+
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	private static byte[] bytes(String str) {
+		return str.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private RecordJournal write(long compactRecords, String... items) throws InterruptedException {
+		RecordJournal journal = new RecordJournal(fileName, compactRecords);
+		journal.replay(0, (seq, op, payload) -> {
+		});
+		journal.start(() -> new byte[0]);
+		long seq = 0;
+		for (String item : items) {
+			seq = journal.append(OP, bytes(item));
+		}
+		journal.sync(seq);
+		return journal;
+	}
+
+	private static List<String> replay(RecordJournal journal, long snapshotSeq) {
+		List<String> replayed = new ArrayList<String>();
+		journal.replay(snapshotSeq, (seq, op, payload) -> {
+			Assert.assertEquals(OP, op);
+			replayed.add(seq + ":" + new String(payload, StandardCharsets.UTF_8));
+		});
+		return replayed;
+	}
+
+	public void testReplay() throws Exception {
+		write(1000, "a", "b", "c").close();
+
+		RecordJournal journal = new RecordJournal(fileName, 1000);
+		Assert.assertEquals(listOf("1:a", "2:b", "3:c"), replay(journal, 0));
+		Assert.assertEquals(3, journal.lastSeq());
+		journal.start(() -> new byte[0]);
+		Assert.assertEquals(4, journal.append(OP, bytes("d")));
+		journal.close();
+	}
+
+	public void testRecordsIncludedInSnapshotAreSkipped() throws Exception {
+		write(1000, "a", "b", "c", "d", "e").close();
+
+		// Crash after snapshot with seq 3 was renamed, before journal was truncated
+		RecordJournal journal = new RecordJournal(fileName, 1000);
+		Assert.assertEquals(listOf("4:d", "5:e"), replay(journal, 3));
+		Assert.assertEquals(5, journal.lastSeq());
+	}
+
+	public void testTornTailIsTruncated() throws Exception {
+		write(1000, "a", "b").close();
+		File journalFile = new File(fileName + ".journal");
+		long validLength = journalFile.length();
+
+		// Length prefix of record that was never written completely
+		try (DataOutputStream out = new DataOutputStream(new FileOutputStream(journalFile, true))) {
+			out.writeInt(Integer.MAX_VALUE);
+			out.writeLong(3);
+			out.writeByte(OP);
+			out.write(bytes("partial"));
+		}
+
+		RecordJournal journal = new RecordJournal(fileName, 1000);
+		Assert.assertEquals(listOf("1:a", "2:b"), replay(journal, 0));
+		Assert.assertEquals(validLength, journalFile.length());
+
+		// Records appended after truncation are read back
+		journal.start(() -> new byte[0]);
+		journal.sync(journal.append(OP, bytes("c")));
+		journal.close();
+		Assert.assertEquals(listOf("1:a", "2:b", "3:c"), replay(new RecordJournal(fileName, 1000), 0));
+	}
+
+	public void testTornLengthPrefixIsTruncated() throws Exception {
+		write(1000, "a").close();
+		File journalFile = new File(fileName + ".journal");
+		long validLength = journalFile.length();
+
+		try (FileOutputStream out = new FileOutputStream(journalFile, true)) {
+			out.write(new byte[] { 0, 0 });
+		}
+
+		Assert.assertEquals(listOf("1:a"), replay(new RecordJournal(fileName, 1000), 0));
+		Assert.assertEquals(validLength, journalFile.length());
+	}
+
+	public void testCompaction() throws Exception {
+		State state = new State();
+		RecordJournal journal = new RecordJournal(fileName, 3);
+		journal.replay(0, (seq, op, payload) -> {
+		});
+		journal.start(() -> {
+			synchronized (state) {
+				return journal.snapshot(state);
+			}
+		});
+		for (String item : new String[] { "a", "b", "c" }) {
+			synchronized (state) {
+				state.items.add(item);
+				journal.append(OP, bytes(item));
+			}
+		}
+		journal.sync(3);
+
+		File journalFile = new File(fileName + ".journal");
+		long deadline = System.currentTimeMillis() + 5000;
+		while (journalFile.length() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(0, journalFile.length());
+
+		for (String item : new String[] { "d", "e" }) {
+			synchronized (state) {
+				state.items.add(item);
+				journal.append(OP, bytes(item));
+			}
+		}
+		journal.sync(5);
+		journal.close();
+
+		RecordJournal reopened = new RecordJournal(fileName, 3);
+		State loaded = reopened.readSnapshot(State.class, new State());
+		Assert.assertEquals(listOf("a", "b", "c"), loaded.items);
+		List<String> replayed = new ArrayList<String>();
+		reopened.replay(loaded, (seq, op, payload) -> replayed.add(seq + ":" + new String(payload, StandardCharsets.UTF_8)));
+		Assert.assertEquals(listOf("4:d", "5:e"), replayed);
+		Assert.assertEquals(5, reopened.lastSeq());
+	}
+
+	public void testFailedReplayPreventsStart() throws Exception {
+		write(1000, "a", "b").close();
+
+		RecordJournal journal = new RecordJournal(fileName, 1000);
+		try {
+			journal.replay(0, (seq, op, payload) -> {
+				if (seq == 2) {
+					throw new Exception("Cannot apply");
+				}
+			});
+			Assert.fail("Replay failure not reported");
+		} catch (StoredException ex) {
+			// expected
+		}
+		try {
+			journal.start(() -> new byte[0]);
+			Assert.fail("Journal started after failed replay");
+		} catch (StoredException ex) {
+			// expected
+		}
+	}
+
+	private static List<String> listOf(String... items) {
+		List<String> list = new ArrayList<String>();
+		for (String item : items) {
+			list.add(item);
+		}
+		return list;
+	}
+
+}
@@ -0,0 +1,84 @@
+package bittech.dae.controller.zone;
+
+import org.junit.Assert;
+
+import bittech.dae.controller.zone.Invoices.Invoice;
+import bittech.lib.commands.ln.invoices.GetPaymentStatusResponse.InvoiceStatus;
+import bittech.lib.utils.Config;
+import bittech.lib.utils.FormattedTime;
+import bittech.lib.utils.FormattedTime.Precision;
+import bittech.lib.utils.exceptions.ExceptionManager;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class ToOnchainInvoiceStatusTests extends TestCase {
+
+	private static final String LABEL = "toonchain_test";
+
+	private Invoices invoices;
+
+	public ToOnchainInvoiceStatusTests(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(ToOnchainInvoiceStatusTests.class);
+	}
+
+	protected void setUp() throws Exception {
+		Config.loadEmptyConfig();
+		Config.getInstance().addEntry("saveInvoices", false);
+		Config.getInstance().addEntry("printExceptions", false);
+		ExceptionManager.getInstance().deleteAll();
+
+		invoices = new Invoices();
+		Invoice inv = new Invoice();
+		inv.label = LABEL;
+		inv.status = InvoiceStatus.UNPAID;
+		inv.created_at = FormattedTime.now(Precision.SECONDS);
+		invoices.add(inv);
+	}
+
+	protected void tearDown() throws Exception {
+		invoices.close();
+	}
+
+	public void testPaidThenCompleted() throws Exception {
+		Assert.assertTrue(ToOnchainListener.markInvoicePaid(invoices, LABEL));
+		Assert.assertTrue(ToOnchainListener.markInvoiceCompleted(invoices, LABEL, "txid"));
+
+		Invoice inv = invoices.getByLabel(LABEL);
+		Assert.assertEquals(InvoiceStatus.COMPLETED, inv.status);
+		Assert.assertEquals("txid", inv.refund_txid);
+	}
+
+	public void testWorkerCompletesBeforePaidIsStored() throws Exception {
+		// Payout queued, taken and sent by worker before onPaymentReceived marks
+		// the invoice as paid
+		Assert.assertTrue(ToOnchainListener.markInvoiceCompleted(invoices, LABEL, "txid"));
+		Assert.assertFalse(ToOnchainListener.markInvoicePaid(invoices, LABEL));
+
+		Invoice inv = invoices.getByLabel(LABEL);
+		Assert.assertEquals(InvoiceStatus.COMPLETED, inv.status);
+		Assert.assertNull(inv.paid_at);
+		Assert.assertEquals(1, invoices.getByStatus(InvoiceStatus.COMPLETED).size());
+		Assert.assertEquals(0, invoices.getByStatus(InvoiceStatus.PAID).size());
+	}
+
+	public void testWorkerFailsBeforePaidIsStored() throws Exception {
+		Assert.assertTrue(ToOnchainListener.markInvoiceError(invoices, LABEL));
+		Assert.assertFalse(ToOnchainListener.markInvoicePaid(invoices, LABEL));
+		Assert.assertEquals(InvoiceStatus.ERROR, invoices.getByLabel(LABEL).status);
+	}
+
+	public void testCompletedIsNeverMarkedAsError() throws Exception {
+		Assert.assertTrue(ToOnchainListener.markInvoiceCompleted(invoices, LABEL, "txid"));
+		Assert.assertFalse(ToOnchainListener.markInvoiceError(invoices, LABEL));
+		Assert.assertEquals(InvoiceStatus.COMPLETED, invoices.getByLabel(LABEL).status);
+	}
+
+}